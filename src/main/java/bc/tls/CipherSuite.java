@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.bouncycastle.crypto.tls.HashAlgorithm;
+import org.bouncycastle.crypto.tls.KeyExchangeAlgorithm;
 import org.bouncycastle.crypto.tls.ProtocolVersion;
 import org.bouncycastle.crypto.tls.TlsUtils;
 
@@ -507,6 +508,25 @@ public enum CipherSuite {
 		}
 	}
 
+	/**
+	 * Whether application data may be sent before the peer's Finished
+	 * message, see RFC 7918. Only ECDHE key exchanges with an AEAD cipher
+	 * qualify.
+	 * 
+	 * @return {@code true} if this cipher suite allows for TLS False Start
+	 */
+	public boolean allowsFalseStart() {
+		int keyExchange = getKeyExchangeAlgorithm();
+		if (keyExchange != KeyExchangeAlgorithm.ECDHE_ECDSA && keyExchange != KeyExchangeAlgorithm.ECDHE_RSA) {
+			return false;
+		}
+		try {
+			return TlsUtils.isAEADCipherSuite(this.id);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
 	/**
 	 * @return this cipher suite's minimum TLS version
 	 */
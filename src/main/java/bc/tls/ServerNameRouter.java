@@ -0,0 +1,237 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Selects a server's {@link BcSecurityPrototype} by the host name a client
+ * indicated (RFC 6066, 3).
+ * <p>
+ * Exact names are looked up in a hash map, wildcard names like
+ * {@code *.example.com} in a trie of reversed labels. A wildcard matches
+ * exactly one leading label, exact names take precedence. Lookups take time
+ * linear in the length of the name, independent of the number of routes, and
+ * do not allocate for lower case names.
+ * <p>
+ * Routes are immutable once built, {@link #update(Map)} replaces all of them
+ * at once. Handshakes in progress see either the old or the new routes.
+ * 
+ * @author super-horst
+ *
+ */
+public class ServerNameRouter {
+
+	private volatile Routes routes = new Routes(Collections.<String, BcSecurityPrototype> emptyMap());
+
+	public ServerNameRouter() {
+	}
+
+	/**
+	 * @param routes
+	 *            host names or wildcard names mapped to their prototypes
+	 */
+	public ServerNameRouter(Map<String, ? extends BcSecurityPrototype> routes) {
+		update(routes);
+	}
+
+	/**
+	 * Replace all routes.
+	 * 
+	 * @param routes
+	 *            host names or wildcard names mapped to their prototypes
+	 * @throws IllegalArgumentException
+	 *             if a name is empty or contains a wildcard other than a
+	 *             leading {@code *.}
+	 */
+	public void update(Map<String, ? extends BcSecurityPrototype> routes) {
+		this.routes = new Routes(routes);
+	}
+
+	/**
+	 * @param serverName
+	 *            the host name indicated by the client, may be {@code null}
+	 * @return the matching prototype or {@code null} if there is none
+	 */
+	public BcSecurityPrototype select(String serverName) {
+		if (serverName == null || serverName.isEmpty()) {
+			return null;
+		}
+		return this.routes.lookup(toLowerCase(serverName));
+	}
+
+	/**
+	 * @return number of exact and wildcard routes
+	 */
+	public int size() {
+		return this.routes.size;
+	}
+
+	private static String toLowerCase(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c >= 'A' && c <= 'Z' || c > 0x7f) {
+				return name.toLowerCase(Locale.ROOT);
+			}
+		}
+		return name;
+	}
+
+	private static final class Routes {
+
+		private final Map<String, BcSecurityPrototype> exact = new HashMap<String, BcSecurityPrototype>();
+		private final Label wildcards = new Label();
+		private final int size;
+
+		Routes(Map<String, ? extends BcSecurityPrototype> routes) {
+			for (Map.Entry<String, ? extends BcSecurityPrototype> route : routes.entrySet()) {
+				String name = toLowerCase(route.getKey());
+				if (name.endsWith(".")) {
+					name = name.substring(0, name.length() - 1);
+				}
+				if (name.startsWith("*.")) {
+					name = name.substring(2);
+					checkName(route.getKey(), name);
+					insertWildcard(name, route.getValue());
+				} else {
+					checkName(route.getKey(), name);
+					this.exact.put(name, route.getValue());
+				}
+			}
+			this.size = routes.size();
+		}
+
+		private static void checkName(String route, String name) {
+			if (name.isEmpty() || name.indexOf('*') >= 0) {
+				throw new IllegalArgumentException("Invalid server name: " + route);
+			}
+		}
+
+		private void insertWildcard(String name, BcSecurityPrototype prototype) {
+			Label label = this.wildcards;
+			int end = name.length();
+			while (end > 0) {
+				int start = name.lastIndexOf('.', end - 1) + 1;
+				label = label.add(name.substring(start, end));
+				end = start - 1;
+			}
+			label.wildcard = prototype;
+		}
+
+		BcSecurityPrototype lookup(String name) {
+			BcSecurityPrototype prototype = this.exact.get(name);
+			if (prototype != null) {
+				return prototype;
+			}
+
+			// walk all labels but the leftmost, which the wildcard stands for
+			int first = name.indexOf('.');
+			if (first <= 0) {
+				return null;
+			}
+			Label label = this.wildcards;
+			int end = name.length();
+			while (end > first + 1) {
+				int start = name.lastIndexOf('.', end - 1) + 1;
+				label = label.get(name, start, end);
+				if (label == null) {
+					return null;
+				}
+				end = start - 1;
+			}
+			return label.wildcard;
+		}
+	}
+
+	/**
+	 * Trie node, children are kept in an open addressing table so that they
+	 * can be looked up by a region of the server name
+	 */
+	private static final class Label {
+
+		private String[] names = new String[2];
+		private Label[] children = new Label[2];
+		private int count = 0;
+
+		private BcSecurityPrototype wildcard;
+
+		Label get(String name, int start, int end) {
+			int length = end - start;
+			int mask = this.names.length - 1;
+			for (int i = hash(name, start, end) & mask;; i = (i + 1) & mask) {
+				String candidate = this.names[i];
+				if (candidate == null) {
+					return null;
+				}
+				if (candidate.length() == length && candidate.regionMatches(0, name, start, length)) {
+					return this.children[i];
+				}
+			}
+		}
+
+		Label add(String name) {
+			Label child = get(name, 0, name.length());
+			if (child != null) {
+				return child;
+			}
+			if (2 * (this.count + 1) > this.names.length) {
+				resize();
+			}
+			child = new Label();
+			put(name, child);
+			return child;
+		}
+
+		private void put(String name, Label child) {
+			int mask = this.names.length - 1;
+			int i = hash(name, 0, name.length()) & mask;
+			while (this.names[i] != null) {
+				i = (i + 1) & mask;
+			}
+			this.names[i] = name;
+			this.children[i] = child;
+			this.count++;
+		}
+
+		private void resize() {
+			String[] oldNames = this.names;
+			Label[] oldChildren = this.children;
+			this.names = new String[oldNames.length * 2];
+			this.children = new Label[oldNames.length * 2];
+			this.count = 0;
+			for (int i = 0; i < oldNames.length; i++) {
+				if (oldNames[i] != null) {
+					put(oldNames[i], oldChildren[i]);
+				}
+			}
+		}
+
+		private static int hash(String name, int start, int end) {
+			int h = 0;
+			for (int i = start; i < end; i++) {
+				h = 31 * h + name.charAt(i);
+			}
+			return h ^ (h >>> 16);
+		}
+	}
+}
@@ -23,7 +23,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketException;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLSocket;
 
@@ -40,9 +42,8 @@ abstract class AbstractBcTlsSocket extends SSLSocket {
 
 	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("RawSocket");
 
-	private final Object closeLock = new Object();
 	private final boolean autoClose;
-	private boolean closed = false;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
 
 	protected final Socket socket;
 
@@ -58,24 +59,32 @@ abstract class AbstractBcTlsSocket extends SSLSocket {
 	}
 
 	@Override
-	public synchronized void close() throws IOException {
-		synchronized (closeLock) {
-			if (isClosed()) {
-				return;
-			}
-			if (autoClose) {
-				LOG.info("Closing socket");
-				this.socket.close();
-			}
-			closed = true;
+	public void close() throws IOException {
+		if (markClosed()) {
+			closeRawSocket();
+		}
+	}
+
+	/**
+	 * @return {@code true} for the one caller that switched to closed
+	 */
+	protected final boolean markClosed() {
+		return this.closed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Closes the raw socket, if it is closed along with this socket
+	 */
+	protected final void closeRawSocket() throws IOException {
+		if (autoClose) {
+			LOG.info("Closing socket");
+			this.socket.close();
 		}
 	}
 
 	@Override
 	public boolean isClosed() {
-		synchronized (closeLock) {
-			return closed;
-		}
+		return this.closed.get();
 	}
 
 	@Override
@@ -108,9 +117,91 @@ abstract class AbstractBcTlsSocket extends SSLSocket {
 		return this.socket.getLocalSocketAddress();
 	}
 
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		this.socket.setTcpNoDelay(on);
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return this.socket.getTcpNoDelay();
+	}
+
+	/**
+	 * Sets SO_TIMEOUT of the raw socket. A read timing out between records
+	 * throws a {@link java.net.SocketTimeoutException} and leaves the socket
+	 * usable. A timeout while the handshake runs or a record is partially
+	 * received fails the connection.
+	 */
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		this.socket.setSoTimeout(timeout);
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return this.socket.getSoTimeout();
+	}
+
+	@Override
+	public void setKeepAlive(boolean on) throws SocketException {
+		this.socket.setKeepAlive(on);
+	}
+
+	@Override
+	public boolean getKeepAlive() throws SocketException {
+		return this.socket.getKeepAlive();
+	}
+
+	@Override
+	public void setSendBufferSize(int size) throws SocketException {
+		this.socket.setSendBufferSize(size);
+	}
+
+	@Override
+	public int getSendBufferSize() throws SocketException {
+		return this.socket.getSendBufferSize();
+	}
+
+	@Override
+	public void setReceiveBufferSize(int size) throws SocketException {
+		this.socket.setReceiveBufferSize(size);
+	}
+
+	@Override
+	public int getReceiveBufferSize() throws SocketException {
+		return this.socket.getReceiveBufferSize();
+	}
+
+	@Override
+	public void setTrafficClass(int tc) throws SocketException {
+		this.socket.setTrafficClass(tc);
+	}
+
+	@Override
+	public int getTrafficClass() throws SocketException {
+		return this.socket.getTrafficClass();
+	}
+
+	@Override
+	public void setSoLinger(boolean on, int linger) throws SocketException {
+		this.socket.setSoLinger(on, linger);
+	}
+
+	@Override
+	public int getSoLinger() throws SocketException {
+		return this.socket.getSoLinger();
+	}
+
+	/**
+	 * A {@link SocketChannel} cannot be handed out, as selector readiness of
+	 * the raw channel does not reflect buffered tls records.
+	 * 
+	 * @return always {@code null}
+	 * @see BcTlsSocket#getByteChannel()
+	 */
 	@Override
 	public SocketChannel getChannel() {
-		// TODO implement!
 		return null;
 	}
 }
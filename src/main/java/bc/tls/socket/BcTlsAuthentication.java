@@ -53,6 +53,7 @@ public class BcTlsAuthentication implements TlsAuthentication {
 	 * Stores the tls server certificate chain
 	 */
 	private List<X509Certificate> serverCerts;
+	private org.bouncycastle.crypto.tls.Certificate serverCertificate;
 
 	private final X509TrustManager manager;
 	private final TlsCredentials credentials;
@@ -69,25 +70,48 @@ public class BcTlsAuthentication implements TlsAuthentication {
 
 	@Override
 	public void notifyServerCertificate(org.bouncycastle.crypto.tls.Certificate serverCertificate) throws IOException {
-		if (this.serverCerts == null) {
-			final org.bouncycastle.asn1.x509.Certificate[] serverCertList = serverCertificate.getCertificateList();
-			if (serverCertList != null) {
-				try {
-					this.serverCerts = new ArrayList<X509Certificate>();
-
-					for (final org.bouncycastle.asn1.x509.Certificate cert : serverCertList) {
-						this.serverCerts.add(Utility.loadX509Certificate(cert.getEncoded()));
-					}
-					// TODO find authType somehow
-					this.manager.checkServerTrusted(
-							this.serverCerts.toArray(new X509Certificate[this.serverCerts.size()]), "dummy");
-				} catch (CertificateException e) {
-					throw new IOException(e);
-				}
+		if (this.serverCerts == null && load(serverCertificate)) {
+			try {
+				// TODO find authType somehow
+				this.manager.checkServerTrusted(
+						this.serverCerts.toArray(new X509Certificate[this.serverCerts.size()]), "dummy");
+			} catch (CertificateException e) {
+				throw new IOException(e);
 			}
 		}
 	}
 
+	/**
+	 * Take over the chain of a resumed session, which was checked when the
+	 * session was established. A resumed handshake has no certificate
+	 * message.
+	 * 
+	 * @param serverCertificate
+	 *            the chain of the resumed session
+	 */
+	void restoreServerCertificate(org.bouncycastle.crypto.tls.Certificate serverCertificate) throws IOException {
+		if (this.serverCerts == null) {
+			load(serverCertificate);
+		}
+	}
+
+	/**
+	 * @return whether the chain holds any certificates
+	 */
+	private boolean load(org.bouncycastle.crypto.tls.Certificate serverCertificate) throws IOException {
+		final org.bouncycastle.asn1.x509.Certificate[] serverCertList = serverCertificate.getCertificateList();
+		if (serverCertList == null) {
+			return false;
+		}
+		List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		for (final org.bouncycastle.asn1.x509.Certificate cert : serverCertList) {
+			certs.add(Utility.loadX509Certificate(cert.getEncoded()));
+		}
+		this.serverCerts = certs;
+		this.serverCertificate = serverCertificate;
+		return true;
+	}
+
 	@Override
 	public TlsCredentials getClientCredentials(CertificateRequest certificateRequest) throws IOException {
 		return credentials;
@@ -96,4 +120,11 @@ public class BcTlsAuthentication implements TlsAuthentication {
 	public List<X509Certificate> getServerCerts() {
 		return serverCerts;
 	}
+
+	/**
+	 * @return the server's chain as received, {@code null} if none was
+	 */
+	org.bouncycastle.crypto.tls.Certificate getServerCertificate() {
+		return this.serverCertificate;
+	}
 }
@@ -0,0 +1,233 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Blocking channel view of a {@link BcTlsSocket}.
+ * <p>
+ * This is an adapter onto the socket's input and output streams only, it
+ * saves no copies over using the streams: the record layer still buffers and
+ * copies all data. Heap buffers are passed to the streams as they are,
+ * direct buffers are copied through a scratch array. Gathering writes
+ * coalesce small buffers into full records, scattering reads fill subsequent
+ * buffers only with plaintext that is already decrypted, so they never block
+ * once data has been read.
+ * <p>
+ * Reads and writes may be issued concurrently from one thread each.
+ *
+ * @author super-horst
+ *
+ */
+public class BcTlsByteChannel implements ByteChannel, GatheringByteChannel, ScatteringByteChannel {
+
+	private final BcTlsSocket socket;
+
+	private final Object readLock = new Object();
+	private final Object writeLock = new Object();
+
+	private byte[] readBuffer;
+	private byte[] writeBuffer;
+
+	/**
+	 * @param socket
+	 *            the socket to operate on, handshake is performed on first
+	 *            access if necessary
+	 */
+	BcTlsByteChannel(BcTlsSocket socket) {
+		this.socket = socket;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !this.socket.isClosed();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.socket.close();
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		synchronized (readLock) {
+			ensureOpen();
+			return readInto(dst, this.socket.getInputStream());
+		}
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts) throws IOException {
+		return read(dsts, 0, dsts.length);
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		checkBounds(dsts, offset, length);
+		synchronized (readLock) {
+			ensureOpen();
+			InputStream in = this.socket.getInputStream();
+
+			long total = 0;
+			for (int i = offset; i < offset + length; i++) {
+				ByteBuffer dst = dsts[i];
+				if (!dst.hasRemaining()) {
+					continue;
+				}
+				// only the first read may block
+				if (total > 0 && in.available() == 0) {
+					break;
+				}
+				int read = readInto(dst, in);
+				if (read < 0) {
+					return total == 0 ? -1 : total;
+				}
+				total += read;
+				if (dst.hasRemaining()) {
+					break;
+				}
+			}
+			return total;
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		synchronized (writeLock) {
+			ensureOpen();
+			OutputStream out = this.socket.getOutputStream();
+
+			int written = src.remaining();
+			if (src.hasArray()) {
+				out.write(src.array(), src.arrayOffset() + src.position(), written);
+				src.position(src.limit());
+			} else {
+				byte[] buffer = writeBuffer();
+				while (src.hasRemaining()) {
+					int chunk = Math.min(src.remaining(), buffer.length);
+					src.get(buffer, 0, chunk);
+					out.write(buffer, 0, chunk);
+				}
+			}
+			// do not leave data in a write combining buffer
+			out.flush();
+			return written;
+		}
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		checkBounds(srcs, offset, length);
+		synchronized (writeLock) {
+			ensureOpen();
+			OutputStream out = this.socket.getOutputStream();
+			byte[] buffer = writeBuffer();
+
+			long total = 0;
+			int buffered = 0;
+			for (int i = offset; i < offset + length; i++) {
+				ByteBuffer src = srcs[i];
+				if (buffered == 0 && src.hasArray() && src.remaining() >= buffer.length) {
+					// large enough for whole records on its own
+					int n = src.remaining();
+					out.write(src.array(), src.arrayOffset() + src.position(), n);
+					src.position(src.limit());
+					total += n;
+					continue;
+				}
+				while (src.hasRemaining()) {
+					int chunk = Math.min(src.remaining(), buffer.length - buffered);
+					src.get(buffer, buffered, chunk);
+					buffered += chunk;
+					total += chunk;
+					if (buffered == buffer.length) {
+						out.write(buffer, 0, buffered);
+						buffered = 0;
+					}
+				}
+			}
+			if (buffered > 0) {
+				out.write(buffer, 0, buffered);
+			}
+			out.flush();
+			return total;
+		}
+	}
+
+	private int readInto(ByteBuffer dst, InputStream in) throws IOException {
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		int read;
+		if (dst.hasArray()) {
+			read = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (read > 0) {
+				dst.position(dst.position() + read);
+			}
+		} else {
+			byte[] buffer = readBuffer();
+			read = in.read(buffer, 0, Math.min(dst.remaining(), buffer.length));
+			if (read > 0) {
+				dst.put(buffer, 0, read);
+			}
+		}
+		return read;
+	}
+
+	private byte[] readBuffer() {
+		if (this.readBuffer == null) {
+			this.readBuffer = new byte[BcTlsSession.MAX_FRAGMENT_LENGTH];
+		}
+		return this.readBuffer;
+	}
+
+	private byte[] writeBuffer() {
+		if (this.writeBuffer == null) {
+			this.writeBuffer = new byte[BcTlsSession.MAX_FRAGMENT_LENGTH];
+		}
+		return this.writeBuffer;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+		this.socket.startHandshake();
+	}
+
+	private static void checkBounds(ByteBuffer[] buffers, int offset, int length) {
+		if (offset < 0 || length < 0 || offset > buffers.length - length) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+}
@@ -20,9 +20,25 @@
 package bc.tls.socket;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Vector;
+
 import org.bouncycastle.crypto.tls.DefaultTlsClient;
+import org.bouncycastle.crypto.tls.ExtensionType;
+import org.bouncycastle.crypto.tls.NameType;
+import org.bouncycastle.crypto.tls.NewSessionTicket;
 import org.bouncycastle.crypto.tls.ProtocolVersion;
+import org.bouncycastle.crypto.tls.SecurityParameters;
+import org.bouncycastle.crypto.tls.ServerName;
+import org.bouncycastle.crypto.tls.ServerNameList;
+import org.bouncycastle.crypto.tls.SessionParameters;
 import org.bouncycastle.crypto.tls.TlsAuthentication;
+import org.bouncycastle.crypto.tls.TlsExtensionsUtils;
+import org.bouncycastle.crypto.tls.TlsSession;
+import org.bouncycastle.crypto.tls.TlsUtils;
+import org.bouncycastle.util.IPAddress;
+import org.bouncycastle.util.Integers;
 
 import bc.tls.BcSecurityPrototype;
 import bc.tls.CipherSuite;
@@ -42,15 +58,57 @@ public class BcTlsClient extends DefaultTlsClient {
 	private final int[] defaultCs;
 	private final BcSecurityPrototype securityPrototype;
 	private final String hostname;
+	private final int port;
+	private final ClientSessionCache sessionCache;
 
 	private TlsAuthentication authentication = null;
+	private TlsSession sessionToResume;
+	private NewSessionTicket newSessionTicket;
+	private volatile TlsSession establishedSession;
+	@SuppressWarnings("rawtypes")
+	private Hashtable serverExtensions;
+
+	private volatile boolean handshakeComplete = false;
+	private volatile boolean sessionResumed = false;
 
 	public BcTlsClient(BcSecurityPrototype prototype, String host) {
+		this(prototype, host, -1, null);
+	}
+
+	/**
+	 * @param prototype
+	 *            the security prototype
+	 * @param host
+	 *            the peer's host name
+	 * @param port
+	 *            the peer's port
+	 * @param sessionCache
+	 *            cache to resume sessions from and store them in, may be
+	 *            {@code null}
+	 */
+	public BcTlsClient(BcSecurityPrototype prototype, String host, int port, ClientSessionCache sessionCache) {
 		this.hostname = host;
+		this.port = port;
+		this.sessionCache = sessionCache;
 		this.securityPrototype = prototype;
 		this.defaultCs = CipherSuite.convert(this.securityPrototype.getCipherSuites());
 	}
 
+	@Override
+	public TlsSession getSessionToResume() {
+		if (this.sessionCache != null) {
+			this.sessionToResume = this.sessionCache.get(this.hostname, this.port, this.securityPrototype);
+		}
+		return this.sessionToResume;
+	}
+
+	@Override
+	public void notifySessionID(byte[] sessionID) {
+		super.notifySessionID(sessionID);
+		this.sessionResumed = this.sessionToResume != null && sessionID != null && sessionID.length > 0
+				&& Arrays.equals(sessionID, this.sessionToResume.getSessionID());
+	}
+
 	@Override
 	public int[] getCipherSuites() {
 		return defaultCs;
@@ -79,6 +137,45 @@ public class BcTlsClient extends DefaultTlsClient {
 
 	}
 
+	/**
+	 * Adds the server name indication, if the host is a name rather than an
+	 * address literal (RFC 6066, 3). With a session cache, session tickets
+	 * are requested and the ticket of the session to resume is sent (RFC
+	 * 5077, 3.1).
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public Hashtable getClientExtensions() throws IOException {
+		Hashtable extensions = TlsExtensionsUtils.ensureExtensionsInitialised(super.getClientExtensions());
+		if (this.hostname != null && !IPAddress.isValid(this.hostname)) {
+			String name = this.hostname.endsWith(".") ? this.hostname.substring(0, this.hostname.length() - 1)
+					: this.hostname;
+			Vector names = new Vector();
+			names.addElement(new ServerName(NameType.host_name, name));
+			TlsExtensionsUtils.addServerNameExtension(extensions, new ServerNameList(names));
+		}
+		if (this.sessionCache != null) {
+			byte[] ticket = TlsUtils.EMPTY_BYTES;
+			if (this.sessionToResume instanceof TicketedSession) {
+				ticket = ((TicketedSession) this.sessionToResume).getTicket();
+			}
+			extensions.put(Integers.valueOf(ExtensionType.session_ticket), ticket);
+		}
+		return extensions;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void processServerExtensions(Hashtable serverExtensions) throws IOException {
+		super.processServerExtensions(serverExtensions);
+		this.serverExtensions = serverExtensions;
+	}
+
+	@Override
+	public void notifyNewSessionTicket(NewSessionTicket newSessionTicket) throws IOException {
+		this.newSessionTicket = newSessionTicket;
+	}
+
 	@Override
 	public TlsAuthentication getAuthentication() throws IOException {
 		return this.authentication;
@@ -89,4 +186,97 @@ public class BcTlsClient extends DefaultTlsClient {
 		return ProtocolVersion.TLSv12;
 	}
 
+	@Override
+	public void notifyHandshakeComplete() throws IOException {
+		super.notifyHandshakeComplete();
+		if (this.sessionResumed) {
+			restorePeerCertificate();
+		}
+		this.handshakeComplete = true;
+		TlsSession session = this.context.getResumableSession();
+		if (this.newSessionTicket != null && this.newSessionTicket.getTicket().length > 0) {
+			session = ticketedSession();
+		}
+		this.establishedSession = session;
+		if (this.sessionCache != null) {
+			this.sessionCache.put(this.hostname, this.port, this.securityPrototype, session);
+		}
+	}
+
+	/**
+	 * A resumed handshake sends no certificates, the chain comes from the
+	 * resumed session
+	 */
+	private void restorePeerCertificate() throws IOException {
+		SessionParameters parameters = this.sessionToResume.exportSessionParameters();
+		if (parameters == null) {
+			return;
+		}
+		try {
+			if (parameters.getPeerCertificate() != null && this.authentication instanceof BcTlsAuthentication) {
+				((BcTlsAuthentication) this.authentication).restoreServerCertificate(parameters.getPeerCertificate());
+			}
+		} finally {
+			parameters.clear();
+		}
+	}
+
+	/**
+	 * The session to resume from the received ticket. Resumption keeps the
+	 * session id, otherwise a new one is chosen as the server's is
+	 * discarded (RFC 5077, 3.4).
+	 */
+	private TlsSession ticketedSession() throws IOException {
+		byte[] sessionID;
+		if (this.sessionResumed) {
+			sessionID = this.sessionToResume.getSessionID();
+		} else {
+			sessionID = new byte[32];
+			this.context.getSecureRandom().nextBytes(sessionID);
+		}
+		SessionParameters sessionParameters;
+		if (this.sessionResumed) {
+			sessionParameters = this.sessionToResume.exportSessionParameters();
+		} else {
+			SecurityParameters securityParameters = this.context.getSecurityParameters();
+			sessionParameters = new SessionParameters.Builder()
+					.setCipherSuite(securityParameters.getCipherSuite())
+					.setCompressionAlgorithm(securityParameters.getCompressionAlgorithm())
+					.setMasterSecret(org.bouncycastle.util.Arrays.clone(securityParameters.getMasterSecret()))
+					.setPeerCertificate(peerCertificate()).setServerExtensions(this.serverExtensions).build();
+		}
+		return new TicketedSession(sessionID, this.newSessionTicket.getTicket(), sessionParameters);
+	}
+
+	/**
+	 * @return the chain the server sent, {@code null} if unknown
+	 */
+	private org.bouncycastle.crypto.tls.Certificate peerCertificate() {
+		if (this.authentication instanceof BcTlsAuthentication) {
+			return ((BcTlsAuthentication) this.authentication).getServerCertificate();
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether the server accepted the offered session
+	 */
+	public boolean isSessionResumed() {
+		return this.sessionResumed;
+	}
+
+	/**
+	 * @return the session established by the handshake, {@code null} before
+	 *         it completed
+	 */
+	public TlsSession getResumableSession() {
+		return this.establishedSession;
+	}
+
+	/**
+	 * @return whether the peer's finished message has been verified
+	 */
+	public boolean isHandshakeComplete() {
+		return this.handshakeComplete;
+	}
 }
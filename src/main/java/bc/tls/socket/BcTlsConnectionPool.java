@@ -0,0 +1,751 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import bc.tls.BcSecurityPrototype;
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+
+/**
+ * Pool of handshaken client sockets of a {@link BcTlsSocketFactory}, keyed
+ * by peer, security prototype and its cipher suites. Sockets are handed out
+ * by {@link #acquire(String, int)} and have to be given back by
+ * {@link #release(BcTlsSocket)}, or by {@link #invalidate(BcTlsSocket)} if
+ * they must not be used again. The most recently released socket is reused
+ * first, so that surplus sockets age and are evicted.
+ * <p>
+ * Idle sockets are checked before they are handed out. Closed sockets and
+ * sockets the peer sent something on are discarded, sockets idle for longer
+ * than the validation interval are probed for a closed connection as well.
+ * <p>
+ * For hot endpoints, {@link #prewarm(String, int, BcSecurityPrototype, int)}
+ * keeps a number of idle sockets ready, so that requests rarely handshake
+ * inline. Sockets are connected in the background, by a few threads so that
+ * an unresponsive endpoint does not hold up the others, one socket per
+ * endpoint at a time. Every attempt is bounded by the prewarm timeout and
+ * failing endpoints are retried with a jittered exponential backoff.
+ *
+ * @author super-horst
+ *
+ */
+public class BcTlsConnectionPool implements Closeable {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("ConnectionPool");
+
+	public static final int DEFAULT_MAX_IDLE_PER_KEY = 8;
+	public static final int DEFAULT_MAX_TOTAL = 64;
+	/**
+	 * Default time in seconds an idle socket is kept
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60;
+	/**
+	 * Default idle time in milliseconds after which sockets are probed before
+	 * reuse
+	 */
+	public static final long DEFAULT_VALIDATE_AFTER = 1000;
+	/**
+	 * Delay in milliseconds before the first retry of a failing endpoint,
+	 * doubled with every further failure
+	 */
+	public static final long PREWARM_BACKOFF_MIN = 100;
+	/**
+	 * Maximum delay in milliseconds between retries of a failing endpoint
+	 */
+	public static final long PREWARM_BACKOFF_MAX = 30000;
+	/**
+	 * Default time in milliseconds a background connection may take,
+	 * including its handshake
+	 */
+	public static final long DEFAULT_PREWARM_TIMEOUT = 10000;
+	/**
+	 * Number of threads connecting in the background
+	 */
+	static final int PREWARM_THREADS = 4;
+
+	private static final ThreadFactory DAEMONS = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "bc-tls-pool");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private final BcTlsSocketFactory factory;
+	private final int maxIdlePerKey;
+	private final int maxTotal;
+	private final long idleTimeoutMillis;
+	private volatile long validateAfterMillis = DEFAULT_VALIDATE_AFTER;
+	private volatile long prewarmTimeoutMillis = DEFAULT_PREWARM_TIMEOUT;
+
+	private final Object lock = new Object();
+	private final Map<Key, Deque<Idle>> idle = new HashMap<Key, Deque<Idle>>();
+	private final Map<BcTlsSocket, Key> leased = new IdentityHashMap<BcTlsSocket, Key>();
+	private int idleCount = 0;
+	private int pending = 0;
+	private boolean closed = false;
+
+	private final Map<Key, Endpoint> endpoints = new HashMap<Key, Endpoint>();
+
+	private final ScheduledExecutorService evictor;
+	private ScheduledExecutorService warmer;
+
+	private final LongAdder created = new LongAdder();
+	private final LongAdder reused = new LongAdder();
+	private final LongAdder stale = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+	private final LongAdder warmed = new LongAdder();
+	private final LongAdder warmFailures = new LongAdder();
+
+	/**
+	 * Pool with {@link #DEFAULT_MAX_IDLE_PER_KEY}, {@link #DEFAULT_MAX_TOTAL}
+	 * and {@link #DEFAULT_IDLE_TIMEOUT}
+	 */
+	public BcTlsConnectionPool(BcTlsSocketFactory factory) {
+		this(factory, DEFAULT_MAX_IDLE_PER_KEY, DEFAULT_MAX_TOTAL, DEFAULT_IDLE_TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param factory
+	 *            factory creating the sockets
+	 * @param maxIdlePerKey
+	 *            maximum number of idle sockets per peer
+	 * @param maxTotal
+	 *            maximum number of leased and idle sockets
+	 * @param idleTimeout
+	 *            time after which idle sockets are closed
+	 * @param unit
+	 *            unit of the timeout
+	 */
+	public BcTlsConnectionPool(BcTlsSocketFactory factory, int maxIdlePerKey, int maxTotal, long idleTimeout,
+			TimeUnit unit) {
+		if (maxIdlePerKey < 0 || maxTotal <= 0 || idleTimeout <= 0) {
+			throw new IllegalArgumentException("Invalid pool limits");
+		}
+		this.factory = factory;
+		this.maxIdlePerKey = maxIdlePerKey;
+		this.maxTotal = maxTotal;
+		this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(DAEMONS);
+		long period = Math.max(this.idleTimeoutMillis / 2, 1);
+		this.evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+				replenishAll();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param interval
+	 *            idle time after which a socket is probed before reuse,
+	 *            {@code 0} probes every socket
+	 * @param unit
+	 *            unit of the interval
+	 */
+	public void setValidateAfter(long interval, TimeUnit unit) {
+		this.validateAfterMillis = unit.toMillis(interval);
+	}
+
+	/**
+	 * @param timeout
+	 *            time a background connection may take, including its
+	 *            handshake, before it is given up and retried
+	 * @param unit
+	 *            unit of the timeout
+	 */
+	public void setPrewarmTimeout(long timeout, TimeUnit unit) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Prewarm timeout must be positive");
+		}
+		this.prewarmTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Hand out a socket to the peer using the factory's default prototype
+	 *
+	 * @see #acquire(String, int, BcSecurityPrototype)
+	 */
+	public BcTlsSocket acquire(String host, int port) throws IOException {
+		return acquire(host, port, this.factory.getDefaultSecurityPrototype());
+	}
+
+	/**
+	 * Hand out an idle socket to the peer or create and handshake a new one.
+	 * If the pool is exhausted, waits for a socket to be released up to the
+	 * factory's default timeout.
+	 *
+	 * @param host
+	 *            the peer's host
+	 * @param port
+	 *            the peer's port
+	 * @param prototype
+	 *            the prototype to connect with
+	 * @return a handshaken socket
+	 * @throws IOException
+	 *             if no socket could be connected or the pool is exhausted
+	 */
+	public BcTlsSocket acquire(String host, int port, BcSecurityPrototype prototype) throws IOException {
+		Key key = new Key(host, port, prototype);
+		long deadline = System.currentTimeMillis() + this.factory.getDefaultTimeout();
+		while (true) {
+			Idle candidate = null;
+			BcTlsSocket surplus = null;
+			synchronized (this.lock) {
+				ensureOpen();
+				candidate = pollIdle(key);
+				if (candidate == null) {
+					if (this.leased.size() + this.pending + this.idleCount >= this.maxTotal) {
+						surplus = evictOldest();
+					}
+					if (surplus != null || this.leased.size() + this.pending + this.idleCount < this.maxTotal) {
+						this.pending++;
+					} else {
+						awaitRelease(deadline);
+						continue;
+					}
+				} else {
+					this.leased.put(candidate.socket, key);
+				}
+			}
+			replenish(key);
+
+			if (candidate == null) {
+				closeQuietly(surplus);
+				return connect(key);
+			}
+
+			boolean probe = System.currentTimeMillis() - candidate.since >= this.validateAfterMillis;
+			if (candidate.socket.isReusable(probe)) {
+				this.reused.increment();
+				return candidate.socket;
+			}
+			LOG.debug(String.format("Discarding stale connection to %s:%d", host, port));
+			this.stale.increment();
+			invalidate(candidate.socket);
+		}
+	}
+
+	private BcTlsSocket connect(Key key) throws IOException {
+		BcTlsSocket socket = null;
+		try {
+			socket = this.factory.createSocket(key.host, key.port, key.prototype);
+			socket.startHandshake();
+			this.created.increment();
+		} catch (IOException | RuntimeException e) {
+			synchronized (this.lock) {
+				this.pending--;
+				this.lock.notifyAll();
+			}
+			closeQuietly(socket);
+			throw e;
+		}
+		synchronized (this.lock) {
+			this.pending--;
+			this.leased.put(socket, key);
+		}
+		return socket;
+	}
+
+	/**
+	 * Keep idle sockets to the peer ready, using the factory's default
+	 * prototype
+	 *
+	 * @see #prewarm(String, int, BcSecurityPrototype, int)
+	 */
+	public void prewarm(String host, int port, int target) {
+		prewarm(host, port, this.factory.getDefaultSecurityPrototype(), target);
+	}
+
+	/**
+	 * Keep a number of idle sockets to the peer ready. Sockets are connected
+	 * in the background, within the limits of the pool.
+	 *
+	 * @param host
+	 *            the peer's host
+	 * @param port
+	 *            the peer's port
+	 * @param prototype
+	 *            the prototype to connect with
+	 * @param target
+	 *            number of idle sockets to keep, {@code 0} stops warming
+	 */
+	public void prewarm(String host, int port, BcSecurityPrototype prototype, int target) {
+		if (target < 0) {
+			throw new IllegalArgumentException("Negative target: " + target);
+		}
+		Key key = new Key(host, port, prototype);
+		synchronized (this.lock) {
+			if (this.closed) {
+				throw new IllegalStateException("Connection pool is closed");
+			}
+			if (target == 0) {
+				this.endpoints.remove(key);
+				return;
+			}
+			Endpoint endpoint = this.endpoints.get(key);
+			if (endpoint == null) {
+				endpoint = new Endpoint(key);
+				this.endpoints.put(key, endpoint);
+			}
+			endpoint.target = target;
+			if (this.warmer == null) {
+				this.warmer = Executors.newScheduledThreadPool(PREWARM_THREADS, DAEMONS);
+			}
+		}
+		replenish(key);
+	}
+
+	private void replenish(Key key) {
+		Endpoint endpoint;
+		synchronized (this.lock) {
+			endpoint = this.endpoints.get(key);
+		}
+		if (endpoint != null) {
+			schedule(endpoint, 0);
+		}
+	}
+
+	private void replenishAll() {
+		List<Endpoint> all;
+		synchronized (this.lock) {
+			all = new ArrayList<Endpoint>(this.endpoints.values());
+		}
+		for (Endpoint endpoint : all) {
+			schedule(endpoint, 0);
+		}
+	}
+
+	private void schedule(final Endpoint endpoint, long delayMillis) {
+		synchronized (this.lock) {
+			if (this.closed || endpoint.scheduled || this.endpoints.get(endpoint.key) != endpoint) {
+				return;
+			}
+			endpoint.scheduled = true;
+			this.warmer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					warm(endpoint);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Connect one socket for the endpoint, if it lacks idle sockets, and
+	 * continue until the target is reached
+	 */
+	private void warm(Endpoint endpoint) {
+		Key key = endpoint.key;
+		synchronized (this.lock) {
+			endpoint.scheduled = false;
+			if (this.closed || this.endpoints.get(key) != endpoint) {
+				return;
+			}
+			Deque<Idle> sockets = this.idle.get(key);
+			int ready = sockets == null ? 0 : sockets.size();
+			if (ready >= Math.min(endpoint.target, this.maxIdlePerKey)
+					|| this.leased.size() + this.pending + this.idleCount >= this.maxTotal) {
+				// checked again on acquire and periodically
+				return;
+			}
+			this.pending++;
+		}
+
+		BcTlsSocket socket = null;
+		try {
+			socket = this.factory.createSocket(key.host, key.port, key.prototype, this.prewarmTimeoutMillis);
+			socket.startHandshake();
+			this.created.increment();
+		} catch (IOException | RuntimeException e) {
+			synchronized (this.lock) {
+				this.pending--;
+				this.lock.notifyAll();
+			}
+			closeQuietly(socket);
+			this.warmFailures.increment();
+			long delay = backoff(++endpoint.failures);
+			LOG.debug(String.format("Unable to warm connection to %s:%d, retrying in %d ms", key.host, key.port,
+					delay));
+			schedule(endpoint, delay);
+			return;
+		}
+
+		boolean keep;
+		synchronized (this.lock) {
+			this.pending--;
+			keep = !this.closed;
+			if (keep) {
+				Deque<Idle> sockets = this.idle.get(key);
+				if (sockets == null) {
+					sockets = new ArrayDeque<Idle>();
+					this.idle.put(key, sockets);
+				}
+				sockets.addFirst(new Idle(socket, System.currentTimeMillis()));
+				this.idleCount++;
+				endpoint.failures = 0;
+			}
+			this.lock.notifyAll();
+		}
+		if (!keep) {
+			closeQuietly(socket);
+			return;
+		}
+		this.warmed.increment();
+		schedule(endpoint, 0);
+	}
+
+	/**
+	 * @return exponential delay for the number of failures, jittered between
+	 *         half and the full delay
+	 */
+	static long backoff(int failures) {
+		long delay = PREWARM_BACKOFF_MIN << Math.min(failures - 1, 20);
+		delay = Math.min(delay, PREWARM_BACKOFF_MAX);
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	private void awaitRelease(long deadline) throws IOException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new IOException(String.format("Connection pool exhausted, %d sockets in use", this.maxTotal));
+		}
+		try {
+			this.lock.wait(remaining);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a pooled connection", e);
+		}
+	}
+
+	/**
+	 * Give a socket back for reuse. The socket is closed instead, if it is
+	 * not reusable, there are enough idle sockets to the peer or the pool is
+	 * closed.
+	 *
+	 * @param socket
+	 *            a socket acquired from this pool
+	 * @throws IllegalArgumentException
+	 *             if the socket is not leased from this pool
+	 */
+	public void release(BcTlsSocket socket) {
+		boolean keep;
+		synchronized (this.lock) {
+			Key key = this.leased.remove(socket);
+			if (key == null) {
+				throw new IllegalArgumentException("Socket is not leased from this pool");
+			}
+			keep = !this.closed && socket.isReusable(false);
+			if (keep) {
+				Deque<Idle> sockets = this.idle.get(key);
+				if (sockets == null) {
+					sockets = new ArrayDeque<Idle>();
+					this.idle.put(key, sockets);
+				}
+				keep = sockets.size() < this.maxIdlePerKey;
+				if (keep) {
+					sockets.addFirst(new Idle(socket, System.currentTimeMillis()));
+					this.idleCount++;
+				}
+			}
+			this.lock.notifyAll();
+		}
+		if (!keep) {
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * Close a socket that must not be reused, e.g. after an i/o error
+	 *
+	 * @param socket
+	 *            a socket acquired from this pool
+	 */
+	public void invalidate(BcTlsSocket socket) {
+		synchronized (this.lock) {
+			if (this.leased.remove(socket) == null) {
+				throw new IllegalArgumentException("Socket is not leased from this pool");
+			}
+			this.lock.notifyAll();
+		}
+		closeQuietly(socket);
+	}
+
+	/**
+	 * Close sockets idle for longer than the idle timeout, done periodically
+	 *
+	 * @return number of closed sockets
+	 */
+	public int evictIdle() {
+		long limit = System.currentTimeMillis() - this.idleTimeoutMillis;
+		List<BcTlsSocket> expired = new ArrayList<BcTlsSocket>();
+		synchronized (this.lock) {
+			Iterator<Deque<Idle>> queues = this.idle.values().iterator();
+			while (queues.hasNext()) {
+				Deque<Idle> sockets = queues.next();
+				// the least recently released are last
+				while (!sockets.isEmpty() && sockets.peekLast().since <= limit) {
+					expired.add(sockets.pollLast().socket);
+				}
+				if (sockets.isEmpty()) {
+					queues.remove();
+				}
+			}
+			this.idleCount -= expired.size();
+			this.evicted.add(expired.size());
+			if (!expired.isEmpty()) {
+				this.lock.notifyAll();
+			}
+		}
+		for (BcTlsSocket socket : expired) {
+			closeQuietly(socket);
+		}
+		return expired.size();
+	}
+
+	/**
+	 * Close all idle sockets and stop pooling, released sockets are closed
+	 * from now on
+	 */
+	@Override
+	public void close() {
+		List<BcTlsSocket> sockets = new ArrayList<BcTlsSocket>();
+		synchronized (this.lock) {
+			this.closed = true;
+			for (Deque<Idle> queue : this.idle.values()) {
+				for (Idle entry : queue) {
+					sockets.add(entry.socket);
+				}
+			}
+			this.idle.clear();
+			this.idleCount = 0;
+			this.endpoints.clear();
+			this.lock.notifyAll();
+			if (this.warmer != null) {
+				this.warmer.shutdownNow();
+			}
+		}
+		this.evictor.shutdownNow();
+		for (BcTlsSocket socket : sockets) {
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * @return number of idle sockets
+	 */
+	public int getIdleCount() {
+		synchronized (this.lock) {
+			return this.idleCount;
+		}
+	}
+
+	/**
+	 * @return number of handed out sockets
+	 */
+	public int getLeasedCount() {
+		synchronized (this.lock) {
+			return this.leased.size();
+		}
+	}
+
+	/**
+	 * @return number of newly connected sockets
+	 */
+	public long getCreatedCount() {
+		return this.created.sum();
+	}
+
+	/**
+	 * @return number of idle sockets handed out again
+	 */
+	public long getReusedCount() {
+		return this.reused.sum();
+	}
+
+	/**
+	 * @return number of idle sockets discarded as stale
+	 */
+	public long getStaleCount() {
+		return this.stale.sum();
+	}
+
+	/**
+	 * @return number of idle sockets closed to make room or after the idle
+	 *         timeout
+	 */
+	public long getEvictionCount() {
+		return this.evicted.sum();
+	}
+
+	/**
+	 * @return number of sockets connected in the background
+	 */
+	public long getWarmedCount() {
+		return this.warmed.sum();
+	}
+
+	/**
+	 * @return number of failed background connects
+	 */
+	public long getWarmFailureCount() {
+		return this.warmFailures.sum();
+	}
+
+	private void ensureOpen() throws IOException {
+		if (this.closed) {
+			throw new IOException("Connection pool is closed");
+		}
+	}
+
+	private Idle pollIdle(Key key) {
+		Deque<Idle> sockets = this.idle.get(key);
+		if (sockets == null) {
+			return null;
+		}
+		Idle entry = sockets.pollFirst();
+		if (sockets.isEmpty()) {
+			this.idle.remove(key);
+		}
+		if (entry != null) {
+			this.idleCount--;
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the least recently released socket of any peer, removed from
+	 *         the pool, or {@code null} if none is idle
+	 */
+	private BcTlsSocket evictOldest() {
+		Key oldestKey = null;
+		Idle oldest = null;
+		for (Map.Entry<Key, Deque<Idle>> e : this.idle.entrySet()) {
+			Idle last = e.getValue().peekLast();
+			if (last != null && (oldest == null || last.since < oldest.since)) {
+				oldest = last;
+				oldestKey = e.getKey();
+			}
+		}
+		if (oldest == null) {
+			return null;
+		}
+		Deque<Idle> sockets = this.idle.get(oldestKey);
+		sockets.pollLast();
+		if (sockets.isEmpty()) {
+			this.idle.remove(oldestKey);
+		}
+		this.idleCount--;
+		this.evicted.increment();
+		return oldest.socket;
+	}
+
+	private static void closeQuietly(BcTlsSocket socket) {
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			LOG.debug("Unable to close pooled socket", e);
+		}
+	}
+
+	/**
+	 * Peer to keep idle sockets ready for, guarded by the pool's lock except
+	 * for the failures only touched by its single warming task
+	 */
+	private static final class Endpoint {
+
+		final Key key;
+		int target;
+		boolean scheduled = false;
+		int failures = 0;
+
+		Endpoint(Key key) {
+			this.key = key;
+		}
+	}
+
+	private static final class Idle {
+
+		final BcTlsSocket socket;
+		final long since;
+
+		Idle(BcTlsSocket socket, long since) {
+			this.socket = socket;
+			this.since = since;
+		}
+	}
+
+	private static final class Key {
+
+		private final String host;
+		private final int port;
+		private final BcSecurityPrototype prototype;
+		private final List<String> cipherSuites;
+
+		Key(String host, int port, BcSecurityPrototype prototype) {
+			this.host = host.toLowerCase(Locale.ROOT);
+			this.port = port;
+			this.prototype = prototype;
+			this.cipherSuites = Arrays.asList(prototype.getCipherSuites());
+		}
+
+		@Override
+		public int hashCode() {
+			int h = this.host.hashCode();
+			h = 31 * h + this.port;
+			h = 31 * h + System.identityHashCode(this.prototype);
+			return 31 * h + this.cipherSuites.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.port == other.port && this.prototype == other.prototype && this.host.equals(other.host)
+					&& this.cipherSuites.equals(other.cipherSuites);
+		}
+	}
+}
@@ -54,6 +54,8 @@ public class BcTlsContextSpi extends SSLContextSpi {
 	private SecureRandom random;
 	BcSecurityPrototype securityPrototype;
 
+	private final BcTlsSessionContext serverSessionContext = new BcTlsSessionContext();
+
 	@Override
 	protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
 		if (isInitialised) {
@@ -74,12 +76,14 @@ public class BcTlsContextSpi extends SSLContextSpi {
 
 	@Override
 	protected SSLServerSocketFactory engineGetServerSocketFactory() {
-		return new BcTlsServerSocketFactory(this.securityPrototype);
+		BcTlsServerSocketFactory factory = new BcTlsServerSocketFactory(this.securityPrototype);
+		factory.setConfigProperty(SocketFactoryManager.KEY_SERVER_SESSION_CONTEXT, this.serverSessionContext);
+		return factory;
 	}
 
 	@Override
 	protected SSLSessionContext engineGetServerSessionContext() {
-		throw new UnsupportedOperationException("Not implemented");
+		return this.serverSessionContext;
 	}
 
 	@Override
@@ -94,12 +98,12 @@ public class BcTlsContextSpi extends SSLContextSpi {
 
 	@Override
 	protected SSLEngine engineCreateSSLEngine() {
-		throw new AbstractMethodError("Not implemented");
+		return new BcTlsEngine(this.securityPrototype);
 	}
 
 	@Override
 	protected SSLEngine engineCreateSSLEngine(String host, int port) {
-		throw new AbstractMethodError("Not implemented");
+		return new BcTlsEngine(this.securityPrototype, host, port);
 	}
 
 }
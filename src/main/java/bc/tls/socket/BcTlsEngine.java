@@ -0,0 +1,531 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
+
+import org.bouncycastle.crypto.tls.TlsClientProtocol;
+import org.bouncycastle.crypto.tls.TlsPeer;
+import org.bouncycastle.crypto.tls.TlsProtocol;
+import org.bouncycastle.crypto.tls.TlsServerProtocol;
+
+import bc.tls.BcSecurityPrototype;
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+
+/**
+ * BC engine implementation, driving the tls protocol in non-blocking mode.
+ * <p>
+ * Every call to {@link #unwrap(ByteBuffer, ByteBuffer[], int, int)}
+ * consumes at most one complete record, every call to
+ * {@link #wrap(ByteBuffer[], int, int, ByteBuffer)} produces at most one
+ * record of application data. There are no delegated tasks, all
+ * cryptographic work is done inline.
+ * <p>
+ * The underlying protocol does not support half-closed connections: closing
+ * either direction closes the whole connection and queues a
+ * {@code close_notify} alert to be wrapped.
+ *
+ * @author super-horst
+ */
+public class BcTlsEngine extends SSLEngine {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("Engine");
+
+	private boolean clientMode;
+	private ClientAuthMode clientAuthMode;
+
+	private boolean enableSessionCreation = true;
+
+	private String[] supportedCipherSuites = new String[0];
+	private String[] enabledCipherSuites = new String[0];
+
+	private String[] supportedProtocols = new String[0];
+	private String[] enabledProtocols = new String[0];
+
+	private TlsProtocol protocol;
+	private TlsPeer peer;
+	private SSLSession session;
+
+	private boolean handshaking = false;
+	private boolean inboundClosed = false;
+	private boolean outboundClosed = false;
+
+	/**
+	 * Scratch buffers between the caller's {@link ByteBuffer}s and the
+	 * protocol's byte array interface
+	 */
+	private final byte[] applicationBuffer = new byte[BcTlsSession.MAX_FRAGMENT_LENGTH];
+	private final byte[] packetBuffer = new byte[BcTlsSession.MAX_RECORD_LENGTH];
+
+	private final BcSecurityPrototype securityPrototype;
+
+	/**
+	 * @param prototype
+	 *            the security prototype for this engine
+	 */
+	public BcTlsEngine(BcSecurityPrototype prototype) {
+		super();
+		this.securityPrototype = prototype;
+	}
+
+	/**
+	 * @param prototype
+	 *            the security prototype for this engine
+	 * @param host
+	 *            the advisory peer host
+	 * @param port
+	 *            the advisory peer port
+	 */
+	public BcTlsEngine(BcSecurityPrototype prototype, String host, int port) {
+		super(host, port);
+		this.securityPrototype = prototype;
+	}
+
+	@Override
+	public synchronized void beginHandshake() throws SSLException {
+		if (this.protocol != null) {
+			if (isHandshakeComplete()) {
+				throw new SSLException("Renegotiation is not supported");
+			}
+			return;
+		}
+		if (this.inboundClosed || this.outboundClosed) {
+			throw new SSLException("Engine is closed");
+		}
+
+		try {
+			if (this.clientMode) {
+				LOG.debug("Starting handshake in client mode");
+				TlsClientProtocol clientProtocol = new TlsClientProtocol(this.securityPrototype.makeRandom());
+				BcTlsClient client = new BcTlsClient(this.securityPrototype, getPeerHost());
+				this.protocol = clientProtocol;
+				this.peer = client;
+				clientProtocol.connect(client);
+			} else {
+				LOG.debug("Starting handshake in server mode");
+				TlsServerProtocol serverProtocol = new TlsServerProtocol(this.securityPrototype.makeRandom());
+				BcTlsServer server = new BcTlsServer(this.securityPrototype, getPeerHost());
+				this.protocol = serverProtocol;
+				this.peer = server;
+				serverProtocol.accept(server);
+			}
+		} catch (IOException e) {
+			throw toSSLException(e);
+		}
+		this.handshaking = true;
+	}
+
+	@Override
+	public synchronized SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst)
+			throws SSLException {
+		checkBuffers(srcs, offset, length);
+		if (dst.isReadOnly()) {
+			throw new ReadOnlyBufferException();
+		}
+
+		if (isOutboundDone()) {
+			return result(Status.CLOSED, 0, 0);
+		}
+		if (this.protocol == null) {
+			beginHandshake();
+		}
+
+		int pending = this.protocol.getAvailableOutputBytes();
+		if (pending > 0) {
+			if (dst.remaining() < Math.min(pending, BcTlsSession.MAX_RECORD_LENGTH)) {
+				return result(Status.BUFFER_OVERFLOW, 0, 0);
+			}
+			int produced = drainNetworkData(dst);
+			return result(isOutboundDone() ? Status.CLOSED : Status.OK, 0, produced);
+		}
+
+		if (this.protocol.isClosed()) {
+			return result(Status.CLOSED, 0, 0);
+		}
+		if (!isHandshakeComplete()) {
+			return result(Status.OK, 0, 0);
+		}
+
+		int chunk = (int) Math.min(remaining(srcs, offset, length), BcTlsSession.MAX_FRAGMENT_LENGTH);
+		if (chunk == 0) {
+			return result(Status.OK, 0, 0);
+		}
+		if (dst.remaining() < chunk + BcTlsSession.RECORD_HEADER_LENGTH + BcTlsSession.MAX_RECORD_EXPANSION) {
+			return result(Status.BUFFER_OVERFLOW, 0, 0);
+		}
+
+		gather(srcs, offset, length, this.applicationBuffer, chunk);
+		try {
+			this.protocol.offerOutput(this.applicationBuffer, 0, chunk);
+		} catch (IOException e) {
+			throw toSSLException(e);
+		}
+
+		return result(Status.OK, chunk, drainNetworkData(dst));
+	}
+
+	@Override
+	public synchronized SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length)
+			throws SSLException {
+		checkBuffers(dsts, offset, length);
+		for (int i = offset; i < offset + length; i++) {
+			if (dsts[i].isReadOnly()) {
+				throw new ReadOnlyBufferException();
+			}
+		}
+
+		if (isInboundDone()) {
+			return result(Status.CLOSED, 0, 0);
+		}
+		if (this.protocol == null) {
+			beginHandshake();
+		}
+
+		// leftovers of a previous record come first
+		if (this.protocol.getAvailableInputBytes() > 0) {
+			int produced = drainApplicationData(dsts, offset, length);
+			if (produced == 0) {
+				return result(Status.BUFFER_OVERFLOW, 0, 0);
+			}
+			return result(Status.OK, 0, produced);
+		}
+
+		if (src.remaining() < BcTlsSession.RECORD_HEADER_LENGTH) {
+			return result(Status.BUFFER_UNDERFLOW, 0, 0);
+		}
+
+		int position = src.position();
+		int recordLength = BcTlsSession.RECORD_HEADER_LENGTH
+				+ (((src.get(position + 3) & 0xFF) << 8) | (src.get(position + 4) & 0xFF));
+		if (recordLength > BcTlsSession.MAX_RECORD_LENGTH) {
+			throw new SSLException(String.format("Record length exceeds maximum: %d", recordLength));
+		}
+		if (src.remaining() < recordLength) {
+			return result(Status.BUFFER_UNDERFLOW, 0, 0);
+		}
+
+		if (isHandshakeComplete() && remaining(dsts, offset, length) < Math.min(
+				recordLength - BcTlsSession.RECORD_HEADER_LENGTH, BcTlsSession.MAX_FRAGMENT_LENGTH)) {
+			return result(Status.BUFFER_OVERFLOW, 0, 0);
+		}
+
+		// offerInput(...) only takes whole arrays
+		byte[] record = new byte[recordLength];
+		src.get(record);
+		try {
+			this.protocol.offerInput(record);
+		} catch (IOException e) {
+			throw toSSLException(e);
+		}
+
+		int produced = drainApplicationData(dsts, offset, length);
+		return result(isInboundDone() ? Status.CLOSED : Status.OK, recordLength, produced);
+	}
+
+	@Override
+	public Runnable getDelegatedTask() {
+		return null;
+	}
+
+	@Override
+	public synchronized void closeInbound() throws SSLException {
+		if (this.inboundClosed) {
+			return;
+		}
+		this.inboundClosed = true;
+
+		if (this.protocol != null && !this.protocol.isClosed()) {
+			closeProtocol();
+			throw new SSLException("Inbound closed before receiving peer's close_notify: possible truncation attack");
+		}
+	}
+
+	@Override
+	public synchronized boolean isInboundDone() {
+		if (this.inboundClosed) {
+			return true;
+		}
+		return this.protocol != null && this.protocol.isClosed() && this.protocol.getAvailableInputBytes() == 0;
+	}
+
+	@Override
+	public synchronized void closeOutbound() {
+		if (this.outboundClosed) {
+			return;
+		}
+		this.outboundClosed = true;
+
+		if (this.protocol != null && !this.protocol.isClosed()) {
+			closeProtocol();
+		}
+	}
+
+	@Override
+	public synchronized boolean isOutboundDone() {
+		if (this.protocol == null) {
+			return this.outboundClosed;
+		}
+		return (this.outboundClosed || this.protocol.isClosed()) && this.protocol.getAvailableOutputBytes() == 0;
+	}
+
+	@Override
+	public synchronized HandshakeStatus getHandshakeStatus() {
+		if (this.protocol == null) {
+			return HandshakeStatus.NOT_HANDSHAKING;
+		}
+		if (this.protocol.getAvailableOutputBytes() > 0) {
+			return HandshakeStatus.NEED_WRAP;
+		}
+		if (!this.protocol.isClosed() && !isHandshakeComplete()) {
+			return HandshakeStatus.NEED_UNWRAP;
+		}
+		return HandshakeStatus.NOT_HANDSHAKING;
+	}
+
+	@Override
+	public synchronized SSLSession getSession() {
+		if (this.session == null) {
+			if (!isHandshakeComplete()) {
+				// no session yet, hand out a placeholder
+				return new BcTlsSession(null, getPeerHost(), getPeerPort());
+			}
+			this.session = new BcTlsSession(this.peer, getPeerHost(), getPeerPort());
+		}
+		return this.session;
+	}
+
+	/**
+	 * Close the protocol, which queues a {@code close_notify} alert
+	 */
+	private void closeProtocol() {
+		LOG.debug("Closing tls protocol");
+		try {
+			this.protocol.close();
+		} catch (IOException e) {
+			LOG.error("Error closing tls protocol", e);
+		}
+	}
+
+	private boolean isHandshakeComplete() {
+		if (this.peer instanceof BcTlsClient) {
+			return ((BcTlsClient) this.peer).isHandshakeComplete();
+		} else if (this.peer instanceof BcTlsServer) {
+			return ((BcTlsServer) this.peer).isHandshakeComplete();
+		}
+		return false;
+	}
+
+	/**
+	 * Build a result, reporting {@link HandshakeStatus#FINISHED} exactly once
+	 * after the handshake has completed and all handshake data has been
+	 * wrapped.
+	 */
+	private SSLEngineResult result(Status status, int consumed, int produced) {
+		HandshakeStatus handshakeStatus = getHandshakeStatus();
+		if (this.handshaking && handshakeStatus == HandshakeStatus.NOT_HANDSHAKING && isHandshakeComplete()) {
+			this.handshaking = false;
+			handshakeStatus = HandshakeStatus.FINISHED;
+			LOG.info(String.format("Handshake successful, connected to %s", getPeerHost()));
+		}
+		return new SSLEngineResult(status, handshakeStatus, consumed, produced);
+	}
+
+	private int drainNetworkData(ByteBuffer dst) {
+		int produced = 0;
+		while (this.protocol.getAvailableOutputBytes() > 0 && dst.hasRemaining()) {
+			int read = this.protocol.readOutput(this.packetBuffer, 0,
+					Math.min(this.packetBuffer.length, dst.remaining()));
+			dst.put(this.packetBuffer, 0, read);
+			produced += read;
+		}
+		return produced;
+	}
+
+	private int drainApplicationData(ByteBuffer[] dsts, int offset, int length) {
+		int produced = 0;
+		for (int i = offset; i < offset + length && this.protocol.getAvailableInputBytes() > 0; i++) {
+			ByteBuffer dst = dsts[i];
+			while (dst.hasRemaining() && this.protocol.getAvailableInputBytes() > 0) {
+				int read = this.protocol.readInput(this.applicationBuffer, 0,
+						Math.min(this.applicationBuffer.length, dst.remaining()));
+				dst.put(this.applicationBuffer, 0, read);
+				produced += read;
+			}
+		}
+		return produced;
+	}
+
+	private static void gather(ByteBuffer[] srcs, int offset, int length, byte[] target, int count) {
+		int copied = 0;
+		for (int i = offset; i < offset + length && copied < count; i++) {
+			ByteBuffer src = srcs[i];
+			int n = Math.min(src.remaining(), count - copied);
+			src.get(target, copied, n);
+			copied += n;
+		}
+	}
+
+	private static long remaining(ByteBuffer[] buffers, int offset, int length) {
+		long remaining = 0;
+		for (int i = offset; i < offset + length; i++) {
+			remaining += buffers[i].remaining();
+		}
+		return remaining;
+	}
+
+	private static void checkBuffers(ByteBuffer[] buffers, int offset, int length) {
+		if (buffers == null) {
+			throw new IllegalArgumentException("Buffers must not be null");
+		}
+		if (offset < 0 || length < 0 || offset > buffers.length - length) {
+			throw new IndexOutOfBoundsException();
+		}
+		for (int i = offset; i < offset + length; i++) {
+			if (buffers[i] == null) {
+				throw new IllegalArgumentException("Buffer must not be null: " + i);
+			}
+		}
+	}
+
+	private SSLException toSSLException(IOException e) {
+		if (e instanceof SSLException) {
+			return (SSLException) e;
+		}
+		if (this.handshaking) {
+			SSLHandshakeException handshakeException = new SSLHandshakeException(e.getMessage());
+			handshakeException.initCause(e);
+			return handshakeException;
+		}
+		return new SSLException(e.getMessage(), e);
+	}
+
+	public void setSupportedCipherSuites(String[] suites) {
+		if (suites == null) {
+			this.supportedCipherSuites = new String[0];
+		} else {
+			this.supportedCipherSuites = suites.clone();
+		}
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return this.supportedCipherSuites.clone();
+	}
+
+	@Override
+	public void setEnabledCipherSuites(String[] suites) {
+		if (suites == null) {
+			this.enabledCipherSuites = new String[0];
+		} else {
+			this.enabledCipherSuites = suites.clone();
+		}
+	}
+
+	@Override
+	public String[] getEnabledCipherSuites() {
+		return this.enabledCipherSuites.clone();
+	}
+
+	public void setSupportedProtocols(String[] protocols) {
+		if (protocols == null) {
+			this.supportedProtocols = new String[0];
+		} else {
+			this.supportedProtocols = protocols.clone();
+		}
+	}
+
+	@Override
+	public String[] getSupportedProtocols() {
+		return this.supportedProtocols.clone();
+	}
+
+	@Override
+	public void setEnabledProtocols(String[] protocols) {
+		this.enabledProtocols = protocols.clone();
+	}
+
+	@Override
+	public String[] getEnabledProtocols() {
+		return this.enabledProtocols.clone();
+	}
+
+	@Override
+	public void setUseClientMode(boolean mode) {
+		if (this.protocol != null) {
+			throw new IllegalArgumentException("Handshake has already been started");
+		}
+		this.clientMode = mode;
+	}
+
+	@Override
+	public boolean getUseClientMode() {
+		return this.clientMode;
+	}
+
+	@Override
+	public void setNeedClientAuth(boolean need) {
+		if (need) {
+			this.clientAuthMode = ClientAuthMode.NEEDS;
+		} else {
+			this.clientAuthMode = ClientAuthMode.NONE;
+		}
+	}
+
+	@Override
+	public boolean getNeedClientAuth() {
+		return this.clientAuthMode == ClientAuthMode.NEEDS;
+	}
+
+	@Override
+	public void setWantClientAuth(boolean want) {
+		if (want) {
+			this.clientAuthMode = ClientAuthMode.WANTS;
+		} else {
+			this.clientAuthMode = ClientAuthMode.NONE;
+		}
+	}
+
+	@Override
+	public boolean getWantClientAuth() {
+		return this.clientAuthMode == ClientAuthMode.WANTS;
+	}
+
+	@Override
+	public void setEnableSessionCreation(boolean flag) {
+		this.enableSessionCreation = flag;
+	}
+
+	@Override
+	public boolean getEnableSessionCreation() {
+		return this.enableSessionCreation;
+	}
+
+}
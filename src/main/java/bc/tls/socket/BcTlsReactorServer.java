@@ -0,0 +1,445 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.crypto.tls.TlsServerProtocol;
+
+import bc.tls.BcSecurityPrototype;
+import bc.tls.ServerNameRouter;
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+import bc.tls.logging.LogLevel;
+
+/**
+ * Non-blocking tls server, an alternative to {@link BcTlsServerSocket} for
+ * large numbers of mostly idle connections. A number of event loops, one per
+ * core by default, each watch their share of the connections with a selector
+ * of their own and drive the tls protocol in non-blocking mode. Accepted
+ * connections are handed to the loops in turn. Application data is passed to
+ * a {@link TlsConnectionHandler}.
+ * <p>
+ * Handshakes are processed on the event loops unless a handshake executor is
+ * set, which keeps their cryptographic work off the loops. No blocking work
+ * is done on the loops otherwise.
+ * <p>
+ * Connections that do not complete their handshake in time are closed, as
+ * are connections idle for longer than the idle timeout, if one is set.
+ *
+ * @author super-horst
+ *
+ */
+public class BcTlsReactorServer implements Closeable {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("ReactorServer");
+
+	/**
+	 * Default limit of a handshake, in milliseconds
+	 */
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+	/**
+	 * Default bytes queued for a connection before it is not writable
+	 */
+	public static final int DEFAULT_HIGH_WATER_MARK = 256 * 1024;
+
+	/**
+	 * Pause after accept() failed, e.g. as no file descriptors are left
+	 */
+	private static final long ACCEPT_RETRY_MILLIS = 100;
+	/**
+	 * Bounds of the interval timeouts are checked in
+	 */
+	private static final int MIN_TIMEOUT_CHECK_MILLIS = 10;
+	private static final int MAX_TIMEOUT_CHECK_MILLIS = 1000;
+
+	private final BcSecurityPrototype securityPrototype;
+	private final TlsConnectionHandler handler;
+	private final int eventLoopCount;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private ReactorLoop[] loops;
+	private ServerSocketChannel serverChannel;
+	private SelectionKey acceptKey;
+
+	private int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+	private int idleTimeout;
+	private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+
+	private volatile Executor handshakeExecutor;
+	private volatile ServerNameRouter serverNameRouter;
+	private volatile SecureRandom secureRandom;
+	private volatile SocketProfile socketProfile;
+
+	/**
+	 * @param prototype
+	 *            prototype of accepted connections
+	 * @param handler
+	 *            receives the events of all connections
+	 */
+	public BcTlsReactorServer(BcSecurityPrototype prototype, TlsConnectionHandler handler) {
+		this(prototype, handler, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param prototype
+	 *            prototype of accepted connections
+	 * @param handler
+	 *            receives the events of all connections
+	 * @param eventLoops
+	 *            number of event loop threads
+	 */
+	public BcTlsReactorServer(BcSecurityPrototype prototype, TlsConnectionHandler handler, int eventLoops) {
+		if (eventLoops <= 0) {
+			throw new IllegalArgumentException("At least one event loop is required");
+		}
+		this.securityPrototype = prototype;
+		this.handler = handler;
+		this.eventLoopCount = eventLoops;
+	}
+
+	/**
+	 * Start the event loops and accept connections
+	 * 
+	 * @param address
+	 *            the address to listen on
+	 * @param backlog
+	 *            the listen backlog, {@code 0} for the platform default
+	 * @throws IllegalStateException
+	 *             if already bound
+	 */
+	public synchronized void bind(InetSocketAddress address, int backlog) throws IOException {
+		checkUnbound();
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		ReactorLoop[] started = new ReactorLoop[this.eventLoopCount];
+		try {
+			channel.configureBlocking(false);
+			channel.bind(address, backlog);
+			for (int i = 0; i < started.length; i++) {
+				started[i] = new ReactorLoop("bc-tls-reactor-" + i);
+				started[i].start();
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			for (ReactorLoop loop : started) {
+				if (loop != null) {
+					loop.shutdown();
+				}
+			}
+			throw e;
+		}
+		this.loops = started;
+		this.serverChannel = channel;
+
+		final int checkInterval = timeoutCheckInterval();
+		if (checkInterval > 0) {
+			for (final ReactorLoop loop : started) {
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						loop.checkTimeouts(checkInterval);
+					}
+				});
+			}
+		}
+
+		final ReactorLoop acceptLoop = started[0];
+		acceptLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BcTlsReactorServer.this.acceptKey = acceptLoop.register(BcTlsReactorServer.this.serverChannel,
+							SelectionKey.OP_ACCEPT, new Runnable() {
+								@Override
+								public void run() {
+									acceptAll(acceptLoop);
+								}
+							});
+				} catch (IOException e) {
+					LOG.error("Unable to accept connections", e);
+				}
+			}
+		});
+		if (LOG.isLevelEnabled(LogLevel.DEBUG)) {
+			LOG.debug(String.format("Listening on %s with %d event loops", channel.getLocalAddress(), started.length));
+		}
+	}
+
+	/**
+	 * @return the port listened on or {@code -1} if not bound
+	 */
+	public synchronized int getLocalPort() {
+		return this.serverChannel == null ? -1 : this.serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return number of event loop threads
+	 */
+	public int getEventLoopCount() {
+		return this.eventLoopCount;
+	}
+
+	/**
+	 * @return number of open connections
+	 */
+	public synchronized int getConnectionCount() {
+		int count = 0;
+		if (this.loops != null) {
+			for (ReactorLoop loop : this.loops) {
+				count += loop.getConnectionCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Stop accepting and close all connections without {@code close_notify}
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.serverChannel == null) {
+			return;
+		}
+		this.serverChannel.close();
+		for (ReactorLoop loop : this.loops) {
+			loop.shutdown();
+		}
+		try {
+			for (ReactorLoop loop : this.loops) {
+				loop.join(this.eventLoopCount * 1000L);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Has to be set before binding.
+	 * 
+	 * @param millis
+	 *            milliseconds a connection has to complete its handshake in,
+	 *            {@code 0} for no limit. Defaults to
+	 *            {@value #DEFAULT_HANDSHAKE_TIMEOUT}.
+	 * @throws IllegalStateException
+	 *             if already bound
+	 */
+	public synchronized void setHandshakeTimeout(int millis) {
+		checkUnbound();
+		if (millis < 0) {
+			throw new IllegalArgumentException("Timeout must not be negative");
+		}
+		this.handshakeTimeout = millis;
+	}
+
+	/**
+	 * @return the handshake timeout in milliseconds, {@code 0} for no limit
+	 */
+	public synchronized int getHandshakeTimeout() {
+		return this.handshakeTimeout;
+	}
+
+	/**
+	 * Has to be set before binding.
+	 * 
+	 * @param millis
+	 *            milliseconds an established connection may neither send nor
+	 *            receive data before it is closed, {@code 0} for no limit,
+	 *            the default
+	 * @throws IllegalStateException
+	 *             if already bound
+	 */
+	public synchronized void setIdleTimeout(int millis) {
+		checkUnbound();
+		if (millis < 0) {
+			throw new IllegalArgumentException("Timeout must not be negative");
+		}
+		this.idleTimeout = millis;
+	}
+
+	/**
+	 * @return the idle timeout in milliseconds, {@code 0} for no limit
+	 */
+	public synchronized int getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	/**
+	 * @param bytes
+	 *            bytes queued for a connection before it is reported as not
+	 *            writable, {@code 0} to never report it. Defaults to
+	 *            {@value #DEFAULT_HIGH_WATER_MARK}.
+	 * @see TlsConnectionHandler#writabilityChanged(TlsConnection, boolean)
+	 */
+	public void setHighWaterMark(int bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("High-water mark must not be negative");
+		}
+		this.highWaterMark = bytes;
+	}
+
+	/**
+	 * @param executor
+	 *            executor to process handshake messages on, {@code null} to
+	 *            process them on the event loops
+	 */
+	public void setHandshakeExecutor(Executor executor) {
+		this.handshakeExecutor = executor;
+	}
+
+	/**
+	 * @return the executor for handshakes or {@code null}
+	 */
+	public Executor getHandshakeExecutor() {
+		return this.handshakeExecutor;
+	}
+
+	/**
+	 * @param router
+	 *            selects the prototype by the indicated server name, may be
+	 *            {@code null}
+	 * @see BcTlsServerSocket#setServerNameRouter(ServerNameRouter)
+	 */
+	public void setServerNameRouter(ServerNameRouter router) {
+		this.serverNameRouter = router;
+	}
+
+	/**
+	 * @param random
+	 *            random source shared by all connections, {@code null} to ask
+	 *            the prototype for every connection
+	 */
+	public void setSecureRandom(SecureRandom random) {
+		this.secureRandom = random;
+	}
+
+	/**
+	 * @param profile
+	 *            TCP options of accepted connections, {@code null} for the
+	 *            platform defaults
+	 */
+	public void setSocketProfile(SocketProfile profile) {
+		this.socketProfile = profile;
+	}
+
+	private void checkUnbound() {
+		if (this.serverChannel != null) {
+			throw new IllegalStateException("Already bound");
+		}
+	}
+
+	/**
+	 * @return milliseconds between checks of the timeouts, {@code 0} if
+	 *         there are none
+	 */
+	private int timeoutCheckInterval() {
+		int shortest = this.handshakeTimeout;
+		if (this.idleTimeout > 0 && (shortest == 0 || this.idleTimeout < shortest)) {
+			shortest = this.idleTimeout;
+		}
+		if (shortest == 0) {
+			return 0;
+		}
+		return Math.max(MIN_TIMEOUT_CHECK_MILLIS, Math.min(MAX_TIMEOUT_CHECK_MILLIS, shortest / 4));
+	}
+
+	/**
+	 * Accept all pending connections, on the first event loop
+	 */
+	private void acceptAll(ReactorLoop acceptLoop) {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = this.serverChannel.accept();
+			} catch (IOException e) {
+				// the channel stays ready, pause instead of failing again
+				LOG.error("Error accepting connection", e);
+				pauseAccepting(acceptLoop);
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			try {
+				dispatch(channel);
+			} catch (IOException | RuntimeException e) {
+				LOG.error("Error setting up connection", e);
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+					// nothing left to do
+				}
+			}
+		}
+	}
+
+	private void pauseAccepting(ReactorLoop acceptLoop) {
+		final SelectionKey key = this.acceptKey;
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		key.interestOps(0);
+		acceptLoop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (key.isValid()) {
+					key.interestOps(SelectionKey.OP_ACCEPT);
+				}
+			}
+		}, ACCEPT_RETRY_MILLIS);
+	}
+
+	private void dispatch(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		SocketProfile profile = this.socketProfile;
+		if (profile != null) {
+			profile.apply(channel.socket());
+		}
+		InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+		if (LOG.isLevelEnabled(LogLevel.DEBUG)) {
+			LOG.debug(String.format("Received connection: %s", remote));
+		}
+
+		SecureRandom random = this.secureRandom;
+		TlsServerProtocol protocol = new TlsServerProtocol(random == null ? this.securityPrototype.makeRandom()
+				: random);
+		BcTlsServer server = new BcTlsServer(this.securityPrototype, remote.getAddress().getHostAddress(),
+				this.serverNameRouter);
+
+		ReactorLoop loop = this.loops[(this.next.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length];
+		final TlsConnection connection = new TlsConnection(loop, channel, remote, protocol, server, this.handler,
+				this.handshakeExecutor);
+		connection.setLimits(this.handshakeTimeout, this.idleTimeout, this.highWaterMark);
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				connection.register();
+			}
+		});
+	}
+}
@@ -20,14 +20,21 @@
 package bc.tls.socket;
 
 import java.io.IOException;
+import java.util.Hashtable;
 
 import org.bouncycastle.crypto.tls.CertificateRequest;
 import org.bouncycastle.crypto.tls.DefaultTlsServer;
+import org.bouncycastle.crypto.tls.NameType;
 import org.bouncycastle.crypto.tls.ProtocolVersion;
+import org.bouncycastle.crypto.tls.ServerName;
+import org.bouncycastle.crypto.tls.ServerNameList;
 import org.bouncycastle.crypto.tls.TlsCredentials;
+import org.bouncycastle.crypto.tls.TlsExtensionsUtils;
 import org.bouncycastle.crypto.tls.TlsSignerCredentials;
+
 import bc.tls.BcSecurityPrototype;
 import bc.tls.CipherSuite;
+import bc.tls.ServerNameRouter;
 import bc.tls.logging.LogConsumer;
 import bc.tls.logging.LogConsumerFactory;
 
@@ -35,15 +42,34 @@ public class BcTlsServer extends DefaultTlsServer {
 
 	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("Server");
 
-	private final int[] defaultCs;
-	private final BcSecurityPrototype securityPrototype;
+	private int[] defaultCs;
+	private BcSecurityPrototype securityPrototype;
 	private final String hostname;
+	private final ServerNameRouter router;
 
 	private TlsSignerCredentials signerCredentials;
 
+	private volatile boolean handshakeComplete = false;
+
+	private volatile String requestedServerName;
+
 	public BcTlsServer(BcSecurityPrototype prototype, String host) {
+		this(prototype, host, null);
+	}
+
+	/**
+	 * @param prototype
+	 *            the prototype used if the router does not match
+	 * @param host
+	 *            the peer's host
+	 * @param router
+	 *            selects the prototype by the indicated server name, may be
+	 *            {@code null}
+	 */
+	public BcTlsServer(BcSecurityPrototype prototype, String host, ServerNameRouter router) {
 		this.hostname = host;
 		this.securityPrototype = prototype;
+		this.router = router;
 		this.defaultCs = CipherSuite.convert(this.securityPrototype.getCipherSuites());
 	}
 
@@ -57,6 +83,43 @@ public class BcTlsServer extends DefaultTlsServer {
 		return ProtocolVersion.TLSv12;
 	}
 
+	@Override
+	public ProtocolVersion getMaximumVersion() {
+		return ProtocolVersion.TLSv12;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void processClientExtensions(Hashtable clientExtensions) throws IOException {
+		super.processClientExtensions(clientExtensions);
+		ServerNameList names = TlsExtensionsUtils.getServerNameExtension(clientExtensions);
+		if (names != null) {
+			for (Object name : names.getServerNameList()) {
+				if (((ServerName) name).getNameType() == NameType.host_name) {
+					this.requestedServerName = ((ServerName) name).getHostName();
+					break;
+				}
+			}
+		}
+
+		if (this.router != null) {
+			BcSecurityPrototype selected = this.router.select(this.requestedServerName);
+			if (selected != null && selected != this.securityPrototype) {
+				LOG.debug(String.format("Routing server name %s", this.requestedServerName));
+				this.securityPrototype = selected;
+				this.defaultCs = CipherSuite.convert(selected.getCipherSuites());
+			}
+		}
+	}
+
+	/**
+	 * @return the host name indicated by the client, {@code null} if none was
+	 *         sent
+	 */
+	public String getRequestedServerName() {
+		return this.requestedServerName;
+	}
+
 	@Override
 	public CertificateRequest getCertificateRequest() throws IOException {
 		return this.securityPrototype.makeCertificateRequest();
@@ -82,4 +145,17 @@ public class BcTlsServer extends DefaultTlsServer {
 		return signerCredentials;
 
 	}
+
+	@Override
+	public void notifyHandshakeComplete() throws IOException {
+		super.notifyHandshakeComplete();
+		this.handshakeComplete = true;
+	}
+
+	/**
+	 * @return whether the peer's finished message has been verified
+	 */
+	public boolean isHandshakeComplete() {
+		return this.handshakeComplete;
+	}
 }
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.security.SecureRandom;
+import java.util.concurrent.Executor;
 
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLServerSocket;
@@ -30,9 +31,11 @@ import javax.net.ssl.SSLServerSocket;
 import org.bouncycastle.crypto.tls.TlsAuthentication;
 
 import bc.tls.BcSecurityPrototype;
+import bc.tls.ServerNameRouter;
 import bc.tls.logging.LogConsumer;
 import bc.tls.logging.LogConsumerFactory;
 import bc.tls.logging.LogLevel;
+import bc.tls.util.ByteArrayPool;
 
 public class BcTlsServerSocket extends SSLServerSocket {
 
@@ -47,6 +50,31 @@ public class BcTlsServerSocket extends SSLServerSocket {
 	private String[] enabledProtocols = new String[0];
 	private boolean enableSessionCreation;
 
+	private int readAheadSize = 0;
+	private ByteArrayPool readAheadPool;
+
+	private volatile Executor handshakeExecutor;
+
+	private volatile ServerNameRouter serverNameRouter;
+
+	private volatile BcTlsSessionContext sessionContext;
+
+	private volatile SecureRandom secureRandom;
+
+	private volatile HandshakeAdmission handshakeAdmission;
+
+	/**
+	 * Create an unbound server socket, so that options taking effect on bind
+	 * can be set first
+	 * 
+	 * @param prototype
+	 *            prototype of accepted sockets
+	 */
+	public BcTlsServerSocket(BcSecurityPrototype prototype) throws IOException {
+		super();
+		this.securityPrototype = prototype;
+	}
+
 	public BcTlsServerSocket(int port, BcSecurityPrototype prototype) throws IOException {
 		super(port);
 		this.securityPrototype = prototype;
@@ -65,7 +93,18 @@ public class BcTlsServerSocket extends SSLServerSocket {
 
 	@Override
 	public Socket accept() throws IOException {
-		Socket rawSocket = super.accept();
+		while (true) {
+			Socket rawSocket = super.accept();
+			try {
+				return accept(rawSocket);
+			} catch (HandshakeRejectedException e) {
+				// the connection is closed already, serve the next one
+			}
+		}
+	}
+
+	private Socket accept(Socket rawSocket) throws IOException {
+		long acceptedAt = System.nanoTime();
 		if (LOG.isLevelEnabled(LogLevel.DEBUG)) {
 			LOG.debug(String.format("Received connection: %s", rawSocket.toString()));
 		}
@@ -73,10 +112,142 @@ public class BcTlsServerSocket extends SSLServerSocket {
 		// TODO hand out prototype clones
 		BcTlsSocket tlsSocket = new BcTlsSocket(rawSocket, true, this.securityPrototype);
 		tlsSocket.setEnabledCipherSuites(enabledCipherSuites);
-		tlsSocket.startHandshake();
+		tlsSocket.setServerNameRouter(this.serverNameRouter);
+		tlsSocket.setSessionContext(this.sessionContext);
+		tlsSocket.setSecureRandom(this.secureRandom);
+		tlsSocket.setHandshakeAdmission(this.handshakeAdmission, acceptedAt);
+		if (this.readAheadPool != null) {
+			tlsSocket.setReadAhead(this.readAheadPool);
+		} else {
+			tlsSocket.setReadAhead(this.readAheadSize);
+		}
+
+		Executor executor = this.handshakeExecutor;
+		if (executor == null) {
+			tlsSocket.startHandshake();
+		} else {
+			// I/O on the socket waits for the handshake to finish
+			tlsSocket.startHandshakeAsync(executor);
+		}
 		return tlsSocket;
 	}
 
+	/**
+	 * Hand out accepted sockets immediately and perform their handshakes on
+	 * the given executor, so that a slow client does not stall the accepting
+	 * thread. Handshake listeners are notified on the executor.
+	 * 
+	 * @param executor
+	 *            executor for handshakes, {@code null} to handshake on the
+	 *            accepting thread
+	 */
+	public void setHandshakeExecutor(Executor executor) {
+		this.handshakeExecutor = executor;
+	}
+
+	/**
+	 * @return the executor for handshakes or {@code null} if handshakes are
+	 *         performed on the accepting thread
+	 */
+	public Executor getHandshakeExecutor() {
+		return this.handshakeExecutor;
+	}
+
+	/**
+	 * Limit the handshakes of accepted sockets. Connections that are shed are
+	 * closed before their handshake; on the accepting thread the next
+	 * connection is accepted instead, with a handshake executor their
+	 * handshake fails with a {@link HandshakeRejectedException}.
+	 * 
+	 * @param admission
+	 *            the admission control, {@code null} to handshake every
+	 *            connection
+	 */
+	public void setHandshakeAdmission(HandshakeAdmission admission) {
+		this.handshakeAdmission = admission;
+	}
+
+	/**
+	 * @return the admission control or {@code null}
+	 */
+	public HandshakeAdmission getHandshakeAdmission() {
+		return this.handshakeAdmission;
+	}
+
+	/**
+	 * Select the prototype of accepted sockets by the host name the client
+	 * indicated. Falls back to this server socket's prototype if the router
+	 * does not match.
+	 * 
+	 * @param router
+	 *            the router, {@code null} to always use this server socket's
+	 *            prototype
+	 */
+	public void setServerNameRouter(ServerNameRouter router) {
+		this.serverNameRouter = router;
+	}
+
+	/**
+	 * @return the router for accepted sockets or {@code null}
+	 */
+	public ServerNameRouter getServerNameRouter() {
+		return this.serverNameRouter;
+	}
+
+	/**
+	 * @param context
+	 *            context to add the sessions of accepted sockets to,
+	 *            {@code null} to not keep them
+	 */
+	public void setSessionContext(BcTlsSessionContext context) {
+		this.sessionContext = context;
+	}
+
+	/**
+	 * @return the context holding the sessions of accepted sockets or
+	 *         {@code null}
+	 */
+	public BcTlsSessionContext getSessionContext() {
+		return this.sessionContext;
+	}
+
+	/**
+	 * @param random
+	 *            random source shared by accepted sockets, {@code null} to
+	 *            ask the prototype for every socket
+	 */
+	public void setSecureRandom(SecureRandom random) {
+		this.secureRandom = random;
+	}
+
+	/**
+	 * @return the shared random source or {@code null}
+	 */
+	public SecureRandom getSecureRandom() {
+		return this.secureRandom;
+	}
+
+	/**
+	 * @param size
+	 *            read-ahead buffer size for accepted sockets, {@code 0}
+	 *            disables reading ahead
+	 * @see BcTlsSocket#setReadAhead(int)
+	 */
+	public void setReadAhead(int size) {
+		this.readAheadSize = Math.max(0, size);
+		this.readAheadPool = null;
+	}
+
+	/**
+	 * @param pool
+	 *            pool for the read-ahead buffers of accepted sockets
+	 * @see BcTlsSocket#setReadAhead(ByteArrayPool)
+	 */
+	public void setReadAhead(ByteArrayPool pool) {
+		this.readAheadPool = pool;
+		this.readAheadSize = 0;
+	}
+
 	public void setSupportedCipherSuites(String[] suites) {
 		this.supportedCipherSuites = suites.clone();
 	}
@@ -20,9 +20,17 @@
 package bc.tls.socket;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.security.SecureRandom;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLParameters;
@@ -30,6 +38,7 @@ import javax.net.ssl.SSLServerSocketFactory;
 
 import bc.tls.BcSecurityPrototype;
 import bc.tls.CipherSuite;
+import bc.tls.ServerNameRouter;
 import bc.tls.logging.LogConsumer;
 import bc.tls.logging.LogConsumerFactory;
 import bc.tls.logging.LogLevel;
@@ -58,6 +67,8 @@ public class BcTlsServerSocketFactory extends SSLServerSocketFactory implements
 
 	private BcSecurityPrototype defaultPrototype;
 
+	private final BcTlsSessionContext sessionContext = new BcTlsSessionContext();
+
 	/**
 	 * Default constructor
 	 */
@@ -143,6 +154,14 @@ public class BcTlsServerSocketFactory extends SSLServerSocketFactory implements
 		return this.supportedCipherSuites;
 	}
 
+	/**
+	 * @return the factory's own session context, used if
+	 *         {@link #KEY_SERVER_SESSION_CONTEXT} is {@link Boolean#TRUE}
+	 */
+	public BcTlsSessionContext getSessionContext() {
+		return this.sessionContext;
+	}
+
 	@Override
 	public BcTlsServerSocket createServerSocket(int port) throws IOException {
 		return createSocket(port, null, null);
@@ -163,7 +182,47 @@ public class BcTlsServerSocketFactory extends SSLServerSocketFactory implements
 			LOG.debug(String.format("Handing out server socket '%s' on port %d", ifAddress, port));
 		}
 
-		return new BcTlsServerSocket(0, this.defaultPrototype);
+		if (backlog == null) {
+			Object configured = getConfigProperty(KEY_SERVER_BACKLOG);
+			backlog = configured instanceof Integer ? (Integer) configured : 0;
+		}
+
+		BcTlsServerSocket serverSocket = new BcTlsServerSocket(this.defaultPrototype);
+		try {
+			configure(serverSocket);
+			serverSocket.bind(new InetSocketAddress(ifAddress, port), backlog);
+		} catch (IOException | RuntimeException e) {
+			serverSocket.close();
+			throw e;
+		}
+
+		Object executor = getConfigProperty(KEY_HANDSHAKE_EXECUTOR);
+		if (executor instanceof Executor) {
+			serverSocket.setHandshakeExecutor((Executor) executor);
+		}
+
+		Object admission = getConfigProperty(KEY_HANDSHAKE_ADMISSION);
+		if (admission instanceof HandshakeAdmission) {
+			serverSocket.setHandshakeAdmission((HandshakeAdmission) admission);
+		}
+
+		Object router = getConfigProperty(KEY_SERVER_NAME_ROUTER);
+		if (router instanceof ServerNameRouter) {
+			serverSocket.setServerNameRouter((ServerNameRouter) router);
+		}
+
+		Object random = getConfigProperty(KEY_SECURE_RANDOM);
+		if (random instanceof SecureRandom) {
+			serverSocket.setSecureRandom((SecureRandom) random);
+		}
+
+		Object context = getConfigProperty(KEY_SERVER_SESSION_CONTEXT);
+		if (context instanceof BcTlsSessionContext) {
+			serverSocket.setSessionContext((BcTlsSessionContext) context);
+		} else if (Boolean.TRUE.equals(context)) {
+			serverSocket.setSessionContext(this.sessionContext);
+		}
+		return serverSocket;
 
 		// TODO implement! :)
 
@@ -175,4 +234,92 @@ public class BcTlsServerSocketFactory extends SSLServerSocketFactory implements
 
 	}
 
+	/**
+	 * Create a non-blocking server, configured like the server sockets of
+	 * this factory. Its handshakes are processed on the
+	 * {@link #KEY_HANDSHAKE_EXECUTOR} if set.
+	 * 
+	 * @param handler
+	 *            receives the events of all connections
+	 * @return the server, to be bound by the caller
+	 */
+	public BcTlsReactorServer createReactorServer(TlsConnectionHandler handler) {
+		Object loops = getConfigProperty(KEY_REACTOR_EVENT_LOOPS);
+		BcTlsReactorServer server = loops instanceof Integer
+				? new BcTlsReactorServer(this.defaultPrototype, handler, (Integer) loops)
+				: new BcTlsReactorServer(this.defaultPrototype, handler);
+
+		Object handshakeTimeout = getConfigProperty(KEY_REACTOR_HANDSHAKE_TIMEOUT);
+		if (handshakeTimeout instanceof Integer) {
+			server.setHandshakeTimeout((Integer) handshakeTimeout);
+		}
+
+		Object idleTimeout = getConfigProperty(KEY_REACTOR_IDLE_TIMEOUT);
+		if (idleTimeout instanceof Integer) {
+			server.setIdleTimeout((Integer) idleTimeout);
+		}
+
+		Object highWaterMark = getConfigProperty(KEY_REACTOR_HIGH_WATER_MARK);
+		if (highWaterMark instanceof Integer) {
+			server.setHighWaterMark((Integer) highWaterMark);
+		}
+
+		Object executor = getConfigProperty(KEY_HANDSHAKE_EXECUTOR);
+		if (executor instanceof Executor) {
+			server.setHandshakeExecutor((Executor) executor);
+		}
+
+		Object router = getConfigProperty(KEY_SERVER_NAME_ROUTER);
+		if (router instanceof ServerNameRouter) {
+			server.setServerNameRouter((ServerNameRouter) router);
+		}
+
+		Object random = getConfigProperty(KEY_SECURE_RANDOM);
+		if (random instanceof SecureRandom) {
+			server.setSecureRandom((SecureRandom) random);
+		}
+
+		return server;
+	}
+
+	/**
+	 * Apply the options that have to be set before bind
+	 */
+	private void configure(ServerSocket serverSocket) throws IOException {
+		if (Boolean.TRUE.equals(getConfigProperty(KEY_SERVER_REUSE_ADDRESS))) {
+			serverSocket.setReuseAddress(true);
+		}
+		if (Boolean.TRUE.equals(getConfigProperty(KEY_SERVER_REUSE_PORT))) {
+			setReusePort(serverSocket);
+		}
+		Object receiveBuffer = getConfigProperty(KEY_SERVER_RECEIVE_BUFFER_SIZE);
+		if (receiveBuffer instanceof Integer) {
+			serverSocket.setReceiveBufferSize((Integer) receiveBuffer);
+		}
+	}
+
+	/**
+	 * SO_REUSEPORT and {@code ServerSocket#setOption} are available as of
+	 * Java 9 only, looked up reflectively to keep running on Java 8
+	 */
+	private static void setReusePort(ServerSocket serverSocket) throws IOException {
+		try {
+			SocketOption<?> option = (SocketOption<?>) StandardSocketOptions.class.getField("SO_REUSEPORT")
+					.get(null);
+			Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+			setOption.invoke(serverSocket, option, Boolean.TRUE);
+		} catch (NoSuchFieldException | NoSuchMethodException | IllegalAccessException e) {
+			LOG.warn("SO_REUSEPORT is not available before Java 9, ignored");
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof UnsupportedOperationException) {
+				LOG.warn("SO_REUSEPORT is not supported on this platform, ignored");
+			} else {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+
 }
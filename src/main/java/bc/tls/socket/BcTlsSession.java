@@ -35,53 +35,202 @@ import javax.security.cert.X509Certificate;
 import org.bouncycastle.crypto.tls.TlsAuthentication;
 import org.bouncycastle.crypto.tls.TlsClient;
 import org.bouncycastle.crypto.tls.TlsPeer;
+import org.bouncycastle.crypto.tls.TlsSession;
 
 import bc.tls.CipherSuite;
 
 public class BcTlsSession implements SSLSession {
 
+	/**
+	 * Length of a tls record header
+	 */
+	static final int RECORD_HEADER_LENGTH = 5;
+
+	/**
+	 * Maximum plaintext length of a single record (RFC 5246, 6.2.1)
+	 */
+	static final int MAX_FRAGMENT_LENGTH = 1 << 14;
+
+	/**
+	 * Maximum expansion of a fragment by compression and encryption (RFC
+	 * 5246, 6.2.3)
+	 */
+	static final int MAX_RECORD_EXPANSION = 2048;
+
+	/**
+	 * Maximum length of a single record on the wire
+	 */
+	static final int MAX_RECORD_LENGTH = RECORD_HEADER_LENGTH + MAX_FRAGMENT_LENGTH + MAX_RECORD_EXPANSION;
+
 	private final TlsPeer tlsPeer;
 	private final BcTlsSocket tlsSocket;
+	private final int cipherSuite;
+
+	private final String peerHost;
+	private final int peerPort;
+
+	private final long creationTime;
+	private volatile long lastAccessedTime;
+
+	private volatile BcTlsSessionContext sessionContext;
+	private byte[] assignedId;
+	private volatile boolean invalidated = false;
 
 	public BcTlsSession(BcTlsSocket socket, TlsPeer peer) {
 		this.tlsPeer = peer;
 		this.tlsSocket = socket;
+		this.cipherSuite = -1;
+		this.peerHost = null;
+		this.peerPort = -1;
+		this.creationTime = this.lastAccessedTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Session without a socket, as used by {@link BcTlsEngine}
+	 * 
+	 * @param peer
+	 *            the local tls peer, may be {@code null} before the handshake
+	 * @param host
+	 *            the advisory peer host, may be {@code null}
+	 * @param port
+	 *            the advisory peer port or {@code -1}
+	 */
+	public BcTlsSession(TlsPeer peer, String host, int port) {
+		this.tlsPeer = peer;
+		this.tlsSocket = null;
+		this.cipherSuite = -1;
+		this.peerHost = host;
+		this.peerPort = port;
+		this.creationTime = this.lastAccessedTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Session detached from its connection, as kept in a
+	 * {@link BcTlsSessionContext}. It references neither the socket nor the
+	 * tls peer and keeps no key material.
+	 */
+	private BcTlsSession(int cipherSuite, String host, int port, long creationTime) {
+		this.tlsPeer = null;
+		this.tlsSocket = null;
+		this.cipherSuite = cipherSuite;
+		this.peerHost = host;
+		this.peerPort = port;
+		this.creationTime = this.lastAccessedTime = creationTime;
 	}
 
+	/**
+	 * @param cipherSuite
+	 *            the cipher suite of the established session
+	 * @return a copy of this session holding only the cipher suite, the
+	 *         peer's host and port and the creation time
+	 */
+	BcTlsSession detach(int cipherSuite) {
+		return new BcTlsSession(cipherSuite, getPeerHost(), getPeerPort(), this.creationTime);
+	}
+
+	/**
+	 * Joins the context a detached copy of this session was added to, the
+	 * copy's id becomes this session's id
+	 */
+	void join(BcTlsSession detached) {
+		assignId(detached.getId());
+		setSessionContext(detached.sessionContext);
+	}
+
+	private TlsSession getTlsSession() {
+		if (this.tlsPeer instanceof BcTlsClient) {
+			return ((BcTlsClient) this.tlsPeer).getResumableSession();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the id the server sent or the id assigned by the session
+	 *         context, an empty array if there is none
+	 */
 	@Override
 	public byte[] getId() {
-		// TODO Auto-generated method stub
-		return null;
+		TlsSession session = getTlsSession();
+		if (session != null && session.getSessionID().length > 0) {
+			return session.getSessionID();
+		}
+		synchronized (this) {
+			return this.assignedId == null ? new byte[0] : this.assignedId.clone();
+		}
+	}
+
+	/**
+	 * Assign an id to a session the peer sent none for. The first assigned id
+	 * is kept.
+	 * 
+	 * @return the session's id
+	 */
+	synchronized byte[] assignId(byte[] id) {
+		if (this.assignedId == null) {
+			this.assignedId = id.clone();
+		}
+		return this.assignedId.clone();
+	}
+
+	void setSessionContext(BcTlsSessionContext context) {
+		this.sessionContext = context;
 	}
 
+	/**
+	 * @return the context holding this session, {@code null} if it was not
+	 *         added to one
+	 */
 	@Override
 	public SSLSessionContext getSessionContext() {
-		// TODO Auto-generated method stub
-		return null;
+		return this.sessionContext;
 	}
 
 	@Override
 	public long getCreationTime() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.creationTime;
 	}
 
+	void setLastAccessedTime(long time) {
+		this.lastAccessedTime = time;
+	}
+
+	/**
+	 * @return the time of the last lookup in the session context, the
+	 *         creation time if there was none
+	 */
 	@Override
 	public long getLastAccessedTime() {
-		// TODO Auto-generated method stub
-		return 0;
+		return this.lastAccessedTime;
 	}
 
+	/**
+	 * Prevents the session from being resumed and removes it from its
+	 * session context
+	 */
 	@Override
 	public void invalidate() {
-		// TODO Auto-generated method stub
-
+		this.invalidated = true;
+		TlsSession session = getTlsSession();
+		if (session != null) {
+			session.invalidate();
+		}
+		BcTlsSessionContext context = this.sessionContext;
+		if (context != null) {
+			context.removeSession(getId());
+		}
 	}
 
 	@Override
 	public boolean isValid() {
-		// TODO Auto-generated method stub
-		return false;
+		if (this.invalidated) {
+			return false;
+		}
+		TlsSession session = getTlsSession();
+		if (session != null) {
+			return session.isResumable();
+		}
+		// sessions without a resumable tls session live in their context
+		return this.sessionContext != null;
 	}
 
 	@Override
@@ -172,6 +321,8 @@ public class BcTlsSession implements SSLSession {
 		int cs = 0;
 		if (this.tlsPeer instanceof BcTlsClient) {
 			cs = ((BcTlsClient) this.tlsPeer).getSelectedCipherSuite();
+		} else if (this.cipherSuite >= 0) {
+			cs = this.cipherSuite;
 		} else {
 			return null;
 		}
@@ -186,6 +337,12 @@ public class BcTlsSession implements SSLSession {
 
 	@Override
 	public String getPeerHost() {
+		if (tlsSocket == null) {
+			return this.peerHost;
+		}
+		if (tlsSocket.getPeerHost() != null) {
+			return tlsSocket.getPeerHost();
+		}
 		InetAddress addr = tlsSocket.getInetAddress();
 		if (addr == null) {
 			addr = tlsSocket.getLocalAddress();
@@ -193,11 +350,15 @@ public class BcTlsSession implements SSLSession {
 		if (addr == null) {
 			return null;
 		}
-		return addr.getHostName();
+		// no reverse lookup
+		return addr.getHostAddress();
 	}
 
 	@Override
 	public int getPeerPort() {
+		if (tlsSocket == null) {
+			return this.peerPort;
+		}
 		int port = tlsSocket.getPort();
 		if (port == -1) {
 			port = tlsSocket.getLocalPort();
@@ -207,14 +368,12 @@ public class BcTlsSession implements SSLSession {
 
 	@Override
 	public int getPacketBufferSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return MAX_RECORD_LENGTH;
 	}
 
 	@Override
 	public int getApplicationBufferSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return MAX_FRAGMENT_LENGTH;
 	}
 
 }
@@ -0,0 +1,458 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Session context holding the sessions of established connections, bounded
+ * by count and estimated memory. Sessions are evicted least recently used
+ * first and expire after the session timeout, counted from their creation.
+ * <p>
+ * Sessions are spread over independently locked stripes by their id, so
+ * that concurrent handshakes rarely contend. Limits apply to the whole
+ * context, eviction takes one stripe lock at a time.
+ * <p>
+ * Sessions without an id of their own, as established by servers, are
+ * assigned a random id when they are added. Accepted sockets add a copy of
+ * their session, detached from the connection, which holds neither the
+ * socket, the tls peer nor any key material.
+ *
+ * @author super-horst
+ *
+ */
+public class BcTlsSessionContext implements SSLSessionContext {
+
+	/**
+	 * Default maximum number of sessions, as in JSSE
+	 */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+
+	/**
+	 * Default session timeout in seconds, as in JSSE
+	 */
+	public static final int DEFAULT_SESSION_TIMEOUT = 86400;
+
+	/**
+	 * Default memory limit in bytes
+	 */
+	public static final long DEFAULT_MAX_MEMORY = 64L << 20;
+
+	/**
+	 * Estimated footprint of a detached session and its cache entry, without
+	 * ids and certificates
+	 */
+	static final int SESSION_OVERHEAD = 512;
+
+	private static final int STRIPES = 16;
+
+	private static final int SESSION_ID_LENGTH = 32;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	private final SecureRandom random = new SecureRandom();
+
+	private volatile int sessionCacheSize;
+	private volatile int sessionTimeout;
+	private volatile long maxMemory;
+
+	/**
+	 * Orders accesses across stripes
+	 */
+	private final AtomicLong clock = new AtomicLong();
+
+	private final AtomicInteger count = new AtomicInteger();
+	private final AtomicLong memory = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+
+	public BcTlsSessionContext() {
+		this(DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT, DEFAULT_MAX_MEMORY);
+	}
+
+	/**
+	 * @param size
+	 *            maximum number of sessions, {@code 0} for no limit
+	 * @param timeout
+	 *            session timeout in seconds, {@code 0} for no limit
+	 * @param maxMemory
+	 *            maximum estimated memory of all sessions in bytes,
+	 *            {@code 0} for no limit
+	 */
+	public BcTlsSessionContext(int size, int timeout, long maxMemory) {
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		setSessionCacheSize(size);
+		setSessionTimeout(timeout);
+		setMaxMemory(maxMemory);
+	}
+
+	/**
+	 * Add an established session, replacing a session with the same id.
+	 *
+	 * @param session
+	 *            the session to add
+	 */
+	public void putSession(BcTlsSession session) {
+		byte[] id = session.getId();
+		if (id.length == 0) {
+			id = new byte[SESSION_ID_LENGTH];
+			this.random.nextBytes(id);
+			id = session.assignId(id);
+		}
+		session.setSessionContext(this);
+
+		SessionId key = new SessionId(id);
+		Entry entry = new Entry(session, estimateSize(session, id), this.clock.incrementAndGet());
+		Stripe stripe = stripeFor(key);
+		synchronized (stripe) {
+			Entry previous = stripe.sessions.put(key, entry);
+			if (previous == null) {
+				this.count.incrementAndGet();
+				this.memory.addAndGet(entry.size);
+			} else {
+				this.memory.addAndGet(entry.size - previous.size);
+			}
+			expireEldest(stripe, System.currentTimeMillis());
+		}
+		evict();
+	}
+
+	@Override
+	public SSLSession getSession(byte[] sessionId) {
+		if (sessionId == null) {
+			throw new NullPointerException("Session id must not be null");
+		}
+		SessionId key = new SessionId(sessionId);
+		Stripe stripe = stripeFor(key);
+		long now = System.currentTimeMillis();
+		BcTlsSession session = null;
+		synchronized (stripe) {
+			Entry entry = stripe.sessions.get(key);
+			if (entry != null) {
+				if (isExpired(entry, now)) {
+					remove(stripe, key);
+					this.expirations.increment();
+				} else if (!entry.session.isValid()) {
+					remove(stripe, key);
+				} else {
+					entry.lastUsed = this.clock.incrementAndGet();
+					session = entry.session;
+				}
+			}
+		}
+		if (session == null) {
+			this.misses.increment();
+			return null;
+		}
+		this.hits.increment();
+		session.setLastAccessedTime(now);
+		return session;
+	}
+
+	/**
+	 * Remove a session, if present.
+	 *
+	 * @param sessionId
+	 *            id of the session
+	 */
+	public void removeSession(byte[] sessionId) {
+		SessionId key = new SessionId(sessionId);
+		Stripe stripe = stripeFor(key);
+		synchronized (stripe) {
+			remove(stripe, key);
+		}
+	}
+
+	@Override
+	public Enumeration<byte[]> getIds() {
+		long now = System.currentTimeMillis();
+		List<byte[]> ids = new ArrayList<byte[]>();
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				for (Map.Entry<SessionId, Entry> e : stripe.sessions.entrySet()) {
+					if (!isExpired(e.getValue(), now)) {
+						ids.add(e.getKey().id.clone());
+					}
+				}
+			}
+		}
+		return Collections.enumeration(ids);
+	}
+
+	/**
+	 * Applies to sessions already in this context on their next lookup.
+	 *
+	 * @param seconds
+	 *            session timeout in seconds, {@code 0} for no limit
+	 */
+	@Override
+	public void setSessionTimeout(int seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("Session timeout must not be negative: " + seconds);
+		}
+		this.sessionTimeout = seconds;
+	}
+
+	@Override
+	public int getSessionTimeout() {
+		return this.sessionTimeout;
+	}
+
+	/**
+	 * Evicts least recently used sessions right away, if the new limit is
+	 * exceeded.
+	 *
+	 * @param size
+	 *            maximum number of sessions, {@code 0} for no limit
+	 */
+	@Override
+	public void setSessionCacheSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Session cache size must not be negative: " + size);
+		}
+		this.sessionCacheSize = size;
+		evict();
+	}
+
+	@Override
+	public int getSessionCacheSize() {
+		return this.sessionCacheSize;
+	}
+
+	/**
+	 * @param bytes
+	 *            maximum estimated memory of all sessions, {@code 0} for no
+	 *            limit
+	 */
+	public void setMaxMemory(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Memory limit must not be negative: " + bytes);
+		}
+		this.maxMemory = bytes;
+		evict();
+	}
+
+	public long getMaxMemory() {
+		return this.maxMemory;
+	}
+
+	/**
+	 * @return estimated memory of all sessions in bytes
+	 */
+	public long getMemoryUsage() {
+		return this.memory.get();
+	}
+
+	/**
+	 * @return number of sessions, including expired ones not yet removed
+	 */
+	public int size() {
+		return this.count.get();
+	}
+
+	/**
+	 * @return number of lookups that found a session
+	 */
+	public long getHitCount() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return number of lookups that found no session
+	 */
+	public long getMissCount() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * @return number of sessions evicted by the size or memory limit
+	 */
+	public long getEvictionCount() {
+		return this.evictions.sum();
+	}
+
+	/**
+	 * @return number of sessions removed after their timeout
+	 */
+	public long getExpirationCount() {
+		return this.expirations.sum();
+	}
+
+	private Stripe stripeFor(SessionId key) {
+		int h = key.hashCode();
+		return this.stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	private boolean isExpired(Entry entry, long now) {
+		int timeout = this.sessionTimeout;
+		return timeout > 0 && now - entry.session.getCreationTime() >= timeout * 1000L;
+	}
+
+	/**
+	 * Remove expired sessions from the least recently used end. Caller holds
+	 * the stripe's lock.
+	 */
+	private void expireEldest(Stripe stripe, long now) {
+		Iterator<Map.Entry<SessionId, Entry>> it = stripe.sessions.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<SessionId, Entry> eldest = it.next();
+			if (!isExpired(eldest.getValue(), now)) {
+				break;
+			}
+			it.remove();
+			this.count.decrementAndGet();
+			this.memory.addAndGet(-eldest.getValue().size);
+			this.expirations.increment();
+		}
+	}
+
+	/**
+	 * Evict least recently used sessions until both limits are met. The
+	 * eldest sessions of all stripes are compared to find the victim, taking
+	 * one stripe lock at a time.
+	 */
+	private void evict() {
+		while (exceedsLimits()) {
+			Stripe victim = null;
+			long oldest = Long.MAX_VALUE;
+			for (Stripe stripe : this.stripes) {
+				synchronized (stripe) {
+					Iterator<Entry> it = stripe.sessions.values().iterator();
+					if (it.hasNext()) {
+						long used = it.next().lastUsed;
+						if (used < oldest) {
+							oldest = used;
+							victim = stripe;
+						}
+					}
+				}
+			}
+			if (victim == null) {
+				return;
+			}
+			synchronized (victim) {
+				Iterator<Entry> it = victim.sessions.values().iterator();
+				if (it.hasNext() && exceedsLimits()) {
+					Entry eldest = it.next();
+					it.remove();
+					this.count.decrementAndGet();
+					this.memory.addAndGet(-eldest.size);
+					this.evictions.increment();
+				}
+			}
+		}
+	}
+
+	private boolean exceedsLimits() {
+		int size = this.sessionCacheSize;
+		long max = this.maxMemory;
+		return (size > 0 && this.count.get() > size) || (max > 0 && this.memory.get() > max);
+	}
+
+	/**
+	 * Caller holds the stripe's lock.
+	 */
+	private void remove(Stripe stripe, SessionId key) {
+		Entry entry = stripe.sessions.remove(key);
+		if (entry != null) {
+			this.count.decrementAndGet();
+			this.memory.addAndGet(-entry.size);
+		}
+	}
+
+	private static int estimateSize(BcTlsSession session, byte[] id) {
+		int size = SESSION_OVERHEAD + 2 * id.length;
+		try {
+			Certificate[] certs = session.getPeerCertificates();
+			if (certs != null) {
+				for (Certificate cert : certs) {
+					size += cert.getEncoded().length;
+				}
+			}
+		} catch (SSLPeerUnverifiedException | CertificateEncodingException e) {
+			// no certificates to account for
+		}
+		return size;
+	}
+
+	/**
+	 * Sessions of one stripe in access order, guarded by the stripe itself
+	 */
+	private static final class Stripe {
+
+		final LinkedHashMap<SessionId, Entry> sessions = new LinkedHashMap<SessionId, Entry>(16, 0.75f, true);
+	}
+
+	private static final class Entry {
+
+		final BcTlsSession session;
+		final int size;
+		long lastUsed;
+
+		Entry(BcTlsSession session, int size, long lastUsed) {
+			this.session = session;
+			this.size = size;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private static final class SessionId {
+
+		final byte[] id;
+		private final int hash;
+
+		SessionId(byte[] id) {
+			this.id = id;
+			this.hash = Arrays.hashCode(id);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof SessionId && Arrays.equals(this.id, ((SessionId) obj).id);
+		}
+	}
+}
@@ -22,12 +22,20 @@ package bc.tls.socket;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.security.SecureRandom;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.HandshakeCompletedEvent;
 import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLSession;
 import org.bouncycastle.crypto.tls.TlsAuthentication;
 import org.bouncycastle.crypto.tls.TlsClient;
@@ -39,11 +47,19 @@ import org.bouncycastle.crypto.tls.TlsServer;
 import org.bouncycastle.crypto.tls.TlsServerProtocol;
 
 import bc.tls.BcSecurityPrototype;
+import bc.tls.ServerNameRouter;
 import bc.tls.logging.LogConsumer;
 import bc.tls.logging.LogConsumerFactory;
+import bc.tls.socket.DeadlineExceededException.Phase;
+import bc.tls.util.ByteArrayPool;
 
 /**
  * BC Socket implementation
+ * <p>
+ * Full duplex: one thread may read while another one writes. Concurrent
+ * readers and concurrent writers are serialised per record layer call, so
+ * each {@code write} goes out as a contiguous sequence of records.
+ * {@link #close()} may be called from any thread.
  * 
  * @author super-horst
  */
@@ -51,14 +67,22 @@ public class BcTlsSocket extends AbstractBcTlsSocket {
 
 	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("Socket");
 
-	private boolean isConnected = false;
+	/**
+	 * Maximum time in milliseconds to wait for a reverse lookup of the peer
+	 */
+	private static final long REVERSE_LOOKUP_TIMEOUT = 500;
+
+	private volatile boolean isConnected = false;
+
+	private final Object handshakeLock = new Object();
+	private IOException handshakeFailure;
 
 	private boolean clientMode;
 	private ClientAuthMode clientAuthMode;
 
 	private boolean enableSessionCreation = true;
 
-	private final Set<HandshakeCompletedListener> handshakeListener = new HashSet<HandshakeCompletedListener>();
+	private final Set<HandshakeCompletedListener> handshakeListener = new CopyOnWriteArraySet<HandshakeCompletedListener>();
 
 	private String[] supportedCipherSuites = new String[0];
 	private String[] enabledCipherSuites = new String[0];
@@ -66,11 +90,35 @@ public class BcTlsSocket extends AbstractBcTlsSocket {
 	private String[] supportedProtocols = new String[0];
 	private String[] enabledProtocols = new String[0];
 
-	private TlsProtocol protocol;
+	private volatile String peerHost;
+
+	private volatile TlsProtocol protocol;
+	private volatile InputStream rawInput;
 	private TlsPeer peer;
 	private SSLSession session;
+	private BcTlsByteChannel byteChannel;
+
+	private int writeCombiningSize = 0;
+	private long writeCombiningDelay = 0;
+	private volatile WriteCombiningOutputStream combiningStream;
+
+	private boolean falseStart = false;
+
+	private ServerNameRouter serverNameRouter;
+
+	private ClientSessionCache sessionCache;
+
+	private BcTlsSessionContext sessionContext;
+
+	private int readAheadSize = 0;
+	private ByteArrayPool readAheadPool;
 
-	private final SecureRandom secureRandom;
+	private SecureRandom secureRandom;
+
+	private Deadline handshakeDeadline;
+
+	private HandshakeAdmission handshakeAdmission;
+	private long acceptedAt;
 
 	private final BcSecurityPrototype securityPrototype;
 
@@ -87,20 +135,38 @@ public class BcTlsSocket extends AbstractBcTlsSocket {
 	 */
 	public BcTlsSocket(Socket s, boolean autoClose, BcSecurityPrototype prototype) {
 		super(s, autoClose);
-		this.secureRandom = prototype.makeRandom();
 		this.securityPrototype = prototype;
 	}
 
+	/**
+	 * May be called while other threads read or write, blocked readers and
+	 * writers are aborted.
+	 */
 	@Override
-	public synchronized void close() throws IOException {
-		if (isClosed()) {
+	public void close() throws IOException {
+		if (!markClosed()) {
 			return;
 		}
+		try {
+			closeProtocol();
+		} finally {
+			closeRawSocket();
+		}
+	}
+
+	private void closeProtocol() throws IOException {
+		if (this.combiningStream != null) {
+			// push out whatever is still buffered
+			try {
+				this.combiningStream.close();
+			} catch (IOException e) {
+				LOG.error("Unable to flush combined writes", e);
+			}
+		}
 		if (this.protocol != null && !this.protocol.isClosed()) {
 			LOG.debug("Closing tls protocol");
 			this.protocol.close();
 		}
-		super.close();
 	}
 
 	@Override
@@ -108,6 +174,45 @@ public class BcTlsSocket extends AbstractBcTlsSocket {
 		return this.isConnected;
 	}
 
+	/**
+	 * Whether an idle connection may be used again: the handshake is done,
+	 * nothing is closed and the peer sent nothing unsolicited, which would be
+	 * an alert or pending data of an earlier exchange. Must not be called
+	 * while other threads read.
+	 * 
+	 * @param probe
+	 *            also wait a millisecond for the peer having closed the
+	 *            connection without an alert
+	 */
+	boolean isReusable(boolean probe) {
+		if (!this.isConnected || isClosed() || this.protocol.isClosed() || this.socket.isClosed()
+				|| this.socket.isInputShutdown() || this.socket.isOutputShutdown()) {
+			return false;
+		}
+		try {
+			if (this.protocol.getInputStream().available() > 0 || this.rawInput.available() > 0) {
+				return false;
+			}
+			if (!probe) {
+				return true;
+			}
+			int timeout = this.socket.getSoTimeout();
+			this.socket.setSoTimeout(1);
+			try {
+				// end of stream or unsolicited data, either way the record
+				// layer cannot continue
+				this.rawInput.read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} finally {
+				this.socket.setSoTimeout(timeout);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
 	public void setSupportedCipherSuites(String[] suites) {
 		if (suites == null) {
 			this.supportedCipherSuites = new String[0];
@@ -179,39 +284,397 @@ public class BcTlsSocket extends AbstractBcTlsSocket {
 		this.handshakeListener.remove(listener);
 	}
 
+	/**
+	 * Performs the handshake, if not done yet. Concurrent callers wait for a
+	 * handshake in progress, a failed handshake is not retried. Registered
+	 * {@link HandshakeCompletedListener}s are notified on the handshaking
+	 * thread.
+	 */
 	@Override
 	public void startHandshake() throws IOException {
-		String hostname = socket.getInetAddress().getCanonicalHostName();
+		synchronized (this.handshakeLock) {
+			if (this.isConnected) {
+				return;
+			}
+			if (this.handshakeFailure != null) {
+				SSLHandshakeException e = new SSLHandshakeException("Handshake has already failed");
+				e.initCause(this.handshakeFailure);
+				throw e;
+			}
+			try {
+				admitHandshake();
+				try {
+					performHandshake();
+				} finally {
+					if (this.handshakeAdmission != null) {
+						this.handshakeAdmission.release();
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				this.handshakeFailure = e instanceof IOException ? (IOException) e : new IOException(e);
+				throw e;
+			}
+		}
+		notifyHandshakeCompleted();
+	}
+
+	/**
+	 * Performs the handshake on the given executor.
+	 * 
+	 * @param executor
+	 *            executor to run the handshake and notify listeners on
+	 * @return future completing with this socket's session, or exceptionally
+	 *         with the handshake's failure
+	 * @throws IOException
+	 *             if the executor rejected the handshake, the socket is
+	 *             closed then
+	 */
+	public CompletableFuture<SSLSession> startHandshakeAsync(Executor executor) throws IOException {
+		final CompletableFuture<SSLSession> future = new CompletableFuture<SSLSession>();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						startHandshake();
+						future.complete(session);
+					} catch (IOException | RuntimeException e) {
+						LOG.error("Asynchronous handshake failed", e);
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			IOException failure = new IOException("Handshake executor rejected the handshake", e);
+			synchronized (this.handshakeLock) {
+				if (!this.isConnected && this.handshakeFailure == null) {
+					this.handshakeFailure = failure;
+				}
+			}
+			try {
+				close();
+			} catch (IOException closeFailure) {
+				failure.addSuppressed(closeFailure);
+			}
+			throw failure;
+		}
+		return future;
+	}
+
+	private void notifyHandshakeCompleted() {
+		if (this.handshakeListener.isEmpty()) {
+			return;
+		}
+		HandshakeCompletedEvent event = new HandshakeCompletedEvent(this, this.session);
+		for (HandshakeCompletedListener listener : this.handshakeListener) {
+			try {
+				listener.handshakeCompleted(event);
+			} catch (RuntimeException e) {
+				LOG.error("Handshake listener failed", e);
+			}
+		}
+	}
+
+	private void admitHandshake() throws IOException {
+		if (this.handshakeAdmission == null) {
+			return;
+		}
+		try {
+			this.handshakeAdmission.admit(this.socket.getInetAddress(), this.acceptedAt);
+		} catch (HandshakeRejectedException e) {
+			// shed without spending any work on the connection
+			this.socket.close();
+			throw e;
+		}
+	}
+
+	private void performHandshake() throws IOException {
+		String hostname = resolvePeerHost();
+		Deadline deadline = this.handshakeDeadline;
+		InputStream rawInput = this.socket.getInputStream();
+		DeadlineInputStream bounded = null;
+		if (deadline != null) {
+			deadline.enter(Phase.HANDSHAKE);
+			rawInput = bounded = new DeadlineInputStream(rawInput, this.socket, deadline);
+		}
+		if (this.readAheadPool != null) {
+			rawInput = new ReadAheadInputStream(rawInput, this.readAheadPool);
+		} else if (this.readAheadSize > 0) {
+			rawInput = new ReadAheadInputStream(rawInput, this.readAheadSize);
+		}
+		RecordBoundaryInputStream recordInput = new RecordBoundaryInputStream(rawInput);
+		this.rawInput = recordInput;
+
+		if (this.secureRandom == null) {
+			this.secureRandom = this.securityPrototype.makeRandom();
+		}
+
+		try {
+			handshakeProtocol(recordInput, hostname);
+		} catch (IOException e) {
+			if (deadline != null && deadline.isExpired() && !(e instanceof DeadlineExceededException)) {
+				throw deadline.exceeded(Phase.HANDSHAKE, e);
+			}
+			throw e;
+		} finally {
+			if (bounded != null) {
+				bounded.disarm();
+			}
+		}
+		BcTlsSession established = new BcTlsSession(this, peer);
+		if (!this.clientMode && this.sessionContext != null) {
+			// the context must not keep the connection alive
+			BcTlsSession detached = established.detach(((BcTlsServer) this.peer).getSelectedCipherSuite());
+			this.sessionContext.putSession(detached);
+			established.join(detached);
+		}
+		session = established;
+		isConnected = true;
+
+		LOG.info(String.format("Handshake successful, connected to %s", hostname));
+	}
+
+	private void handshakeProtocol(RecordBoundaryInputStream rawInput, String hostname) throws IOException {
 		if (this.clientMode) {
 			LOG.debug("Performing handshake in client mode");
-			this.protocol = new TlsClientProtocol(this.socket.getInputStream(), this.socket.getOutputStream(),
-					this.secureRandom);
-			this.peer = new BcTlsClient(this.securityPrototype, hostname);
+			if (this.falseStart) {
+				this.protocol = new FalseStartClientProtocol(rawInput, this.socket.getOutputStream(), this.socket,
+						this.secureRandom);
+			} else {
+				this.protocol = new DuplexClientProtocol(rawInput, this.socket.getOutputStream(), this.socket,
+						this.secureRandom);
+			}
+			this.peer = new BcTlsClient(this.securityPrototype, hostname, this.socket.getPort(), this.sessionCache);
 			((TlsClientProtocol) this.protocol).connect((TlsClient) this.peer);
+			if (this.protocol instanceof FalseStartClientProtocol
+					&& ((FalseStartClientProtocol) this.protocol).isFalseStarted()) {
+				LOG.debug("Handshake false started, server finished is pending");
+			}
 		} else {
 			LOG.debug("Performing handshake in server mode");
-			this.protocol = new TlsServerProtocol(this.socket.getInputStream(), this.socket.getOutputStream(),
+			this.protocol = new DuplexServerProtocol(rawInput, this.socket.getOutputStream(), this.socket,
 					this.secureRandom);
-			this.peer = new BcTlsServer(this.securityPrototype, hostname);
-			((TlsServerProtocol) this.protocol).accept((TlsServer) this.peer);
+			BcTlsServer server = new BcTlsServer(this.securityPrototype, hostname, this.serverNameRouter);
+			this.peer = server;
+			((TlsServerProtocol) this.protocol).accept(server);
 		}
-		isConnected = true;
+	}
 
-		LOG.info(String.format("Handshake successful, connected to %s", hostname));
+	private String resolvePeerHost() {
+		if (this.peerHost == null) {
+			InetAddress address = this.socket.getInetAddress();
+			if (this.clientMode) {
+				this.peerHost = ReverseLookup.hostName(address, REVERSE_LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+			} else {
+				// accepted sockets do not need a name
+				this.peerHost = address.getHostAddress();
+			}
+		}
+		return this.peerHost;
+	}
+
+	/**
+	 * Host name of the peer, as sent in the server name indication of a
+	 * client. If none is set, client sockets fall back to a cached reverse
+	 * lookup, server sockets use the address literal. Has to be set before the
+	 * handshake.
+	 * 
+	 * @param host
+	 *            the peer's host name
+	 */
+	public void setPeerHost(String host) {
+		this.peerHost = host;
+	}
 
-		session = new BcTlsSession(this, peer);
+	/**
+	 * @return the peer's host name, {@code null} if unknown before the
+	 *         handshake
+	 */
+	public String getPeerHost() {
+		return this.peerHost;
 	}
 
+	/**
+	 * Performs the handshake first, if not done yet.
+	 */
 	@Override
-	public InputStream getInputStream() {
+	public InputStream getInputStream() throws IOException {
+		startHandshake();
 		return this.protocol.getInputStream();
 	}
 
+	/**
+	 * Performs the handshake first, if not done yet.
+	 */
 	@Override
-	public OutputStream getOutputStream() {
+	public OutputStream getOutputStream() throws IOException {
+		startHandshake();
+		if (this.writeCombiningSize > 0) {
+			synchronized (this) {
+				if (this.combiningStream == null) {
+					this.combiningStream = new WriteCombiningOutputStream(this.protocol.getOutputStream(),
+							this.writeCombiningSize, this.writeCombiningDelay, TimeUnit.MILLISECONDS);
+				}
+				return this.combiningStream;
+			}
+		}
 		return this.protocol.getOutputStream();
 	}
 
+	/**
+	 * Resume sessions from the given cache and store new ones in it. Client
+	 * mode only, has to be set before the handshake.
+	 * 
+	 * @param cache
+	 *            the session cache, {@code null} to always perform a full
+	 *            handshake
+	 */
+	public void setSessionCache(ClientSessionCache cache) {
+		this.sessionCache = cache;
+	}
+
+	/**
+	 * Add the established session to the given context. Server mode only, has
+	 * to be set before the handshake.
+	 * 
+	 * @param context
+	 *            the server session context, {@code null} to keep the session
+	 *            to this socket
+	 */
+	public void setSessionContext(BcTlsSessionContext context) {
+		this.sessionContext = context;
+	}
+
+	/**
+	 * Use a shared random source instead of one made by the prototype, e.g. a
+	 * {@link bc.tls.util.SecureRandomPool}. Has to be set before the
+	 * handshake.
+	 * 
+	 * @param random
+	 *            the random source, {@code null} to ask the prototype
+	 */
+	public void setSecureRandom(SecureRandom random) {
+		this.secureRandom = random;
+	}
+
+	/**
+	 * Select the server's prototype by the host name the client indicated.
+	 * Server mode only, has to be set before the handshake.
+	 * 
+	 * @param router
+	 *            the router, {@code null} to always use this socket's
+	 *            prototype
+	 */
+	public void setServerNameRouter(ServerNameRouter router) {
+		this.serverNameRouter = router;
+	}
+
+	/**
+	 * Allow application data to be sent right after the client's Finished
+	 * message for full handshakes negotiating a cipher suite that
+	 * {@link bc.tls.CipherSuite#allowsFalseStart() allows for it}. The
+	 * handshake, including listener notification, then completes before the
+	 * server's Finished message has been verified. Client mode only, has to be
+	 * set before the handshake.
+	 * 
+	 * @param falseStart
+	 *            {@code true} to enable TLS False Start
+	 */
+	public void setFalseStart(boolean falseStart) {
+		this.falseStart = falseStart;
+	}
+
+	/**
+	 * @return whether TLS False Start is enabled
+	 */
+	public boolean isFalseStart() {
+		return this.falseStart;
+	}
+
+	/**
+	 * Bound the handshake by the remaining time of a connection deadline
+	 * 
+	 * @param deadline
+	 *            the deadline, {@code null} for none
+	 */
+	void setHandshakeDeadline(Deadline deadline) {
+		this.handshakeDeadline = deadline;
+	}
+
+	/**
+	 * Wait for admission before the handshake of an accepted socket
+	 * 
+	 * @param admission
+	 *            the admission control, {@code null} for none
+	 * @param acceptedAt
+	 *            {@link System#nanoTime()} the socket was accepted at
+	 */
+	void setHandshakeAdmission(HandshakeAdmission admission, long acceptedAt) {
+		this.handshakeAdmission = admission;
+		this.acceptedAt = acceptedAt;
+	}
+
+	/**
+	 * Read ahead from the raw socket, so that whole records are pulled in
+	 * per read. Has to be set before the handshake.
+	 * 
+	 * @param size
+	 *            size of the read-ahead buffer, {@code 0} disables reading
+	 *            ahead
+	 */
+	public void setReadAhead(int size) {
+		this.readAheadSize = Math.max(0, size);
+		this.readAheadPool = null;
+	}
+
+	/**
+	 * Read ahead from the raw socket into a pooled buffer, which is returned
+	 * to the pool once the socket is closed. Has to be set before the
+	 * handshake.
+	 * 
+	 * @param pool
+	 *            pool for the read-ahead buffer
+	 */
+	public void setReadAhead(ByteArrayPool pool) {
+		this.readAheadPool = pool;
+		this.readAheadSize = 0;
+	}
+
+	/**
+	 * Combine small application writes into larger records. Has to be set
+	 * before the output stream is requested for the first time.
+	 * 
+	 * @param recordSize
+	 *            maximum number of bytes per combined record, {@code 0}
+	 *            disables write combining
+	 * @param maxDelay
+	 *            maximum time to hold back buffered data from further
+	 *            writes, {@code 0} to wait for an explicit {@code flush()}
+	 * @param unit
+	 *            unit of the delay
+	 */
+	public void setWriteCombining(int recordSize, long maxDelay, TimeUnit unit) {
+		if (this.combiningStream != null) {
+			throw new IllegalStateException("Output stream has already been handed out");
+		}
+		this.writeCombiningSize = Math.max(0, recordSize);
+		this.writeCombiningDelay = unit.toMillis(maxDelay);
+	}
+
+	/**
+	 * Channel view on this socket's application data, backed by the
+	 * socket's streams. The handshake is performed on first use, if not done
+	 * yet.
+	 * 
+	 * @return a blocking {@link BcTlsByteChannel} for this socket
+	 */
+	public synchronized BcTlsByteChannel getByteChannel() {
+		if (this.byteChannel == null) {
+			this.byteChannel = new BcTlsByteChannel(this);
+		}
+		return this.byteChannel;
+	}
+
 	@Override
 	public void setUseClientMode(boolean mode) {
 		this.clientMode = mode;
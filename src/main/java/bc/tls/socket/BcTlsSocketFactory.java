@@ -25,7 +25,7 @@ import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.Socket;
-import java.net.URI;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.AccessController;
 import java.security.NoSuchAlgorithmException;
@@ -33,19 +33,24 @@ import java.security.PrivilegedAction;
 import java.security.Provider;
 import java.security.SecureRandom;
 import java.security.Security;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLSocketFactory;
 
+import org.bouncycastle.util.IPAddress;
+
 import bc.tls.BcSecurityPrototype;
 import bc.tls.CipherSuite;
+import bc.tls.socket.DeadlineExceededException.Phase;
 import bc.tls.logging.LogConsumer;
 import bc.tls.logging.LogConsumerFactory;
 import bc.tls.logging.LogLevel;
+import bc.tls.util.ByteArrayPool;
 
 /**
  * BC tls socket factory, allows for per-connection authentication
@@ -72,6 +77,14 @@ public class BcTlsSocketFactory extends SSLSocketFactory implements SocketFactor
 
 	private BcSecurityPrototype defaultPrototype;
 
+	private final ClientSessionCache sessionCache = new ClientSessionCache();
+
+	private final ProxyDecisionCache proxyCache = new ProxyDecisionCache();
+
+	private final DnsCache dnsCache = new DnsCache();
+
+	private final Map<String, SocketProfile> socketProfiles = new ConcurrentHashMap<String, SocketProfile>();
+
 	/**
 	 * The default socket timeout in milliseconds
 	 */
@@ -130,6 +143,13 @@ public class BcTlsSocketFactory extends SSLSocketFactory implements SocketFactor
 		setDefaultTimeout(DEFAULT_TIMEOUT, TimeUnit.SECONDS);
 
 		setConfigProperty(KEY_SOCKET_AUTO_CLOSE, Boolean.TRUE);
+
+		setConfigProperty(KEY_PROXY_CACHE_TTL, DEFAULT_PROXY_CACHE_TTL);
+
+		setConfigProperty(KEY_HAPPY_EYEBALLS_DELAY, DEFAULT_HAPPY_EYEBALLS_DELAY);
+
+		setConfigProperty(KEY_DNS_CACHE_TTL, DEFAULT_DNS_CACHE_TTL);
+		setConfigProperty(KEY_DNS_NEGATIVE_TTL, DEFAULT_DNS_NEGATIVE_TTL);
 	}
 
 	@Override
@@ -191,6 +211,14 @@ public class BcTlsSocketFactory extends SSLSocketFactory implements SocketFactor
 		return this.supportedCipherSuites;
 	}
 
+	/**
+	 * @return the cache client sockets resume sessions from, unless
+	 *         overridden by {@link #KEY_SESSION_CACHE}
+	 */
+	public ClientSessionCache getSessionCache() {
+		return this.sessionCache;
+	}
+
 	/**
 	 * @return whether or not this factory produces client sockets
 	 */
@@ -223,17 +251,17 @@ public class BcTlsSocketFactory extends SSLSocketFactory implements SocketFactor
 	@Override
 	public BcTlsSocket createSocket(String host, int port, InetAddress localHost, int localPort)
 			throws IOException, UnknownHostException {
-		return createSocket(null, new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort), null);
+		return createSocket(null, unresolved(host, port), new InetSocketAddress(localHost, localPort), null);
 	}
 
 	@Override
 	public BcTlsSocket createSocket(String host, int port) throws IOException, UnknownHostException {
-		return createSocket(null, new InetSocketAddress(host, port), null, null);
+		return createSocket(null, unresolved(host, port), null, null);
 	}
 
 	@Override
 	public BcTlsSocket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
-		return createSocket(s, new InetSocketAddress(host, port), null, autoClose, null);
+		return createSocket(s, unresolved(host, port), null, autoClose, null, null);
 	}
 
 	public BcTlsSocket createSocket(InetAddress host, int port, BcSecurityPrototype prototype) throws IOException {
@@ -248,25 +276,69 @@ public class BcTlsSocketFactory extends SSLSocketFactory implements SocketFactor
 
 	public BcTlsSocket createSocket(String host, int port, InetAddress localHost, int localPort,
 			BcSecurityPrototype prototype) throws IOException, UnknownHostException {
-		return createSocket(null, new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort),
-				prototype);
+		return createSocket(null, unresolved(host, port), new InetSocketAddress(localHost, localPort), prototype);
 	}
 
 	public BcTlsSocket createSocket(String host, int port, BcSecurityPrototype prototype)
 			throws IOException, UnknownHostException {
-		return createSocket(null, new InetSocketAddress(host, port), null, prototype);
+		return createSocket(null, unresolved(host, port), null, prototype);
+	}
+
+	/**
+	 * @param profile
+	 *            socket options for this connection, overriding the
+	 *            endpoint's and the default profile
+	 */
+	public BcTlsSocket createSocket(String host, int port, BcSecurityPrototype prototype, SocketProfile profile)
+			throws IOException, UnknownHostException {
+		return createSocket(null, unresolved(host, port), null, (Boolean) getConfigProperty(KEY_SOCKET_AUTO_CLOSE),
+				prototype, profile);
 	}
 
 	private BcTlsSocket createSocket(final Socket socket, final InetSocketAddress remoteAddress,
 			final InetSocketAddress localAddress, BcSecurityPrototype prototype) throws IOException {
 
 		return createSocket(socket, remoteAddress, localAddress, (Boolean) getConfigProperty(KEY_SOCKET_AUTO_CLOSE),
-				prototype);
+				prototype, null);
 	}
 
 	public BcTlsSocket createSocket(Socket s, String host, int port, boolean autoClose, BcSecurityPrototype prototype)
 			throws IOException {
-		return createSocket(s, new InetSocketAddress(host, port), null, autoClose, prototype);
+		return createSocket(s, unresolved(host, port), null, autoClose, prototype, null);
+	}
+
+	/**
+	 * Connect within a time budget of its own instead of
+	 * {@link SocketFactoryManager#KEY_CONNECT_DEADLINE}
+	 * 
+	 * @param budgetMillis
+	 *            time in milliseconds for resolving, connecting and the
+	 *            handshake
+	 */
+	BcTlsSocket createSocket(String host, int port, BcSecurityPrototype prototype, long budgetMillis)
+			throws IOException {
+		return createSocket(null, unresolved(host, port), null, (Boolean) getConfigProperty(KEY_SOCKET_AUTO_CLOSE),
+				prototype, null, new Deadline(budgetMillis));
+	}
+
+	/**
+	 * Tune the raw sockets connected to an endpoint, overriding the default
+	 * profile
+	 * 
+	 * @param host
+	 *            the endpoint's host, as passed to {@code createSocket}
+	 * @param port
+	 *            the endpoint's port
+	 * @param profile
+	 *            the profile, {@code null} to use the default one
+	 */
+	public void setSocketProfile(String host, int port, SocketProfile profile) {
+		String endpoint = endpoint(host, port);
+		if (profile == null) {
+			this.socketProfiles.remove(endpoint);
+		} else {
+			this.socketProfiles.put(endpoint, profile);
+		}
 	}
 
 	/**
@@ -282,16 +354,34 @@ public class BcTlsSocketFactory extends SSLSocketFactory implements SocketFactor
 	 *            auto close underlying socket, if tls socket closes
 	 * @param prototype
 	 *            security override, defaults to {@code this.defaultPrototype}
+	 * @param profile
+	 *            socket options override for a new raw socket, may be
+	 *            {@code null}
 	 * @return
 	 * @throws IOException
 	 */
 	private BcTlsSocket createSocket(Socket rawSocket, final InetSocketAddress remoteAddress,
-			final InetSocketAddress localAddress, boolean autoClose, BcSecurityPrototype prototype) throws IOException {
+			final InetSocketAddress localAddress, boolean autoClose, BcSecurityPrototype prototype,
+			SocketProfile profile) throws IOException {
+		Object budget = getConfigProperty(KEY_CONNECT_DEADLINE);
+		Deadline deadline = budget instanceof Long && (Long) budget > 0 ? new Deadline((Long) budget) : null;
+		return createSocket(rawSocket, remoteAddress, localAddress, autoClose, prototype, profile, deadline);
+	}
+
+	private BcTlsSocket createSocket(Socket rawSocket, final InetSocketAddress remoteAddress,
+			final InetSocketAddress localAddress, boolean autoClose, BcSecurityPrototype prototype,
+			SocketProfile profile, Deadline deadline) throws IOException {
 		// TODO hand out prototype clones
 		BcSecurityPrototype securityPrototype = prototype == null ? this.defaultPrototype : prototype;
 
+		InetSocketAddress target = remoteAddress;
+		if (target.isUnresolved() && (rawSocket == null || !rawSocket.isConnected())) {
+			target = resolve(target, deadline);
+		}
+
 		if (rawSocket == null) {
-			rawSocket = createRawSocket(remoteAddress, localAddress);
+			SocketProfile rawProfile = profile == null ? profileFor(target) : profile;
+			rawSocket = createRawSocket(target, localAddress, rawProfile, deadline);
 		}
 
 		if (!rawSocket.isBound()) {
@@ -299,7 +389,7 @@ public class BcTlsSocketFactory extends SSLSocketFactory implements SocketFactor
 		}
 
 		if (!rawSocket.isConnected()) {
-			rawSocket.connect(remoteAddress, this.defaultTimeout.intValue());
+			rawSocket.connect(target, connectTimeout(deadline, Phase.CONNECT));
 		}
 
 		if (LOG.isLevelEnabled(LogLevel.DEBUG)) {
@@ -308,6 +398,40 @@ public class BcTlsSocketFactory extends SSLSocketFactory implements SocketFactor
 
 		BcTlsSocket tlsSocket = new BcTlsSocket(rawSocket, autoClose, securityPrototype);
 		tlsSocket.setUseClientMode(this.clientMode);
+		String host = remoteAddress.getHostString();
+		if (!IPAddress.isValid(host)) {
+			// the name the caller asked for, no lookup involved
+			tlsSocket.setPeerHost(host);
+		}
+		tlsSocket.setFalseStart(Boolean.TRUE.equals(getConfigProperty(KEY_FALSE_START)));
+		tlsSocket.setHandshakeDeadline(deadline);
+
+		Object cache = getConfigProperty(KEY_SESSION_CACHE);
+		if (cache instanceof ClientSessionCache) {
+			tlsSocket.setSessionCache((ClientSessionCache) cache);
+		} else if (!Boolean.FALSE.equals(cache)) {
+			tlsSocket.setSessionCache(this.sessionCache);
+		}
+
+		Object combiningSize = getConfigProperty(KEY_WRITE_COMBINING_SIZE);
+		if (combiningSize instanceof Integer && (Integer) combiningSize > 0) {
+			Object combiningDelay = getConfigProperty(KEY_WRITE_COMBINING_DELAY);
+			long delay = combiningDelay instanceof Long ? (Long) combiningDelay : 0L;
+			tlsSocket.setWriteCombining((Integer) combiningSize, delay, TimeUnit.MILLISECONDS);
+		}
+
+		Object readAheadPool = getConfigProperty(KEY_READ_AHEAD_POOL);
+		Object readAheadSize = getConfigProperty(KEY_READ_AHEAD_SIZE);
+		if (readAheadPool instanceof ByteArrayPool) {
+			tlsSocket.setReadAhead((ByteArrayPool) readAheadPool);
+		} else if (readAheadSize instanceof Integer) {
+			tlsSocket.setReadAhead((Integer) readAheadSize);
+		}
+
+		Object random = getConfigProperty(KEY_SECURE_RANDOM);
+		if (random instanceof SecureRandom) {
+			tlsSocket.setSecureRandom((SecureRandom) random);
+		}
 
 		return tlsSocket;
 	}
@@ -338,42 +462,167 @@ public class BcTlsSocketFactory extends SSLSocketFactory implements SocketFactor
 		return SecureRandom.getInstance(algorithm, provider);
 	}
 
-	private Socket createRawSocket(final InetSocketAddress remoteAddress, final InetSocketAddress localAddress)
-			throws IOException {
-		Socket s = null;
-		URI uri = URI.create(String.format("socket://" + remoteAddress.getHostName() + ":%d", remoteAddress.getPort()));
-		ProxySelector ps = ProxySelector.getDefault();
-		List<Proxy> proxyList = ps.select(uri);
+	/**
+	 * Host names are resolved through the cache when connecting, within the
+	 * deadline
+	 */
+	private static InetSocketAddress unresolved(String host, int port) {
+		if (host == null || IPAddress.isValid(host)) {
+			return new InetSocketAddress(host, port);
+		}
+		return InetSocketAddress.createUnresolved(host, port);
+	}
+
+	/**
+	 * Resolve the host through the cache. Unknown hosts are left unresolved,
+	 * a proxy may still be able to reach them.
+	 */
+	private InetSocketAddress resolve(InetSocketAddress address, Deadline deadline) throws IOException {
+		String host = address.getHostString();
+		try {
+			return new InetSocketAddress(resolveAll(host, deadline)[0], address.getPort());
+		} catch (UnknownHostException e) {
+			return address;
+		}
+	}
+
+	private InetAddress[] resolveAll(String host, Deadline deadline) throws IOException {
+		Object ttl = getConfigProperty(KEY_DNS_CACHE_TTL);
+		Object negativeTtl = getConfigProperty(KEY_DNS_NEGATIVE_TTL);
+		long timeout = 0;
+		if (deadline != null) {
+			deadline.enter(Phase.RESOLVE);
+			timeout = deadline.remaining(Phase.RESOLVE);
+		}
+		try {
+			return this.dnsCache.resolve(host, ttl instanceof Long ? (Long) ttl : 0L,
+					negativeTtl instanceof Long ? (Long) negativeTtl : 0L, timeout);
+		} catch (SocketTimeoutException e) {
+			throw deadline == null ? e : deadline.exceeded(Phase.RESOLVE, e);
+		}
+	}
+
+	/**
+	 * @return the default timeout, shortened to the time left until the
+	 *         deadline
+	 */
+	private int connectTimeout(Deadline deadline, Phase phase) throws DeadlineExceededException {
+		int timeout = this.defaultTimeout.intValue();
+		if (deadline == null) {
+			return timeout;
+		}
+		deadline.enter(phase);
+		return deadline.bound(phase, timeout);
+	}
+
+	/**
+	 * @return whether the timeout is the time left, not the default timeout
+	 */
+	private boolean boundByDeadline(int timeout) {
+		int defaultTimeout = this.defaultTimeout.intValue();
+		return defaultTimeout <= 0 || timeout < defaultTimeout;
+	}
+
+	private SocketProfile profileFor(InetSocketAddress remoteAddress) {
+		if (!this.socketProfiles.isEmpty()) {
+			SocketProfile profile = this.socketProfiles.get(endpoint(remoteAddress.getHostString(),
+					remoteAddress.getPort()));
+			if (profile != null) {
+				return profile;
+			}
+		}
+		Object profile = getConfigProperty(KEY_SOCKET_PROFILE);
+		return profile instanceof SocketProfile ? (SocketProfile) profile : null;
+	}
+
+	private static String endpoint(String host, int port) {
+		return host.toLowerCase(Locale.ROOT) + ':' + port;
+	}
+
+	private Socket createRawSocket(final InetSocketAddress remoteAddress, final InetSocketAddress localAddress,
+			SocketProfile profile, Deadline deadline) throws IOException {
+		Object fixedProxy = getConfigProperty(KEY_PROXY);
+		if (Proxy.NO_PROXY.equals(fixedProxy)) {
+			// nothing to select
+			return connectRawSocket(Proxy.NO_PROXY, remoteAddress, localAddress, profile, deadline);
+		}
+
+		String host = remoteAddress.getHostString();
+		int port = remoteAddress.getPort();
+		ProxySelector ps = null;
+		List<Proxy> proxyList;
+		if (fixedProxy instanceof Proxy) {
+			proxyList = Collections.singletonList((Proxy) fixedProxy);
+		} else {
+			Object selector = getConfigProperty(KEY_PROXY_SELECTOR);
+			ps = selector instanceof ProxySelector ? (ProxySelector) selector : ProxySelector.getDefault();
+			Object ttl = getConfigProperty(KEY_PROXY_CACHE_TTL);
+			proxyList = this.proxyCache.select(ps, host, port, ttl instanceof Long ? (Long) ttl : 0L);
+		}
 		if (LOG.isLevelEnabled(LogLevel.TRACE)) {
 			LOG.trace(String.format("Selector handed out %d proxies", proxyList.size()));
 		}
 
-		Iterator<Proxy> proxies = proxyList.iterator();
-		while (proxies.hasNext()) {
-			Proxy proxy = proxies.next();
+		for (int i = 0; i < proxyList.size(); i++) {
+			Proxy proxy = proxyList.get(i);
 			try {
-				s = new Socket(proxy);
-				s.bind(localAddress);
-				s.connect(remoteAddress, this.defaultTimeout.intValue());
-				break;
+				return connectRawSocket(proxy, remoteAddress, localAddress, profile, deadline);
 			} catch (IOException ioe) {
-				if (s != null) {
-					s.close();
-				}
-
-				if (proxy.equals(Proxy.NO_PROXY)) {
+				if (proxy.equals(Proxy.NO_PROXY) || ioe instanceof DeadlineExceededException) {
 					throw ioe;
 				}
 
-				ps.connectFailed(uri, proxy.address(), ioe);
+				this.proxyCache.connectFailed(ps, host, port, proxy, ioe);
 
-				if (!proxies.hasNext()) {
-					throw new IOException("Unable to connect to through proxy" + uri, ioe);
+				if (i == proxyList.size() - 1) {
+					throw new IOException(String.format("Unable to connect to %s:%d through proxy", host, port), ioe);
 				}
 
 				LOG.error("Exception connecting to address", ioe);
 			}
 		}
+		throw new IOException("No proxy selected");
+	}
+
+	private Socket connectRawSocket(Proxy proxy, InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+			SocketProfile profile, Deadline deadline) throws IOException {
+		Phase phase = proxy == Proxy.NO_PROXY ? Phase.CONNECT : Phase.PROXY;
+		String host = remoteAddress.getHostString();
+		if (proxy == Proxy.NO_PROXY && Boolean.TRUE.equals(getConfigProperty(KEY_HAPPY_EYEBALLS))
+				&& !IPAddress.isValid(host)) {
+			InetAddress[] addresses = resolveAll(host, deadline);
+			if (addresses.length > 1) {
+				Object delay = getConfigProperty(KEY_HAPPY_EYEBALLS_DELAY);
+				HappyEyeballsConnector connector = new HappyEyeballsConnector(
+						delay instanceof Long ? (Long) delay : DEFAULT_HAPPY_EYEBALLS_DELAY, profile);
+				int timeout = connectTimeout(deadline, phase);
+				try {
+					return connector.connect(addresses, remoteAddress.getPort(), localAddress, timeout);
+				} catch (IOException e) {
+					throw deadline != null && deadline.isExpired() ? deadline.exceeded(phase, e) : e;
+				}
+			}
+		}
+
+		Socket s = proxy == Proxy.NO_PROXY ? new Socket() : new Socket(proxy);
+		int timeout = 0;
+		try {
+			if (profile != null) {
+				profile.apply(s);
+			}
+			s.bind(localAddress);
+			timeout = connectTimeout(deadline, phase);
+			s.connect(remoteAddress, timeout);
+		} catch (IOException | RuntimeException e) {
+			s.close();
+			if (e instanceof IOException && deadline != null && !(e instanceof DeadlineExceededException)
+					&& (deadline.isExpired() || e instanceof SocketTimeoutException && boundByDeadline(timeout))) {
+				// the connect timed out on the time left, which it measures
+				// on a clock of its own
+				throw deadline.exceeded(phase, e);
+			}
+			throw e;
+		}
 		return s;
 	}
 
@@ -0,0 +1,264 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.crypto.tls.TlsSession;
+
+import bc.tls.BcSecurityPrototype;
+
+/**
+ * Bounded cache of resumable client sessions, keyed by peer host, port and
+ * security prototype. Sessions are evicted least recently used first and
+ * expire after a fixed lifetime.
+ * 
+ * @author super-horst
+ *
+ */
+public class ClientSessionCache {
+
+	/**
+	 * Default maximum number of cached sessions
+	 */
+	public static final int DEFAULT_SIZE = 1024;
+
+	/**
+	 * Default session lifetime in seconds
+	 */
+	public static final long DEFAULT_TIMEOUT = 3600;
+
+	private final int maxEntries;
+	private final long timeoutMillis;
+
+	private final Map<Key, Entry> sessions;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ClientSessionCache() {
+		this(DEFAULT_SIZE, DEFAULT_TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of cached sessions
+	 * @param timeout
+	 *            lifetime of a session, counted from its first handshake
+	 * @param unit
+	 *            unit of the lifetime
+	 */
+	public ClientSessionCache(int maxEntries, long timeout, TimeUnit unit) {
+		if (maxEntries < 0 || timeout <= 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid cache dimensions: size %d, timeout %d", maxEntries, timeout));
+		}
+		this.maxEntries = maxEntries;
+		this.timeoutMillis = unit.toMillis(timeout);
+		this.sessions = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > ClientSessionCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return a resumable session for the peer or {@code null}
+	 */
+	public TlsSession get(String host, int port, BcSecurityPrototype prototype) {
+		Key key = new Key(host, port, prototype);
+		Entry entry;
+		synchronized (this.sessions) {
+			entry = this.sessions.get(key);
+			if (entry != null && (!entry.session.isResumable()
+					|| System.currentTimeMillis() - entry.created > this.timeoutMillis)) {
+				this.sessions.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		this.hits.incrementAndGet();
+		return entry.session;
+	}
+
+	/**
+	 * Cache a session, if it is resumable. Resuming a session keeps its
+	 * original creation time.
+	 */
+	public void put(String host, int port, BcSecurityPrototype prototype, TlsSession session) {
+		if (session == null || !session.isResumable() || session.getSessionID().length == 0) {
+			return;
+		}
+		Key key = new Key(host, port, prototype);
+		synchronized (this.sessions) {
+			Entry entry = this.sessions.get(key);
+			if (entry == null || entry.session != session) {
+				this.sessions.put(key, new Entry(session, System.currentTimeMillis()));
+			}
+		}
+	}
+
+	/**
+	 * Cache a session with its original creation time, unless it expired or
+	 * a session for the peer is cached already.
+	 * 
+	 * @return whether the session was cached
+	 */
+	boolean restore(String host, int port, BcSecurityPrototype prototype, TlsSession session, long created) {
+		if (!session.isResumable() || System.currentTimeMillis() - created > this.timeoutMillis) {
+			return false;
+		}
+		Key key = new Key(host, port, prototype);
+		synchronized (this.sessions) {
+			if (this.sessions.containsKey(key)) {
+				return false;
+			}
+			this.sessions.put(key, new Entry(session, created));
+			return true;
+		}
+	}
+
+	/**
+	 * @return the resumable, unexpired sessions of the prototype, least
+	 *         recently used first
+	 */
+	List<CachedSession> snapshot(BcSecurityPrototype prototype) {
+		long now = System.currentTimeMillis();
+		List<CachedSession> result = new ArrayList<CachedSession>();
+		synchronized (this.sessions) {
+			for (Map.Entry<Key, Entry> e : this.sessions.entrySet()) {
+				Key key = e.getKey();
+				Entry entry = e.getValue();
+				if (key.prototype == prototype && entry.session.isResumable()
+						&& now - entry.created <= this.timeoutMillis) {
+					result.add(new CachedSession(key.host, key.port, entry.session, entry.created));
+				}
+			}
+		}
+		return result;
+	}
+
+	public void remove(String host, int port, BcSecurityPrototype prototype) {
+		synchronized (this.sessions) {
+			this.sessions.remove(new Key(host, port, prototype));
+		}
+	}
+
+	public void clear() {
+		synchronized (this.sessions) {
+			this.sessions.clear();
+		}
+	}
+
+	/**
+	 * @return number of cached sessions, including expired ones not yet
+	 *         evicted
+	 */
+	public int size() {
+		synchronized (this.sessions) {
+			return this.sessions.size();
+		}
+	}
+
+	/**
+	 * @return number of lookups that found a session
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return number of lookups that found no session
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Cached session of a peer
+	 */
+	static final class CachedSession {
+
+		final String host;
+		final int port;
+		final TlsSession session;
+		final long created;
+
+		CachedSession(String host, int port, TlsSession session, long created) {
+			this.host = host;
+			this.port = port;
+			this.session = session;
+			this.created = created;
+		}
+	}
+
+	private static final class Entry {
+
+		final TlsSession session;
+		final long created;
+
+		Entry(TlsSession session, long created) {
+			this.session = session;
+			this.created = created;
+		}
+	}
+
+	private static final class Key {
+
+		private final String host;
+		private final int port;
+		private final BcSecurityPrototype prototype;
+
+		Key(String host, int port, BcSecurityPrototype prototype) {
+			this.host = host == null ? null : host.toLowerCase(Locale.ROOT);
+			this.port = port;
+			this.prototype = prototype;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = this.host == null ? 0 : this.host.hashCode();
+			h = 31 * h + this.port;
+			return 31 * h + System.identityHashCode(this.prototype);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.port == other.port && this.prototype == other.prototype
+					&& (this.host == null ? other.host == null : this.host.equals(other.host));
+		}
+	}
+}
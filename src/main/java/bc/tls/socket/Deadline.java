@@ -0,0 +1,130 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import bc.tls.socket.DeadlineExceededException.Phase;
+
+/**
+ * Time budget for establishing one connection, shared by all of its phases.
+ * Keeps track of the time spent per phase for reporting.
+ *
+ * @author super-horst
+ *
+ */
+final class Deadline {
+
+	private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final long budget;
+	private final long start;
+	private final long expires;
+
+	/**
+	 * Nanoseconds spent per phase
+	 */
+	private final Map<Phase, Long> phaseTimes = new EnumMap<Phase, Long>(Phase.class);
+	private Phase current;
+	private long entered;
+
+	/**
+	 * @param budgetMillis
+	 *            time in milliseconds from now
+	 */
+	Deadline(long budgetMillis) {
+		this.budget = budgetMillis;
+		// monotonic, unaffected by wall clock adjustments
+		this.start = System.nanoTime();
+		this.expires = this.start + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+		this.entered = this.start;
+	}
+
+	/**
+	 * Account the time from now on to the phase
+	 */
+	synchronized void enter(Phase phase) {
+		long now = System.nanoTime();
+		account(now);
+		this.current = phase;
+		this.entered = now;
+	}
+
+	/**
+	 * @return milliseconds left, at least {@code 1}
+	 * @throws DeadlineExceededException
+	 *             if no time is left
+	 */
+	int remaining(Phase phase) throws DeadlineExceededException {
+		long left = this.expires - System.nanoTime();
+		if (left <= 0) {
+			throw exceeded(phase, null);
+		}
+		// round up, a fraction of a millisecond is still time left
+		long millis = (left + MILLI - 1) / MILLI;
+		return (int) Math.min(millis, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param timeout
+	 *            a timeout in milliseconds, {@code 0} for none
+	 * @return the timeout, shortened to the time left
+	 * @throws DeadlineExceededException
+	 *             if no time is left
+	 */
+	int bound(Phase phase, int timeout) throws DeadlineExceededException {
+		int left = remaining(phase);
+		return timeout > 0 ? Math.min(timeout, left) : left;
+	}
+
+	boolean isExpired() {
+		return System.nanoTime() - this.expires >= 0;
+	}
+
+	/**
+	 * @param cause
+	 *            failure caused by running out of time, may be {@code null}
+	 * @return an exception reporting the phase and the time spent per phase
+	 */
+	synchronized DeadlineExceededException exceeded(Phase phase, Throwable cause) {
+		long now = System.nanoTime();
+		account(now);
+		this.entered = now;
+		Map<Phase, Long> millis = new EnumMap<Phase, Long>(Phase.class);
+		for (Map.Entry<Phase, Long> spent : this.phaseTimes.entrySet()) {
+			millis.put(spent.getKey(), TimeUnit.NANOSECONDS.toMillis(spent.getValue()));
+		}
+		DeadlineExceededException e = new DeadlineExceededException(phase, this.budget,
+				TimeUnit.NANOSECONDS.toMillis(now - this.start), millis);
+		if (cause != null) {
+			e.initCause(cause);
+		}
+		return e;
+	}
+
+	private void account(long now) {
+		if (this.current != null) {
+			Long spent = this.phaseTimes.get(this.current);
+			this.phaseTimes.put(this.current, (spent == null ? 0 : spent) + now - this.entered);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.net.SocketTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Establishing a connection took longer than the factory's deadline. Tells
+ * the phase that ran out of time and how long each phase took.
+ *
+ * @author super-horst
+ *
+ */
+public class DeadlineExceededException extends SocketTimeoutException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Phases of establishing a connection
+	 */
+	public enum Phase {
+		/** Host name lookup */
+		RESOLVE,
+		/** Direct TCP connect */
+		CONNECT,
+		/** Connect through a proxy */
+		PROXY,
+		/** TLS handshake */
+		HANDSHAKE
+	}
+
+	private final Phase phase;
+	private final long budget;
+	private final long elapsed;
+	private final Map<Phase, Long> phaseTimes;
+
+	DeadlineExceededException(Phase phase, long budget, long elapsed, Map<Phase, Long> phaseTimes) {
+		super(String.format("Deadline of %d ms exceeded during %s after %d ms %s", budget, phase, elapsed,
+				phaseTimes));
+		this.phase = phase;
+		this.budget = budget;
+		this.elapsed = elapsed;
+		this.phaseTimes = new EnumMap<Phase, Long>(phaseTimes);
+	}
+
+	/**
+	 * @return the phase that ran out of time
+	 */
+	public Phase getPhase() {
+		return this.phase;
+	}
+
+	/**
+	 * @return the deadline in milliseconds
+	 */
+	public long getBudget() {
+		return this.budget;
+	}
+
+	/**
+	 * @return milliseconds since the connection was requested
+	 */
+	public long getElapsed() {
+		return this.elapsed;
+	}
+
+	/**
+	 * @param phase
+	 *            a phase
+	 * @return milliseconds spent in the phase, {@code 0} if never entered
+	 */
+	public long getPhaseTime(Phase phase) {
+		Long time = this.phaseTimes.get(phase);
+		return time == null ? 0 : time;
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+import bc.tls.socket.DeadlineExceededException.Phase;
+
+/**
+ * Bounds every read of the raw socket by the time left until the deadline,
+ * while the handshake is running. Reads pass through unbounded once
+ * disarmed.
+ *
+ * @author super-horst
+ *
+ */
+final class DeadlineInputStream extends FilterInputStream {
+
+	private final Socket socket;
+	private final Deadline deadline;
+	private final int soTimeout;
+
+	private volatile boolean armed = true;
+
+	DeadlineInputStream(InputStream in, Socket socket, Deadline deadline) throws IOException {
+		super(in);
+		this.socket = socket;
+		this.deadline = deadline;
+		this.soTimeout = socket.getSoTimeout();
+	}
+
+	@Override
+	public int read() throws IOException {
+		arm();
+		return super.read();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		arm();
+		return super.read(b, off, len);
+	}
+
+	private void arm() throws IOException {
+		if (this.armed) {
+			this.socket.setSoTimeout(this.deadline.bound(Phase.HANDSHAKE, this.soTimeout));
+		}
+	}
+
+	/**
+	 * Stop bounding reads and restore the socket's read timeout, unless the
+	 * failed handshake closed it already
+	 */
+	void disarm() throws IOException {
+		if (this.armed) {
+			this.armed = false;
+			if (!this.socket.isClosed()) {
+				this.socket.setSoTimeout(this.soTimeout);
+			}
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+import bc.tls.logging.LogLevel;
+
+/**
+ * Caches resolved addresses of host names. Concurrent lookups of the same
+ * name share one resolver call, names still in use are refreshed in the
+ * background before they expire and the last known addresses are served for
+ * a while if the resolver fails.
+ *
+ * @author super-horst
+ *
+ */
+class DnsCache {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("DnsCache");
+
+	/**
+	 * Maximum number of cached names, the cache is cleared when exceeded
+	 */
+	static final int MAX_ENTRIES = 4096;
+
+	/**
+	 * Names accessed within the last 1/n of their ttl are refreshed ahead
+	 */
+	static final int REFRESH_AHEAD_DIVISOR = 4;
+
+	private static final ExecutorService REFRESHER = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "bc-tls-dns");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final ConcurrentMap<String, CompletableFuture<Entry>> pending =
+			new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+
+	private final AtomicLong lookups = new AtomicLong();
+
+	private final AtomicLong refreshes = new AtomicLong();
+
+	/**
+	 * @param host
+	 *            the name to resolve
+	 * @param ttlMillis
+	 *            time to reuse resolved addresses, {@code 0} resolves every
+	 *            time
+	 * @param negativeTtlMillis
+	 *            time to remember a failed lookup
+	 * @param timeoutMillis
+	 *            time to wait for the resolver, {@code 0} waits on the
+	 *            calling thread as long as the resolver takes
+	 * @return all addresses of the host, never empty
+	 * @throws UnknownHostException
+	 *             if the host could not be resolved
+	 * @throws SocketTimeoutException
+	 *             if the resolver did not answer in time, the lookup goes on
+	 *             in the background
+	 */
+	InetAddress[] resolve(String host, long ttlMillis, long negativeTtlMillis, long timeoutMillis)
+			throws UnknownHostException, SocketTimeoutException {
+		if (ttlMillis <= 0) {
+			if (timeoutMillis <= 0) {
+				this.lookups.incrementAndGet();
+				return lookup(host);
+			}
+			return await(fetchAsync(host), host, timeoutMillis).get();
+		}
+
+		String key = host.toLowerCase(Locale.ROOT);
+		Entry entry = this.entries.get(key);
+		long now = System.currentTimeMillis();
+		if (entry == null || now >= entry.expires) {
+			entry = load(key, host, ttlMillis, negativeTtlMillis, entry, timeoutMillis);
+		} else if (now >= entry.refreshAt) {
+			refresh(key, host, ttlMillis, negativeTtlMillis, entry);
+		}
+		return entry.get();
+	}
+
+	/**
+	 * Resolve the host, blocking
+	 */
+	InetAddress[] lookup(String host) throws UnknownHostException {
+		return InetAddress.getAllByName(host);
+	}
+
+	/**
+	 * @return number of resolver calls
+	 */
+	long getLookupCount() {
+		return this.lookups.get();
+	}
+
+	/**
+	 * @return number of background refreshes started
+	 */
+	long getRefreshCount() {
+		return this.refreshes.get();
+	}
+
+	/**
+	 * @return number of cached names
+	 */
+	int size() {
+		return this.entries.size();
+	}
+
+	void clear() {
+		this.entries.clear();
+	}
+
+	private Entry load(String key, String host, long ttlMillis, long negativeTtlMillis, Entry stale,
+			long timeoutMillis) throws SocketTimeoutException {
+		CompletableFuture<Entry> flight = new CompletableFuture<Entry>();
+		CompletableFuture<Entry> running = this.pending.putIfAbsent(key, flight);
+		if (running == null) {
+			if (timeoutMillis <= 0) {
+				return fly(key, host, ttlMillis, negativeTtlMillis, stale, flight);
+			}
+			// resolve in the background to be able to stop waiting
+			flyAsync(key, host, ttlMillis, negativeTtlMillis, stale, flight);
+			running = flight;
+		}
+		return await(running, host, timeoutMillis);
+	}
+
+	private void refresh(String key, String host, long ttlMillis, long negativeTtlMillis, Entry current) {
+		CompletableFuture<Entry> flight = new CompletableFuture<Entry>();
+		if (this.pending.putIfAbsent(key, flight) != null) {
+			return;
+		}
+
+		this.refreshes.incrementAndGet();
+		flyAsync(key, host, ttlMillis, negativeTtlMillis, current, flight);
+	}
+
+	private void flyAsync(final String key, final String host, final long ttlMillis, final long negativeTtlMillis,
+			final Entry stale, final CompletableFuture<Entry> flight) {
+		try {
+			REFRESHER.execute(new Runnable() {
+				@Override
+				public void run() {
+					fly(key, host, ttlMillis, negativeTtlMillis, stale, flight);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.pending.remove(key, flight);
+			flight.completeExceptionally(e);
+		}
+	}
+
+	private CompletableFuture<Entry> fetchAsync(final String host) {
+		final CompletableFuture<Entry> lookup = new CompletableFuture<Entry>();
+		REFRESHER.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					lookup.complete(fetch(host, 0, 0, null));
+				} catch (RuntimeException e) {
+					lookup.completeExceptionally(e);
+				}
+			}
+		});
+		return lookup;
+	}
+
+	private static Entry await(CompletableFuture<Entry> flight, String host, long timeoutMillis)
+			throws SocketTimeoutException {
+		try {
+			if (timeoutMillis <= 0) {
+				return flight.join();
+			}
+			return flight.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new SocketTimeoutException(String.format("Resolving %s timed out after %d ms", host,
+					timeoutMillis));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SocketTimeoutException(String.format("Interrupted while resolving %s", host));
+		} catch (ExecutionException | CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private Entry fly(String key, String host, long ttlMillis, long negativeTtlMillis, Entry stale,
+			CompletableFuture<Entry> flight) {
+		try {
+			Entry entry = fetch(host, ttlMillis, negativeTtlMillis, stale);
+			if (this.entries.size() >= MAX_ENTRIES) {
+				this.entries.clear();
+			}
+			this.entries.put(key, entry);
+			flight.complete(entry);
+			return entry;
+		} catch (RuntimeException e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.pending.remove(key, flight);
+		}
+	}
+
+	private Entry fetch(String host, long ttlMillis, long negativeTtlMillis, Entry stale) {
+		this.lookups.incrementAndGet();
+		try {
+			InetAddress[] addresses = lookup(host);
+			long now = System.currentTimeMillis();
+			long refreshAt = now + ttlMillis - ttlMillis / REFRESH_AHEAD_DIVISOR;
+			return new Entry(addresses, null, now, now + ttlMillis, refreshAt);
+		} catch (UnknownHostException e) {
+			long now = System.currentTimeMillis();
+			if (stale != null && stale.addresses != null && now < stale.resolved + 2 * ttlMillis) {
+				// keep the last known addresses through a resolver outage
+				if (LOG.isLevelEnabled(LogLevel.DEBUG)) {
+					LOG.debug(String.format("Serving stale addresses of %s", host));
+				}
+				long expires = Math.max(stale.expires, now + negativeTtlMillis);
+				return new Entry(stale.addresses, null, stale.resolved, expires, now + negativeTtlMillis);
+			}
+			return new Entry(null, e, now, now + negativeTtlMillis, Long.MAX_VALUE);
+		}
+	}
+
+	private static final class Entry {
+
+		final InetAddress[] addresses;
+		final UnknownHostException failure;
+		final long resolved;
+		final long expires;
+		final long refreshAt;
+
+		Entry(InetAddress[] addresses, UnknownHostException failure, long resolved, long expires, long refreshAt) {
+			this.addresses = addresses;
+			this.failure = failure;
+			this.resolved = resolved;
+			this.expires = expires;
+			this.refreshAt = refreshAt;
+		}
+
+		InetAddress[] get() throws UnknownHostException {
+			if (this.addresses == null) {
+				UnknownHostException e = new UnknownHostException(this.failure.getMessage());
+				e.initCause(this.failure);
+				throw e;
+			}
+			return this.addresses.clone();
+		}
+	}
+}
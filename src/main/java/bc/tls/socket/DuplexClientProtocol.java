@@ -0,0 +1,155 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.tls.AlertDescription;
+import org.bouncycastle.crypto.tls.HandshakeType;
+import org.bouncycastle.crypto.tls.TlsClientProtocol;
+import org.bouncycastle.crypto.tls.TlsFatalAlert;
+import org.bouncycastle.crypto.tls.TlsUtils;
+
+/**
+ * Blocking client protocol with independent read and write paths.
+ * <p>
+ * One thread may read while another one writes, see {@link DuplexLocks}.
+ *
+ * @author super-horst
+ *
+ */
+class DuplexClientProtocol extends TlsClientProtocol {
+
+	private final RecordBoundaryInputStream input;
+	private final DuplexLocks locks;
+
+	DuplexClientProtocol(RecordBoundaryInputStream input, OutputStream output, Socket socket,
+			SecureRandom secureRandom) {
+		super(input, output, secureRandom);
+		this.input = input;
+		this.locks = new DuplexLocks(socket);
+	}
+
+	/**
+	 * Expects a NewSessionTicket message in abbreviated handshakes as well, if
+	 * the server acknowledged the ticket extension (RFC 5077, 3.2).
+	 */
+	@Override
+	protected void receiveServerHelloMessage(ByteArrayInputStream buf) throws IOException {
+		super.receiveServerHelloMessage(buf);
+		if (this.resumedSession) {
+			this.expectSessionTicket = TlsUtils.hasExpectedEmptyExtensionData(this.serverExtensions,
+					EXT_SessionTicket, AlertDescription.illegal_parameter);
+		}
+	}
+
+	/**
+	 * Accepts a NewSessionTicket message in abbreviated handshakes, which
+	 * servers send to renew the ticket the session was resumed from (RFC
+	 * 5077, 3.1). The message is covered by the Finished verification.
+	 */
+	@Override
+	protected void handleHandshakeMessage(short type, byte[] data) throws IOException {
+		if (this.resumedSession && type == HandshakeType.session_ticket && this.connection_state == CS_SERVER_HELLO) {
+			if (!this.expectSessionTicket) {
+				throw new TlsFatalAlert(AlertDescription.unexpected_message);
+			}
+			receiveNewSessionTicketMessage(new ByteArrayInputStream(data));
+			return;
+		}
+		super.handleHandshakeMessage(type, data);
+	}
+
+	@Override
+	protected int readApplicationData(final byte[] buf, final int offset, final int len) throws IOException {
+		return this.locks.read(new DuplexLocks.Section<Integer>() {
+			@Override
+			public Integer run() throws IOException {
+				return DuplexClientProtocol.super.readApplicationData(buf, offset, len);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the next record before reading it, once the handshake is
+	 * done. A read timeout then reaches the caller without failing the
+	 * protocol.
+	 */
+	@Override
+	protected void safeReadRecord() throws IOException {
+		if (this.connection_state == CS_END) {
+			this.input.awaitRecord();
+		}
+		super.safeReadRecord();
+	}
+
+	@Override
+	protected void writeData(final byte[] buf, final int offset, final int len) throws IOException {
+		this.locks.write(new DuplexLocks.Section<Void>() {
+			@Override
+			public Void run() throws IOException {
+				DuplexClientProtocol.super.writeData(buf, offset, len);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	protected void safeWriteRecord(final short type, final byte[] buf, final int offset, final int len)
+			throws IOException {
+		this.locks.write(new DuplexLocks.Section<Void>() {
+			@Override
+			public Void run() throws IOException {
+				DuplexClientProtocol.super.safeWriteRecord(type, buf, offset, len);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	protected void flush() throws IOException {
+		this.locks.write(new DuplexLocks.Section<Void>() {
+			@Override
+			public Void run() throws IOException {
+				DuplexClientProtocol.super.flush();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Sends close_notify once no writer holds the write lock, a writer blocked
+	 * on the network is aborted, see {@link DuplexLocks#close}.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.locks.close(new DuplexLocks.Section<Void>() {
+			@Override
+			public Void run() throws IOException {
+				DuplexClientProtocol.super.close();
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+
+/**
+ * Read and write locks of the blocking duplex protocols.
+ * <p>
+ * Reads of application data, including the records processed on the way,
+ * are serialised by the read lock. Every record written, including alerts
+ * raised while reading, is serialised by the write lock. One thread may read
+ * while another one writes.
+ *
+ * @author super-horst
+ *
+ */
+final class DuplexLocks {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("Duplex");
+
+	/** Time a close waits for a writer before it aborts the writer */
+	static final long CLOSE_WAIT_MILLIS = 500;
+
+	/**
+	 * A protocol call run under one of the locks.
+	 */
+	interface Section<T> {
+		T run() throws IOException;
+	}
+
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private final Socket socket;
+
+	/**
+	 * @param socket
+	 *            the raw socket, shut down to abort a blocked writer
+	 */
+	DuplexLocks(Socket socket) {
+		this.socket = socket;
+	}
+
+	<T> T read(Section<T> section) throws IOException {
+		this.readLock.lock();
+		try {
+			return section.run();
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	<T> T write(Section<T> section) throws IOException {
+		this.writeLock.lock();
+		try {
+			return section.run();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the protocol close, which sends close_notify, under the write lock.
+	 * A writer still holding the lock after {@link #CLOSE_WAIT_MILLIS} is
+	 * blocked on the network: the output of the raw socket is shut down, which
+	 * aborts the writer and fails the protocol without close_notify, even if
+	 * the raw socket is not closed along with the tls socket.
+	 *
+	 * @param close
+	 *            the protocol close
+	 */
+	void close(Section<Void> close) throws IOException {
+		if (!awaitWriteLock(CLOSE_WAIT_MILLIS)) {
+			LOG.debug("Writer blocked, aborting it without close_notify");
+			if (!this.socket.isClosed() && !this.socket.isOutputShutdown()) {
+				this.socket.shutdownOutput();
+			}
+			if (!awaitWriteLock(CLOSE_WAIT_MILLIS)) {
+				LOG.error("Writer not aborted by shutdown, closing socket");
+				this.socket.close();
+				return;
+			}
+		}
+		try {
+			close.run();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	private boolean awaitWriteLock(long millis) {
+		try {
+			return this.writeLock.tryLock(millis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
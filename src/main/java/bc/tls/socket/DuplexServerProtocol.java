@@ -0,0 +1,120 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.tls.TlsServerProtocol;
+
+/**
+ * Blocking server protocol with independent read and write paths.
+ * <p>
+ * One thread may read while another one writes, see {@link DuplexLocks}.
+ *
+ * @author super-horst
+ *
+ */
+class DuplexServerProtocol extends TlsServerProtocol {
+
+	private final RecordBoundaryInputStream input;
+	private final DuplexLocks locks;
+
+	DuplexServerProtocol(RecordBoundaryInputStream input, OutputStream output, Socket socket,
+			SecureRandom secureRandom) {
+		super(input, output, secureRandom);
+		this.input = input;
+		this.locks = new DuplexLocks(socket);
+	}
+
+	@Override
+	protected int readApplicationData(final byte[] buf, final int offset, final int len) throws IOException {
+		return this.locks.read(new DuplexLocks.Section<Integer>() {
+			@Override
+			public Integer run() throws IOException {
+				return DuplexServerProtocol.super.readApplicationData(buf, offset, len);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the next record before reading it, once the handshake is
+	 * done. A read timeout then reaches the caller without failing the
+	 * protocol.
+	 */
+	@Override
+	protected void safeReadRecord() throws IOException {
+		if (this.connection_state == CS_END) {
+			this.input.awaitRecord();
+		}
+		super.safeReadRecord();
+	}
+
+	@Override
+	protected void writeData(final byte[] buf, final int offset, final int len) throws IOException {
+		this.locks.write(new DuplexLocks.Section<Void>() {
+			@Override
+			public Void run() throws IOException {
+				DuplexServerProtocol.super.writeData(buf, offset, len);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	protected void safeWriteRecord(final short type, final byte[] buf, final int offset, final int len)
+			throws IOException {
+		this.locks.write(new DuplexLocks.Section<Void>() {
+			@Override
+			public Void run() throws IOException {
+				DuplexServerProtocol.super.safeWriteRecord(type, buf, offset, len);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	protected void flush() throws IOException {
+		this.locks.write(new DuplexLocks.Section<Void>() {
+			@Override
+			public Void run() throws IOException {
+				DuplexServerProtocol.super.flush();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Sends close_notify once no writer holds the write lock, a writer blocked
+	 * on the network is aborted, see {@link DuplexLocks#close}.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.locks.close(new DuplexLocks.Section<Void>() {
+			@Override
+			public Void run() throws IOException {
+				DuplexServerProtocol.super.close();
+				return null;
+			}
+		});
+	}
+}
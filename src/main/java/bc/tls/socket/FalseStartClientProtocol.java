@@ -0,0 +1,148 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.SecureRandom;
+
+import bc.tls.CipherSuite;
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+
+/**
+ * Blocking client protocol implementing TLS False Start (RFC 7918).
+ * <p>
+ * {@link #connect(org.bouncycastle.crypto.tls.TlsClient)} returns as soon as
+ * the client's Finished message has been sent, if the negotiated cipher suite
+ * {@link CipherSuite#allowsFalseStart() allows for it}. The server's Finished
+ * message is then processed by the first read of application data. A failed
+ * verification surfaces as an exception on that read.
+ *
+ * @author super-horst
+ *
+ */
+class FalseStartClientProtocol extends DuplexClientProtocol {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("FalseStart");
+
+	private final InputStream input = new InputStream() {
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			if (read(buf, 0, 1) < 0) {
+				return -1;
+			}
+			return buf[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return readApplicationData(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return applicationDataAvailable();
+		}
+
+		@Override
+		public void close() throws IOException {
+			FalseStartClientProtocol.this.close();
+		}
+	};
+
+	private final OutputStream output = new OutputStream() {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			writeData(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			FalseStartClientProtocol.this.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			FalseStartClientProtocol.this.close();
+		}
+	};
+
+	private volatile boolean falseStarted = false;
+
+	FalseStartClientProtocol(RecordBoundaryInputStream input, OutputStream output, Socket socket,
+			SecureRandom secureRandom) {
+		super(input, output, socket, secureRandom);
+	}
+
+	/**
+	 * @return whether the handshake returned before the server's Finished
+	 *         message
+	 */
+	boolean isFalseStarted() {
+		return this.falseStarted;
+	}
+
+	@Override
+	protected void blockForHandshake() throws IOException {
+		if (!this.blocking) {
+			return;
+		}
+		while (this.connection_state != CS_END) {
+			if (this.connection_state == CS_CLIENT_FINISHED && allowsFalseStart()) {
+				LOG.debug("Client finished, starting application data early");
+				this.falseStarted = true;
+				return;
+			}
+			safeReadRecord();
+		}
+	}
+
+	private boolean allowsFalseStart() {
+		CipherSuite suite = CipherSuite.lookup(getContext().getSecurityParameters().getCipherSuite());
+		return suite != null && suite.allowsFalseStart();
+	}
+
+	/**
+	 * Available before the handshake completes
+	 */
+	@Override
+	public InputStream getInputStream() {
+		return this.input;
+	}
+
+	/**
+	 * Available before the handshake completes
+	 */
+	@Override
+	public OutputStream getOutputStream() {
+		return this.output;
+	}
+}
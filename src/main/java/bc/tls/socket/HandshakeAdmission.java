@@ -0,0 +1,332 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+import bc.tls.logging.LogLevel;
+
+/**
+ * Admission control for the handshakes of accepted connections. Limits the
+ * number of handshakes in flight, lets a bounded number of connections wait
+ * for a free slot and sheds connections that could not start their handshake
+ * within the maximum queueing time, counted from their acceptance. Handshakes
+ * of a single client address may additionally be rate limited by a token
+ * bucket, so that one client cannot take all of the capacity. IPv6 clients
+ * are limited by their /64 prefix, which is usually assigned to a single
+ * host or site.
+ * <p>
+ * Shedding early keeps the server busy with handshakes that can still
+ * complete instead of starting more than it can finish in time. An instance
+ * may be shared by several server sockets to limit them together.
+ *
+ * @author super-horst
+ *
+ */
+public class HandshakeAdmission {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("HandshakeAdmission");
+
+	/**
+	 * Maximum number of tracked client addresses. When exceeded, the fullest
+	 * of the least recently used buckets is dropped, so that limited clients
+	 * stay limited.
+	 */
+	static final int MAX_SOURCES = 4096;
+	/**
+	 * Number of least recently used buckets looked at for eviction
+	 */
+	static final int EVICTION_CANDIDATES = 16;
+	/**
+	 * Bytes of an IPv6 address identifying a client
+	 */
+	static final int IPV6_PREFIX_BYTES = 8;
+
+	private final int maxConcurrent;
+	private final int maxQueued;
+	private final long maxQueueTimeMillis;
+	private final double sourceRate;
+	private final int sourceBurst;
+
+	private final Semaphore slots;
+	private final AtomicInteger queued = new AtomicInteger();
+	/**
+	 * Buckets in access order, guarded by itself
+	 */
+	private final LinkedHashMap<InetAddress, TokenBucket> sources = new LinkedHashMap<InetAddress, TokenBucket>(
+			16, 0.75f, true);
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong shed = new AtomicLong();
+
+	/**
+	 * @param maxConcurrent
+	 *            maximum number of handshakes in flight
+	 * @param maxQueued
+	 *            maximum number of connections waiting for a free slot,
+	 *            {@code 0} sheds connections right away if none is free
+	 * @param maxQueueTimeMillis
+	 *            maximum time in milliseconds from acceptance to the start of
+	 *            the handshake
+	 */
+	public HandshakeAdmission(int maxConcurrent, int maxQueued, long maxQueueTimeMillis) {
+		this(maxConcurrent, maxQueued, maxQueueTimeMillis, 0, 0);
+	}
+
+	/**
+	 * @param maxConcurrent
+	 *            maximum number of handshakes in flight
+	 * @param maxQueued
+	 *            maximum number of connections waiting for a free slot,
+	 *            {@code 0} sheds connections right away if none is free
+	 * @param maxQueueTimeMillis
+	 *            maximum time in milliseconds from acceptance to the start of
+	 *            the handshake
+	 * @param sourceRate
+	 *            handshakes per second allowed per client address,
+	 *            {@code 0} for no limit
+	 * @param sourceBurst
+	 *            handshakes a client address may start at once
+	 */
+	public HandshakeAdmission(int maxConcurrent, int maxQueued, long maxQueueTimeMillis, double sourceRate,
+			int sourceBurst) {
+		if (maxConcurrent <= 0) {
+			throw new IllegalArgumentException("At least one handshake has to be allowed");
+		}
+		if (maxQueued < 0 || maxQueueTimeMillis < 0) {
+			throw new IllegalArgumentException("Queue bounds must not be negative");
+		}
+		if (sourceRate < 0 || (sourceRate > 0 && sourceBurst <= 0)) {
+			throw new IllegalArgumentException("Source rate must not be negative and allow a burst");
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.maxQueueTimeMillis = maxQueueTimeMillis;
+		this.sourceRate = sourceRate;
+		this.sourceBurst = sourceBurst;
+		this.slots = new Semaphore(maxConcurrent, true);
+	}
+
+	/**
+	 * Take a handshake slot, waiting for one if necessary. An admitted
+	 * handshake has to {@link #release()} its slot.
+	 * 
+	 * @param source
+	 *            the client's address
+	 * @param acceptedAt
+	 *            {@link System#nanoTime()} the connection was accepted at
+	 * @throws HandshakeRejectedException
+	 *             if the connection has to be shed
+	 */
+	void admit(InetAddress source, long acceptedAt) throws HandshakeRejectedException {
+		if (this.sourceRate > 0 && source != null && !bucket(source).take()) {
+			throw reject(String.format("Handshake rate of %s exceeded", source.getHostAddress()));
+		}
+
+		if (this.slots.tryAcquire()) {
+			this.admitted.incrementAndGet();
+			return;
+		}
+
+		if (this.queued.incrementAndGet() > this.maxQueued) {
+			this.queued.decrementAndGet();
+			throw reject("Handshake queue is full");
+		}
+		try {
+			long wait = acceptedAt + TimeUnit.MILLISECONDS.toNanos(this.maxQueueTimeMillis) - System.nanoTime();
+			if (wait <= 0 || !this.slots.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+				throw reject(String.format("No handshake slot free within %d ms", this.maxQueueTimeMillis));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw reject("Interrupted while waiting for a handshake slot");
+		} finally {
+			this.queued.decrementAndGet();
+		}
+		this.admitted.incrementAndGet();
+	}
+
+	/**
+	 * Give back the slot of an admitted handshake
+	 */
+	void release() {
+		this.slots.release();
+	}
+
+	/**
+	 * @return maximum number of handshakes in flight
+	 */
+	public int getMaxConcurrent() {
+		return this.maxConcurrent;
+	}
+
+	/**
+	 * @return number of handshakes in flight
+	 */
+	public int getInFlight() {
+		return this.maxConcurrent - this.slots.availablePermits();
+	}
+
+	/**
+	 * @return number of connections waiting for a slot
+	 */
+	public int getQueued() {
+		return this.queued.get();
+	}
+
+	/**
+	 * @return number of handshakes admitted
+	 */
+	public long getAdmittedCount() {
+		return this.admitted.get();
+	}
+
+	/**
+	 * @return number of connections shed
+	 */
+	public long getShedCount() {
+		return this.shed.get();
+	}
+
+	private HandshakeRejectedException reject(String reason) {
+		this.shed.incrementAndGet();
+		if (LOG.isLevelEnabled(LogLevel.DEBUG)) {
+			LOG.debug(reason);
+		}
+		return new HandshakeRejectedException(reason);
+	}
+
+	private TokenBucket bucket(InetAddress source) {
+		InetAddress key = sourceKey(source);
+		synchronized (this.sources) {
+			TokenBucket bucket = this.sources.get(key);
+			if (bucket == null) {
+				if (this.sources.size() >= MAX_SOURCES) {
+					evict();
+				}
+				bucket = new TokenBucket(this.sourceRate, this.sourceBurst);
+				this.sources.put(key, bucket);
+			}
+			return bucket;
+		}
+	}
+
+	/**
+	 * Drop the bucket with the most tokens among the least recently used
+	 * ones, an idle one if there is any
+	 */
+	private void evict() {
+		Iterator<Map.Entry<InetAddress, TokenBucket>> it = this.sources.entrySet().iterator();
+		InetAddress fullest = null;
+		double most = -1;
+		for (int i = 0; i < EVICTION_CANDIDATES && it.hasNext(); i++) {
+			Map.Entry<InetAddress, TokenBucket> entry = it.next();
+			double tokens = entry.getValue().available();
+			if (tokens > most) {
+				most = tokens;
+				fullest = entry.getKey();
+				if (entry.getValue().isFull()) {
+					break;
+				}
+			}
+		}
+		this.sources.remove(fullest);
+	}
+
+	/**
+	 * @return the address itself or the /64 prefix of an IPv6 address
+	 */
+	static InetAddress sourceKey(InetAddress source) {
+		if (!(source instanceof Inet6Address)) {
+			return source;
+		}
+		byte[] prefix = Arrays.copyOf(source.getAddress(), 16);
+		Arrays.fill(prefix, IPV6_PREFIX_BYTES, prefix.length, (byte) 0);
+		try {
+			return InetAddress.getByAddress(prefix);
+		} catch (UnknownHostException e) {
+			// 16 bytes are always valid
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return number of tracked client addresses
+	 */
+	int getSourceCount() {
+		synchronized (this.sources) {
+			return this.sources.size();
+		}
+	}
+
+	private static final class TokenBucket {
+
+		private final double ratePerNano;
+		private final int capacity;
+		private double tokens;
+		private long refilled;
+
+		TokenBucket(double ratePerSecond, int capacity) {
+			this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+			this.capacity = capacity;
+			this.tokens = capacity;
+			this.refilled = System.nanoTime();
+		}
+
+		synchronized boolean take() {
+			refill();
+			if (this.tokens < 1) {
+				return false;
+			}
+			this.tokens--;
+			return true;
+		}
+
+		synchronized boolean isFull() {
+			refill();
+			return this.tokens >= this.capacity;
+		}
+
+		synchronized double available() {
+			refill();
+			return this.tokens;
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			if (now - this.refilled > 0) {
+				this.tokens = Math.min(this.capacity, this.tokens + (now - this.refilled) * this.ratePerNano);
+				this.refilled = now;
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import javax.net.ssl.SSLHandshakeException;
+
+/**
+ * The server shed the connection before its handshake, because the client
+ * exceeded its handshake rate or no handshake capacity became free in time.
+ * The connection is closed without an alert.
+ *
+ * @author super-horst
+ *
+ */
+public class HandshakeRejectedException extends SSLHandshakeException {
+
+	private static final long serialVersionUID = 1L;
+
+	HandshakeRejectedException(String reason) {
+		super(reason);
+	}
+}
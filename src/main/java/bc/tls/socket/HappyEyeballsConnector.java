@@ -0,0 +1,245 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+import bc.tls.logging.LogLevel;
+
+/**
+ * Connects to the first reachable address of a host (RFC 8305). Attempts
+ * alternate between address families and are started one after the other,
+ * the next one once the previous failed or the attempt delay passed. The
+ * first connected socket wins, all other attempts are closed.
+ *
+ * @author super-horst
+ *
+ */
+class HappyEyeballsConnector {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("HappyEyeballs");
+
+	/**
+	 * Deadline of connects without a timeout
+	 */
+	private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	private static final ExecutorService ATTEMPTS = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "bc-tls-connect");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final long attemptDelayMillis;
+
+	private final SocketProfile profile;
+
+	/**
+	 * @param attemptDelayMillis
+	 *            delay before the next attempt is started
+	 * @param profile
+	 *            options applied to every attempt's socket, may be
+	 *            {@code null}
+	 */
+	HappyEyeballsConnector(long attemptDelayMillis, SocketProfile profile) {
+		this.attemptDelayMillis = attemptDelayMillis;
+		this.profile = profile;
+	}
+
+	/**
+	 * @param addresses
+	 *            resolved addresses of the host, in the resolver's order
+	 * @param port
+	 *            the port to connect to
+	 * @param localAddress
+	 *            local address to bind to, may be {@code null}
+	 * @param timeoutMillis
+	 *            time to wait for any attempt to connect, {@code 0} waits
+	 *            as long as the attempts take
+	 * @return the first connected socket
+	 * @throws IOException
+	 *             if all attempts failed or timed out
+	 */
+	Socket connect(InetAddress[] addresses, int port, InetSocketAddress localAddress, int timeoutMillis)
+			throws IOException {
+		List<InetAddress> order = interleave(addresses);
+		long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : NO_DEADLINE;
+		BlockingQueue<Attempt> done = new LinkedBlockingQueue<Attempt>();
+		List<Attempt> started = new ArrayList<Attempt>(order.size());
+		Attempt winner = null;
+		IOException failure = null;
+		try {
+			int running = 0;
+			long nextStart = 0;
+			while (true) {
+				long now = System.currentTimeMillis();
+				if (started.size() < order.size() && (running == 0 || now >= nextStart)) {
+					Attempt attempt = new Attempt(new InetSocketAddress(order.get(started.size()), port),
+							localAddress, deadline, done);
+					started.add(attempt);
+					ATTEMPTS.execute(attempt);
+					running++;
+					nextStart = now + this.attemptDelayMillis;
+					continue;
+				}
+				if (running == 0) {
+					throw failure;
+				}
+				long wait = deadline - now;
+				if (wait <= 0) {
+					throw new SocketTimeoutException(String.format("Connect timed out after %d attempts",
+							started.size()));
+				}
+				if (started.size() < order.size()) {
+					wait = Math.min(wait, nextStart - now);
+				}
+
+				Attempt finished = done.poll(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+				if (finished == null) {
+					continue;
+				}
+				running--;
+				if (finished.failure == null) {
+					winner = finished;
+					if (LOG.isLevelEnabled(LogLevel.DEBUG)) {
+						LOG.debug(String.format("Connected to %s after %d attempts", finished.address,
+								started.size()));
+					}
+					return finished.socket;
+				}
+				if (failure == null) {
+					failure = finished.failure;
+				} else {
+					failure.addSuppressed(finished.failure);
+				}
+				// a failed attempt starts the next one right away
+				nextStart = 0;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while connecting", e);
+		} finally {
+			for (Attempt attempt : started) {
+				if (attempt != winner) {
+					attempt.cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Connect a single attempt's socket, blocking
+	 */
+	void connect(Socket socket, InetSocketAddress address, InetSocketAddress localAddress, int timeoutMillis)
+			throws IOException {
+		socket.bind(localAddress);
+		socket.connect(address, timeoutMillis);
+	}
+
+	/**
+	 * @return the addresses alternating between IPv6 and IPv4, starting with
+	 *         the family of the first address
+	 */
+	static List<InetAddress> interleave(InetAddress[] addresses) {
+		List<InetAddress> first = new ArrayList<InetAddress>();
+		List<InetAddress> second = new ArrayList<InetAddress>();
+		boolean preferV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+		for (InetAddress address : addresses) {
+			if ((address instanceof Inet6Address) == preferV6) {
+				first.add(address);
+			} else {
+				second.add(address);
+			}
+		}
+		List<InetAddress> order = new ArrayList<InetAddress>(addresses.length);
+		for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+			if (i < first.size()) {
+				order.add(first.get(i));
+			}
+			if (i < second.size()) {
+				order.add(second.get(i));
+			}
+		}
+		return order;
+	}
+
+	private final class Attempt implements Runnable {
+
+		final InetSocketAddress address;
+		final Socket socket = new Socket();
+		private final InetSocketAddress localAddress;
+		private final long deadline;
+		private final BlockingQueue<Attempt> done;
+
+		volatile IOException failure;
+
+		Attempt(InetSocketAddress address, InetSocketAddress localAddress, long deadline,
+				BlockingQueue<Attempt> done) {
+			this.address = address;
+			this.localAddress = localAddress;
+			this.deadline = deadline;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (HappyEyeballsConnector.this.profile != null) {
+					HappyEyeballsConnector.this.profile.apply(this.socket);
+				}
+				int timeout = this.deadline == NO_DEADLINE ? 0
+						: (int) Math.max(this.deadline - System.currentTimeMillis(), 1);
+				connect(this.socket, this.address, this.localAddress, timeout);
+			} catch (IOException e) {
+				this.failure = e;
+			} catch (RuntimeException e) {
+				this.failure = new IOException(e);
+			}
+			this.done.add(this);
+		}
+
+		void cancel() {
+			try {
+				// aborts a pending connect
+				this.socket.close();
+			} catch (IOException e) {
+				LOG.debug("Unable to close connect attempt", e);
+			}
+		}
+	}
+}
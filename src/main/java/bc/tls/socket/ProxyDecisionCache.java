@@ -0,0 +1,162 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the proxies a {@link ProxySelector} selected for a peer, so that
+ * connects do not build an uri and ask the selector every time. Decisions
+ * expire after a ttl and are dropped once connecting through one of the
+ * proxies failed.
+ *
+ * @author super-horst
+ *
+ */
+final class ProxyDecisionCache {
+
+	/**
+	 * Maximum number of cached peers, the cache is cleared when exceeded
+	 */
+	static final int MAX_ENTRIES = 4096;
+
+	private static final List<Proxy> DIRECT = Collections.singletonList(Proxy.NO_PROXY);
+
+	private final ConcurrentMap<Key, Decision> decisions = new ConcurrentHashMap<Key, Decision>();
+
+	/**
+	 * @param selector
+	 *            the selector to ask, {@code null} connects directly
+	 * @param host
+	 *            the peer's host
+	 * @param port
+	 *            the peer's port
+	 * @param ttlMillis
+	 *            time to reuse a decision, {@code 0} asks the selector every
+	 *            time
+	 * @return the proxies to try in order, never empty
+	 */
+	List<Proxy> select(ProxySelector selector, String host, int port, long ttlMillis) {
+		if (selector == null) {
+			return DIRECT;
+		}
+		if (ttlMillis <= 0) {
+			return query(selector, host, port);
+		}
+
+		Key key = new Key(host, port);
+		long now = System.currentTimeMillis();
+		Decision decision = this.decisions.get(key);
+		if (decision != null && decision.selector == selector && now < decision.expires) {
+			return decision.proxies;
+		}
+
+		List<Proxy> proxies = query(selector, host, port);
+		if (this.decisions.size() >= MAX_ENTRIES) {
+			this.decisions.clear();
+		}
+		this.decisions.put(key, new Decision(selector, proxies, now + ttlMillis));
+		return proxies;
+	}
+
+	/**
+	 * Forget the decision for the peer and report the failure to the selector
+	 */
+	void connectFailed(ProxySelector selector, String host, int port, Proxy proxy, IOException e) {
+		this.decisions.remove(new Key(host, port));
+		if (selector != null) {
+			selector.connectFailed(toUri(host, port), proxy.address(), e);
+		}
+	}
+
+	/**
+	 * @return number of cached decisions
+	 */
+	int size() {
+		return this.decisions.size();
+	}
+
+	private static List<Proxy> query(ProxySelector selector, String host, int port) {
+		List<Proxy> proxies = selector.select(toUri(host, port));
+		if (proxies == null || proxies.isEmpty()) {
+			return DIRECT;
+		}
+		if (proxies.size() == 1 && Proxy.NO_PROXY.equals(proxies.get(0))) {
+			return DIRECT;
+		}
+		return Collections.unmodifiableList(new ArrayList<Proxy>(proxies));
+	}
+
+	static URI toUri(String host, int port) {
+		try {
+			return new URI("socket", null, host, port, null, null, null);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException("Invalid host: " + host, e);
+		}
+	}
+
+	private static final class Decision {
+
+		final ProxySelector selector;
+		final List<Proxy> proxies;
+		final long expires;
+
+		Decision(ProxySelector selector, List<Proxy> proxies, long expires) {
+			this.selector = selector;
+			this.proxies = proxies;
+			this.expires = expires;
+		}
+	}
+
+	private static final class Key {
+
+		private final String host;
+		private final int port;
+
+		Key(String host, int port) {
+			this.host = host.toLowerCase(Locale.ROOT);
+			this.port = port;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * this.host.hashCode() + this.port;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.port == other.port && this.host.equals(other.host);
+		}
+	}
+}
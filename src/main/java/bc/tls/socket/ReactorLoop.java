@@ -0,0 +1,302 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+
+/**
+ * Event loop of a {@link BcTlsReactorServer}, one thread with a selector of
+ * its own. Connections are only touched on their loop's thread, other
+ * threads hand over work with {@link #execute(Runnable)}. The buffers are
+ * shared by all connections of the loop, so that an idle connection holds
+ * no buffers at all.
+ * <p>
+ * Timeouts are not tracked per connection, the loop checks all of its
+ * connections in a fixed interval instead, so that a connection costs
+ * nothing to keep but its state.
+ *
+ * @author super-horst
+ *
+ */
+final class ReactorLoop implements Runnable {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("ReactorLoop");
+
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/**
+	 * Delayed tasks, loop thread only
+	 */
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(BcTlsSession.MAX_RECORD_LENGTH);
+	private final byte[] applicationBuffer = new byte[BcTlsSession.MAX_FRAGMENT_LENGTH];
+	private final byte[] packetBuffer = new byte[BcTlsSession.MAX_RECORD_LENGTH];
+
+	private volatile boolean running = true;
+
+	ReactorLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		this.thread.start();
+	}
+
+	/**
+	 * Run the task on the loop thread, after the current round of events if
+	 * called from the loop thread itself
+	 */
+	void execute(Runnable task) {
+		this.tasks.add(task);
+		if (!inLoop()) {
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Run the task on the loop thread once the delay has passed, loop thread
+	 * only
+	 */
+	void schedule(Runnable task, long delayMillis) {
+		this.timers.add(new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task));
+	}
+
+	/**
+	 * Check the timeouts of all connections in the given interval, loop
+	 * thread only
+	 */
+	void checkTimeouts(final long intervalMillis) {
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				for (SelectionKey key : ReactorLoop.this.selector.keys()) {
+					if (key.isValid() && key.attachment() instanceof TlsConnection) {
+						((TlsConnection) key.attachment()).checkTimeouts(now);
+					}
+				}
+				schedule(this, intervalMillis);
+			}
+		}, intervalMillis);
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == this.thread;
+	}
+
+	/**
+	 * @param channel
+	 *            a channel to watch
+	 * @param ops
+	 *            the initial interest set
+	 * @param attachment
+	 *            a {@link TlsConnection} or a {@link Runnable} to run when
+	 *            the channel is ready
+	 * @return the key, loop thread only
+	 */
+	SelectionKey register(SelectableChannel channel, int ops, Object attachment) throws IOException {
+		return channel.register(this.selector, ops, attachment);
+	}
+
+	void added() {
+		this.connections.incrementAndGet();
+	}
+
+	void removed() {
+		this.connections.decrementAndGet();
+	}
+
+	/**
+	 * @return number of open connections of this loop
+	 */
+	int getConnectionCount() {
+		return this.connections.get();
+	}
+
+	ByteBuffer readBuffer() {
+		return this.readBuffer;
+	}
+
+	byte[] applicationBuffer() {
+		return this.applicationBuffer;
+	}
+
+	byte[] packetBuffer() {
+		return this.packetBuffer;
+	}
+
+	/**
+	 * Stop the loop and close its connections
+	 */
+	void shutdown() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	void join(long millis) throws InterruptedException {
+		this.thread.join(millis);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (this.running) {
+				long timeout = nextTimeout();
+				if (timeout < 0) {
+					this.selector.selectNow();
+				} else {
+					this.selector.select(timeout);
+				}
+				processKeys();
+				runTasks();
+				runTimers();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			LOG.error("Event loop failed", e);
+		} finally {
+			closeAll();
+		}
+	}
+
+	private void processKeys() {
+		Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			if (!key.isValid()) {
+				continue;
+			}
+			Object attachment = key.attachment();
+			if (attachment instanceof TlsConnection) {
+				TlsConnection connection = (TlsConnection) attachment;
+				int ready = key.readyOps();
+				if ((ready & SelectionKey.OP_WRITE) != 0) {
+					connection.writable();
+				}
+				if ((ready & SelectionKey.OP_READ) != 0 && key.isValid()) {
+					connection.readable();
+				}
+			} else if (attachment instanceof Runnable) {
+				((Runnable) attachment).run();
+			}
+		}
+	}
+
+	private void runTasks() {
+		// tasks added meanwhile wait for the next round
+		for (int i = this.tasks.size(); i > 0; i--) {
+			Runnable task = this.tasks.poll();
+			if (task == null) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				LOG.error("Event loop task failed", e);
+			}
+		}
+		if (!this.tasks.isEmpty()) {
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * @return milliseconds until the next timer is due, {@code 0} if there is
+	 *         none and {@code -1} if one is due already
+	 */
+	private long nextTimeout() {
+		Timer timer = this.timers.peek();
+		if (timer == null) {
+			return 0;
+		}
+		long remaining = timer.deadline - System.nanoTime();
+		if (remaining <= 0) {
+			return -1;
+		}
+		// round up, select(0) would block
+		return TimeUnit.NANOSECONDS.toMillis(remaining) + 1;
+	}
+
+	private void runTimers() {
+		long now = System.nanoTime();
+		Timer timer;
+		while ((timer = this.timers.peek()) != null && timer.deadline - now <= 0) {
+			this.timers.poll();
+			try {
+				timer.task.run();
+			} catch (RuntimeException e) {
+				LOG.error("Event loop timer failed", e);
+			}
+		}
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : this.selector.keys()) {
+			if (key.attachment() instanceof TlsConnection) {
+				((TlsConnection) key.attachment()).finish(new AsynchronousCloseException());
+			}
+		}
+		this.tasks.clear();
+		this.timers.clear();
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			LOG.error("Error closing selector", e);
+		}
+	}
+
+	private static final class Timer implements Comparable<Timer> {
+
+		final long deadline;
+		final Runnable task;
+
+		Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			// nanoTime may overflow
+			return Long.signum(this.deadline - other.deadline);
+		}
+	}
+}
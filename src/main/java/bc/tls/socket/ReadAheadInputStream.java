@@ -0,0 +1,163 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import bc.tls.util.ByteArrayPool;
+
+/**
+ * Read-ahead buffer between the raw socket and the record layer. Every
+ * underlying read asks for a whole buffer, so record header and body, and
+ * usually several records, are pulled in with a single call.
+ * <p>
+ * Unlike {@link java.io.BufferedInputStream} this never issues more than one
+ * underlying read per call and hands a pooled buffer back on close.
+ * 
+ * @author super-horst
+ *
+ */
+class ReadAheadInputStream extends InputStream {
+
+	private final InputStream in;
+	private final ByteArrayPool pool;
+
+	private byte[] buffer;
+	private int position = 0;
+	private int count = 0;
+
+	/**
+	 * @param in
+	 *            the raw socket's input stream
+	 * @param size
+	 *            size of the read-ahead buffer
+	 */
+	ReadAheadInputStream(InputStream in, int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Buffer size must be positive: " + size);
+		}
+		this.in = in;
+		this.pool = null;
+		this.buffer = new byte[size];
+	}
+
+	/**
+	 * @param in
+	 *            the raw socket's input stream
+	 * @param pool
+	 *            pool to take the buffer from and return it to on close
+	 */
+	ReadAheadInputStream(InputStream in, ByteArrayPool pool) {
+		this.in = in;
+		this.pool = pool;
+		this.buffer = pool.acquire();
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		ensureOpen();
+		if (position >= count && fill() < 0) {
+			return -1;
+		}
+		return buffer[position++] & 0xFF;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || off > b.length - len) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+
+		if (position >= count) {
+			if (len >= buffer.length) {
+				// nothing to gain from buffering
+				return in.read(b, off, len);
+			}
+			if (fill() < 0) {
+				return -1;
+			}
+		}
+
+		int n = Math.min(len, count - position);
+		System.arraycopy(buffer, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public synchronized long skip(long n) throws IOException {
+		ensureOpen();
+		if (n <= 0) {
+			return 0;
+		}
+		int buffered = count - position;
+		if (buffered == 0) {
+			return in.skip(n);
+		}
+		long skipped = Math.min(n, buffered);
+		position += (int) skipped;
+		return skipped;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		ensureOpen();
+		return (count - position) + in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		// unblocks a pending read before the buffer is taken away
+		in.close();
+
+		synchronized (this) {
+			if (buffer == null) {
+				return;
+			}
+			byte[] released = buffer;
+			buffer = null;
+			position = count = 0;
+			if (pool != null) {
+				pool.release(released);
+			}
+		}
+	}
+
+	private int fill() throws IOException {
+		position = 0;
+		count = 0;
+		int read = in.read(buffer, 0, buffer.length);
+		if (read > 0) {
+			count = read;
+		}
+		return read;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (buffer == null) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the start of the next record before the protocol reads it.
+ * <p>
+ * The protocol turns every exception of the raw input into a fatal alert,
+ * including a {@link java.net.SocketTimeoutException} of SO_TIMEOUT. Waiting
+ * for the next record in {@link #awaitRecord()}, outside of the protocol,
+ * lets a read timeout at a record boundary reach the caller, with the
+ * connection still usable. A timeout while a record is partially received
+ * still fails the connection.
+ *
+ * @author super-horst
+ *
+ */
+final class RecordBoundaryInputStream extends FilterInputStream {
+
+	/** Size of a record header */
+	private static final int HEADER_SIZE = 5;
+
+	private final byte[] buffer = new byte[HEADER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+
+	RecordBoundaryInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * Blocks until the first bytes of the next record arrived or the stream
+	 * ended
+	 *
+	 * @throws IOException
+	 *             if reading failed, the protocol is left untouched
+	 */
+	void awaitRecord() throws IOException {
+		if (this.position < this.limit) {
+			return;
+		}
+		int n = this.in.read(this.buffer, 0, HEADER_SIZE);
+		this.position = 0;
+		this.limit = Math.max(n, 0);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (this.position < this.limit) {
+			return this.buffer[this.position++] & 0xff;
+		}
+		return super.read();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (this.position < this.limit) {
+			int n = Math.min(len, this.limit - this.position);
+			System.arraycopy(this.buffer, this.position, b, off, n);
+			this.position += n;
+			return n;
+		}
+		return super.read(b, off, len);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (this.limit - this.position) + super.available();
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (this.position < this.limit) {
+			int skipped = (int) Math.min(n, this.limit - this.position);
+			this.position += skipped;
+			return skipped;
+		}
+		return super.skip(n);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
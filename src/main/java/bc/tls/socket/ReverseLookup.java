@@ -0,0 +1,183 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+
+/**
+ * Cached reverse lookup of peer host names, used only if no host name is
+ * known for a client socket. Lookups run in the background and are waited for
+ * no longer than a given timeout, the address literal is used instead if the
+ * lookup takes longer. Failed lookups are retried sooner than successful ones
+ * are refreshed.
+ *
+ * @author super-horst
+ *
+ */
+final class ReverseLookup {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("ReverseLookup");
+
+	private static final int MAX_ENTRIES = 256;
+
+	/**
+	 * Maximum number of concurrent lookups
+	 */
+	static final int MAX_THREADS = 4;
+
+	/**
+	 * Maximum number of lookups waiting for a thread, further lookups are
+	 * not issued
+	 */
+	static final int MAX_PENDING = 64;
+
+	/**
+	 * Time in milliseconds to keep a host name
+	 */
+	static final long SUCCESS_TTL = 600000L;
+
+	/**
+	 * Time in milliseconds until a failed lookup is retried
+	 */
+	static final long FAILURE_TTL = 10000L;
+
+	private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30,
+			TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bc-tls-reverse-lookup");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	static {
+		EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+
+	private static final Map<InetAddress, Entry> CACHE = new LinkedHashMap<InetAddress, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetAddress, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private static final AtomicInteger LOOKUPS = new AtomicInteger();
+
+	private ReverseLookup() {
+	}
+
+	/**
+	 * @param address
+	 *            the address to look up
+	 * @param timeout
+	 *            maximum time to wait for a pending lookup
+	 * @param unit
+	 *            unit of the timeout
+	 * @return the host name or the address literal, if the lookup did not
+	 *         finish in time
+	 */
+	static String hostName(final InetAddress address, long timeout, TimeUnit unit) {
+		Future<String> lookup;
+		synchronized (CACHE) {
+			Entry entry = CACHE.get(address);
+			if (entry == null || entry.isExpired(address)) {
+				try {
+					lookup = EXECUTOR.submit(new Callable<String>() {
+						@Override
+						public String call() {
+							return address.getCanonicalHostName();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					LOG.debug(String.format("Too many reverse lookups pending, skipped %s", address.getHostAddress()));
+					return address.getHostAddress();
+				}
+				LOOKUPS.incrementAndGet();
+				CACHE.put(address, new Entry(lookup));
+			} else {
+				lookup = entry.lookup;
+			}
+		}
+
+		try {
+			return lookup.get(timeout, unit);
+		} catch (TimeoutException e) {
+			LOG.debug(String.format("Reverse lookup of %s timed out", address.getHostAddress()));
+		} catch (ExecutionException e) {
+			LOG.error("Reverse lookup failed", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return address.getHostAddress();
+	}
+
+	/**
+	 * @return number of lookups issued so far
+	 */
+	static int getLookupCount() {
+		return LOOKUPS.get();
+	}
+
+	private static final class Entry {
+
+		final Future<String> lookup;
+		final long started = System.nanoTime();
+
+		Entry(Future<String> lookup) {
+			this.lookup = lookup;
+		}
+
+		/**
+		 * @return whether the lookup has finished and is due to be repeated
+		 */
+		boolean isExpired(InetAddress address) {
+			if (!this.lookup.isDone()) {
+				return false;
+			}
+			boolean failed;
+			try {
+				// the literal is returned if there is no name
+				failed = address.getHostAddress().equals(this.lookup.get());
+			} catch (ExecutionException | InterruptedException e) {
+				failed = true;
+			}
+			long age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.started);
+			return age >= (failed ? FAILURE_TTL : SUCCESS_TTL);
+		}
+	}
+}
@@ -0,0 +1,345 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.tls.Certificate;
+import org.bouncycastle.crypto.tls.SessionParameters;
+import org.bouncycastle.crypto.tls.TlsSession;
+import org.bouncycastle.crypto.tls.TlsUtils;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.Integers;
+
+import bc.tls.BcSecurityPrototype;
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+
+/**
+ * Snapshot of a {@link ClientSessionCache} in a file, so that sessions can
+ * be resumed after a restart. The file is encrypted and authenticated with
+ * AES-GCM under a key of the caller and replaced atomically on every save.
+ * <p>
+ * Sessions keep their creation time, expired sessions are neither saved nor
+ * restored. As security prototypes have no identity across processes, a
+ * snapshot holds the sessions of one prototype.
+ *
+ * @author super-horst
+ *
+ */
+public class SessionCacheSnapshot {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("SessionSnapshot");
+
+	private static final byte[] MAGIC = new byte[] { 'B', 'C', 'S', 'S' };
+	private static final short VERSION = 1;
+	private static final short STATE_VERSION = 1;
+
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_LENGTH = 16;
+	private static final int HEADER_LENGTH = MAGIC.length + 1 + NONCE_LENGTH;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final Path file;
+	private final KeyParameter key;
+
+	/**
+	 * @param file
+	 *            the snapshot file
+	 * @param key
+	 *            AES key of 16, 24 or 32 bytes
+	 */
+	public SessionCacheSnapshot(Path file, byte[] key) {
+		if (key.length != 16 && key.length != 24 && key.length != 32) {
+			throw new IllegalArgumentException("Invalid key length: " + key.length);
+		}
+		this.file = file;
+		this.key = new KeyParameter(key);
+	}
+
+	/**
+	 * Write the prototype's sessions to the snapshot file
+	 *
+	 * @param cache
+	 *            the cache to save
+	 * @param prototype
+	 *            the prototype the sessions were established with
+	 * @return number of saved sessions
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public int save(ClientSessionCache cache, BcSecurityPrototype prototype) throws IOException {
+		List<ClientSessionCache.CachedSession> sessions = cache.snapshot(prototype);
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(plain);
+		int saved = 0;
+		for (ClientSessionCache.CachedSession cached : sessions) {
+			SessionParameters parameters = cached.session.exportSessionParameters();
+			if (parameters == null) {
+				continue;
+			}
+			try {
+				writeSession(cached, parameters, out);
+				saved++;
+			} finally {
+				parameters.clear();
+			}
+		}
+
+		byte[] nonce = new byte[NONCE_LENGTH];
+		RANDOM.nextBytes(nonce);
+		byte[] header = Arrays.concatenate(MAGIC, new byte[] { (byte) VERSION }, nonce);
+
+		byte[] data = plain.toByteArray();
+		byte[] sealed;
+		try {
+			sealed = process(true, header, data, 0, data.length);
+		} finally {
+			Arrays.fill(data, (byte) 0);
+		}
+
+		Path tmp = Files.createTempFile(this.file.toAbsolutePath().getParent(), this.file.getFileName().toString(),
+				".tmp");
+		try {
+			Files.write(tmp, Arrays.concatenate(header, sealed));
+			Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		LOG.debug(String.format("Saved %d sessions to %s", saved, this.file));
+		return saved;
+	}
+
+	/**
+	 * Put the unexpired sessions of the snapshot file into the cache,
+	 * sessions already cached for a peer take precedence.
+	 *
+	 * @param cache
+	 *            the cache to fill
+	 * @param prototype
+	 *            the prototype to resume the sessions with
+	 * @return number of restored sessions, {@code 0} if there is no snapshot
+	 * @throws IOException
+	 *             if the file cannot be read or is not authentic
+	 */
+	public int restore(ClientSessionCache cache, BcSecurityPrototype prototype) throws IOException {
+		byte[] content;
+		try {
+			content = Files.readAllBytes(this.file);
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+		if (content.length < HEADER_LENGTH + TAG_LENGTH
+				|| !Arrays.areEqual(MAGIC, Arrays.copyOfRange(content, 0, MAGIC.length))
+				|| content[MAGIC.length] != VERSION) {
+			throw new IOException("Not a session snapshot: " + this.file);
+		}
+		byte[] header = Arrays.copyOfRange(content, 0, HEADER_LENGTH);
+		byte[] data = process(false, header, content, HEADER_LENGTH, content.length - HEADER_LENGTH);
+
+		int restored = 0;
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			while (in.available() > 0) {
+				if (readSession(in, cache, prototype)) {
+					restored++;
+				}
+			}
+		} finally {
+			Arrays.fill(data, (byte) 0);
+		}
+		LOG.debug(String.format("Restored %d sessions from %s", restored, this.file));
+		return restored;
+	}
+
+	/**
+	 * Save the cache periodically
+	 *
+	 * @param cache
+	 *            the cache to save
+	 * @param prototype
+	 *            the prototype the sessions were established with
+	 * @param executor
+	 *            executor to save on
+	 * @param period
+	 *            time between saves
+	 * @param unit
+	 *            unit of the period
+	 * @return the scheduled task, cancel to stop saving
+	 */
+	public ScheduledFuture<?> schedule(final ClientSessionCache cache, final BcSecurityPrototype prototype,
+			ScheduledExecutorService executor, long period, TimeUnit unit) {
+		return executor.scheduleAtFixedRate(saveTask(cache, prototype), period, period, unit);
+	}
+
+	/**
+	 * Save the cache when the virtual machine shuts down
+	 *
+	 * @param cache
+	 *            the cache to save
+	 * @param prototype
+	 *            the prototype the sessions were established with
+	 * @return the registered hook
+	 */
+	public Thread saveOnShutdown(ClientSessionCache cache, BcSecurityPrototype prototype) {
+		Thread hook = new Thread(saveTask(cache, prototype), "bc-tls-session-snapshot");
+		Runtime.getRuntime().addShutdownHook(hook);
+		return hook;
+	}
+
+	private Runnable saveTask(final ClientSessionCache cache, final BcSecurityPrototype prototype) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					save(cache, prototype);
+				} catch (IOException | RuntimeException e) {
+					LOG.error("Unable to save session snapshot", e);
+				}
+			}
+		};
+	}
+
+	private static void writeSession(ClientSessionCache.CachedSession cached, SessionParameters parameters,
+			DataOutputStream out) throws IOException {
+		byte[] host = cached.host == null ? TlsUtils.EMPTY_BYTES : cached.host.getBytes(StandardCharsets.UTF_8);
+		byte[] ticket = cached.session instanceof TicketedSession ? ((TicketedSession) cached.session).getTicket()
+				: TlsUtils.EMPTY_BYTES;
+		byte[] state = encodeState(parameters);
+		try {
+			TlsUtils.writeUint8(cached.host == null ? 0 : 1, out);
+			TlsUtils.writeOpaque16(host, out);
+			out.writeInt(cached.port);
+			out.writeLong(cached.created);
+			TlsUtils.writeOpaque8(cached.session.getSessionID(), out);
+			TlsUtils.writeOpaque16(ticket, out);
+			TlsUtils.writeOpaque24(state, out);
+		} finally {
+			Arrays.fill(state, (byte) 0);
+		}
+	}
+
+	private static boolean readSession(DataInputStream in, ClientSessionCache cache,
+			BcSecurityPrototype prototype) throws IOException {
+		boolean named = TlsUtils.readUint8(in) != 0;
+		byte[] host = TlsUtils.readOpaque16(in);
+		int port = in.readInt();
+		long created = in.readLong();
+		byte[] sessionID = TlsUtils.readOpaque8(in);
+		byte[] ticket = TlsUtils.readOpaque16(in);
+		byte[] state = TlsUtils.readOpaque24(in);
+
+		SessionParameters parameters;
+		try {
+			parameters = decodeState(state);
+		} finally {
+			Arrays.fill(state, (byte) 0);
+		}
+		TlsSession session = ticket.length > 0 ? new TicketedSession(sessionID, ticket, parameters)
+				: TlsUtils.importSession(sessionID, parameters);
+		return cache.restore(named ? new String(host, StandardCharsets.UTF_8) : null, port, prototype, session,
+				created);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static byte[] encodeState(SessionParameters session) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TlsUtils.writeUint8(STATE_VERSION, out);
+		TlsUtils.writeUint16(session.getCipherSuite(), out);
+		TlsUtils.writeUint8(session.getCompressionAlgorithm(), out);
+		TlsUtils.writeOpaque8(session.getMasterSecret(), out);
+
+		Certificate peer = session.getPeerCertificate();
+		(peer == null ? Certificate.EMPTY_CHAIN : peer).encode(out);
+
+		Hashtable extensions = session.readServerExtensions();
+		ByteArrayOutputStream ext = new ByteArrayOutputStream();
+		if (extensions != null) {
+			Enumeration types = extensions.keys();
+			while (types.hasMoreElements()) {
+				Integer type = (Integer) types.nextElement();
+				TlsUtils.writeUint16(type.intValue(), ext);
+				TlsUtils.writeOpaque16((byte[]) extensions.get(type), ext);
+			}
+		}
+		TlsUtils.writeOpaque16(ext.toByteArray(), out);
+		return out.toByteArray();
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static SessionParameters decodeState(byte[] state) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(state);
+		if (TlsUtils.readUint8(in) != STATE_VERSION) {
+			throw new IOException("Unknown session state version");
+		}
+		SessionParameters.Builder builder = new SessionParameters.Builder().setCipherSuite(TlsUtils.readUint16(in))
+				.setCompressionAlgorithm(TlsUtils.readUint8(in)).setMasterSecret(TlsUtils.readOpaque8(in));
+
+		Certificate peer = Certificate.parse(in);
+		if (!peer.isEmpty()) {
+			builder.setPeerCertificate(peer);
+		}
+
+		ByteArrayInputStream ext = new ByteArrayInputStream(TlsUtils.readOpaque16(in));
+		Hashtable extensions = new Hashtable();
+		while (ext.available() > 0) {
+			extensions.put(Integers.valueOf(TlsUtils.readUint16(ext)), TlsUtils.readOpaque16(ext));
+		}
+		builder.setServerExtensions(extensions);
+		return builder.build();
+	}
+
+	private byte[] process(boolean encrypt, byte[] header, byte[] data, int offset, int length) throws IOException {
+		byte[] nonce = Arrays.copyOfRange(header, MAGIC.length + 1, HEADER_LENGTH);
+		GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+		cipher.init(encrypt, new AEADParameters(this.key, TAG_LENGTH * 8, nonce, header));
+		byte[] out = new byte[cipher.getOutputSize(length)];
+		try {
+			int len = cipher.processBytes(data, offset, length, out, 0);
+			cipher.doFinal(out, len);
+		} catch (InvalidCipherTextException e) {
+			Arrays.fill(out, (byte) 0);
+			throw new IOException("Session snapshot is not authentic: " + this.file, e);
+		}
+		return out;
+	}
+}
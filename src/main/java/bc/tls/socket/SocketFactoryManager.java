@@ -22,6 +22,8 @@ package bc.tls.socket;
 import java.util.concurrent.TimeUnit;
 
 import bc.tls.BcSecurityPrototype;
+import bc.tls.ServerNameRouter;
+import bc.tls.util.ByteArrayPool;
 
 /**
  * Manager interface with some methods to configure socket factories.
@@ -36,6 +38,27 @@ public interface SocketFactoryManager {
 	 * Default timeout in seconds
 	 */
 	public static final Long DEFAULT_TIMEOUT = 10L;
+
+	/**
+	 * Default time in milliseconds proxy decisions are reused
+	 */
+	public static final Long DEFAULT_PROXY_CACHE_TTL = 10000L;
+
+	/**
+	 * Default delay in milliseconds between Happy Eyeballs connect attempts,
+	 * as recommended by RFC 8305
+	 */
+	public static final Long DEFAULT_HAPPY_EYEBALLS_DELAY = 250L;
+
+	/**
+	 * Default time in milliseconds resolved host addresses are reused
+	 */
+	public static final Long DEFAULT_DNS_CACHE_TTL = 30000L;
+
+	/**
+	 * Default time in milliseconds a failed host lookup is remembered
+	 */
+	public static final Long DEFAULT_DNS_NEGATIVE_TTL = 10000L;
 	/**
 	 * Config property key to close the underlying socket when the tls socket is
 	 * closed
@@ -43,6 +66,221 @@ public interface SocketFactoryManager {
 	 * Accepts: {@link Boolean}
 	 */
 	public static final String KEY_SOCKET_AUTO_CLOSE = "bc.tls.socket.autoClose";
+	/**
+	 * Config property key to combine small application writes into records
+	 * of up to the given number of bytes. Combined records are written when
+	 * full, on {@code flush()} or after {@link #KEY_WRITE_COMBINING_DELAY}.
+	 * <p>
+	 * Accepts: {@link Integer}, disabled if absent or not positive
+	 */
+	public static final String KEY_WRITE_COMBINING_SIZE = "bc.tls.socket.writeCombining.size";
+	/**
+	 * Config property key for the maximum time in milliseconds a combined
+	 * record is held back from further writes. The next write after the delay
+	 * writes the record without an explicit flush, no timer does.
+	 * <p>
+	 * Accepts: {@link Long}, waits for an explicit flush if absent
+	 */
+	public static final String KEY_WRITE_COMBINING_DELAY = "bc.tls.socket.writeCombining.delay";
+	/**
+	 * Config property key for the size of the read-ahead buffer between the
+	 * raw socket and the record layer
+	 * <p>
+	 * Accepts: {@link Integer}, disabled if absent or not positive
+	 */
+	public static final String KEY_READ_AHEAD_SIZE = "bc.tls.socket.readAhead.size";
+	/**
+	 * Config property key for a pool providing the read-ahead buffers,
+	 * overrides {@link #KEY_READ_AHEAD_SIZE}
+	 * <p>
+	 * Accepts: {@link ByteArrayPool}
+	 */
+	public static final String KEY_READ_AHEAD_POOL = "bc.tls.socket.readAhead.pool";
+	/**
+	 * Config property key for the listen backlog of server sockets created
+	 * without one, the platform default applies if absent
+	 * <p>
+	 * Accepts: {@link Integer}
+	 */
+	public static final String KEY_SERVER_BACKLOG = "bc.tls.socket.server.backlog";
+	/**
+	 * Config property key to enable SO_REUSEADDR on server sockets, so that a
+	 * restarted server can bind while old connections are in TIME_WAIT
+	 * <p>
+	 * Accepts: {@link Boolean}
+	 */
+	public static final String KEY_SERVER_REUSE_ADDRESS = "bc.tls.socket.server.reuseAddress";
+	/**
+	 * Config property key to enable SO_REUSEPORT on server sockets, so that
+	 * several sockets can listen on the same port with the kernel spreading
+	 * connections across them. Requires Java 9 and platform support, ignored
+	 * otherwise.
+	 * <p>
+	 * Accepts: {@link Boolean}
+	 */
+	public static final String KEY_SERVER_REUSE_PORT = "bc.tls.socket.server.reusePort";
+	/**
+	 * Config property key for the receive buffer size of server sockets,
+	 * applied before bind so that accepted sockets inherit it and the TCP
+	 * window can be scaled accordingly
+	 * <p>
+	 * Accepts: {@link Integer}
+	 */
+	public static final String KEY_SERVER_RECEIVE_BUFFER_SIZE = "bc.tls.socket.server.receiveBufferSize";
+	/**
+	 * Config property key for an executor running the handshakes of accepted
+	 * server sockets, {@code accept()} returns without handshaking if set
+	 * <p>
+	 * Accepts: {@link java.util.concurrent.Executor}
+	 */
+	public static final String KEY_HANDSHAKE_EXECUTOR = "bc.tls.socket.handshakeExecutor";
+	/**
+	 * Config property key for the number of event loop threads of
+	 * non-blocking servers, one per core if absent
+	 * <p>
+	 * Accepts: {@link Integer}
+	 */
+	public static final String KEY_REACTOR_EVENT_LOOPS = "bc.tls.socket.reactor.eventLoops";
+	/**
+	 * Config property key for the milliseconds connections of non-blocking
+	 * servers have to complete their handshake in, {@code 0} for no limit
+	 * <p>
+	 * Accepts: {@link Integer}
+	 */
+	public static final String KEY_REACTOR_HANDSHAKE_TIMEOUT = "bc.tls.socket.reactor.handshakeTimeout";
+	/**
+	 * Config property key for the milliseconds connections of non-blocking
+	 * servers may be idle before they are closed, no limit if absent
+	 * <p>
+	 * Accepts: {@link Integer}
+	 */
+	public static final String KEY_REACTOR_IDLE_TIMEOUT = "bc.tls.socket.reactor.idleTimeout";
+	/**
+	 * Config property key for the bytes queued for a connection of a
+	 * non-blocking server before it is reported as not writable
+	 * <p>
+	 * Accepts: {@link Integer}
+	 */
+	public static final String KEY_REACTOR_HIGH_WATER_MARK = "bc.tls.socket.reactor.highWaterMark";
+	/**
+	 * Config property key for the admission control limiting the handshakes
+	 * of accepted server sockets
+	 * <p>
+	 * Accepts: {@link HandshakeAdmission}
+	 */
+	public static final String KEY_HANDSHAKE_ADMISSION = "bc.tls.socket.handshakeAdmission";
+	/**
+	 * Config property key for the cache client sockets resume sessions from,
+	 * each factory uses a cache of its own by default
+	 * <p>
+	 * Accepts: {@link ClientSessionCache}, {@link Boolean#FALSE} disables
+	 * resumption
+	 */
+	public static final String KEY_SESSION_CACHE = "bc.tls.socket.sessionCache";
+	/**
+	 * Config property key for the context holding the sessions of accepted
+	 * sockets, none by default. The context keeps copies of the sessions,
+	 * detached from their connections, it does not shorten handshakes.
+	 * <p>
+	 * Accepts: {@link BcTlsSessionContext}, {@link Boolean#TRUE} for the
+	 * factory's own context
+	 */
+	public static final String KEY_SERVER_SESSION_CONTEXT = "bc.tls.socket.serverSessionContext";
+	/**
+	 * Config property key for a router selecting the prototype of accepted
+	 * sockets by the indicated server name
+	 * <p>
+	 * Accepts: {@link ServerNameRouter}
+	 */
+	public static final String KEY_SERVER_NAME_ROUTER = "bc.tls.socket.serverNameRouter";
+	/**
+	 * Config property key for the proxy of all client connections, instead of
+	 * asking a selector. {@link java.net.Proxy#NO_PROXY} connects directly
+	 * without any proxy lookup.
+	 * <p>
+	 * Accepts: {@link java.net.Proxy}
+	 */
+	public static final String KEY_PROXY = "bc.tls.socket.proxy";
+	/**
+	 * Config property key for the selector choosing the proxies of client
+	 * connections, defaults to {@link java.net.ProxySelector#getDefault()}
+	 * <p>
+	 * Accepts: {@link java.net.ProxySelector}
+	 */
+	public static final String KEY_PROXY_SELECTOR = "bc.tls.socket.proxySelector";
+	/**
+	 * Config property key for the time in milliseconds the proxies selected
+	 * for a peer are reused, {@code 0} asks the selector on every connect.
+	 * Defaults to {@link #DEFAULT_PROXY_CACHE_TTL}.
+	 * <p>
+	 * Accepts: {@link Long}
+	 */
+	public static final String KEY_PROXY_CACHE_TTL = "bc.tls.socket.proxyCacheTtl";
+	/**
+	 * Config property key to race direct connects across all resolved
+	 * addresses of the host (Happy Eyeballs, RFC 8305), keeping the first one
+	 * to connect
+	 * <p>
+	 * Accepts: {@link Boolean}, disabled if absent
+	 */
+	public static final String KEY_HAPPY_EYEBALLS = "bc.tls.socket.happyEyeballs";
+	/**
+	 * Config property key for the delay in milliseconds before the next
+	 * address is tried while an attempt is still pending. Defaults to
+	 * {@link #DEFAULT_HAPPY_EYEBALLS_DELAY}.
+	 * <p>
+	 * Accepts: {@link Long}
+	 */
+	public static final String KEY_HAPPY_EYEBALLS_DELAY = "bc.tls.socket.happyEyeballsDelay";
+	/**
+	 * Config property key for the time in milliseconds resolved addresses of
+	 * a host are reused, {@code 0} resolves on every connect. Names in use
+	 * are refreshed in the background before they expire. Defaults to
+	 * {@link #DEFAULT_DNS_CACHE_TTL}.
+	 * <p>
+	 * Accepts: {@link Long}
+	 */
+	public static final String KEY_DNS_CACHE_TTL = "bc.tls.socket.dnsCacheTtl";
+	/**
+	 * Config property key for the time in milliseconds a failed host lookup
+	 * is remembered. Defaults to {@link #DEFAULT_DNS_NEGATIVE_TTL}.
+	 * <p>
+	 * Accepts: {@link Long}
+	 */
+	public static final String KEY_DNS_NEGATIVE_TTL = "bc.tls.socket.dnsNegativeTtl";
+	/**
+	 * Config property key to send application data before the server's
+	 * Finished message, for cipher suites allowing TLS False Start
+	 * <p>
+	 * Accepts: {@link Boolean}, disabled if absent
+	 */
+	public static final String KEY_FALSE_START = "bc.tls.socket.falseStart";
+	/**
+	 * Config property key for the time in milliseconds establishing a client
+	 * connection may take in total, covering the host lookup, all proxy and
+	 * connect attempts and the handshake. Each connect is still bounded by the
+	 * default timeout. Running out of time raises a
+	 * {@link DeadlineExceededException} naming the phase. The handshake has to
+	 * follow the socket's creation without delay.
+	 * <p>
+	 * Accepts: {@link Long}, no deadline if absent
+	 */
+	public static final String KEY_CONNECT_DEADLINE = "bc.tls.socket.connectDeadline";
+	/**
+	 * Config property key for the TCP options of all client connections,
+	 * unless the endpoint or the call selects another profile
+	 * <p>
+	 * Accepts: {@link SocketProfile}
+	 */
+	public static final String KEY_SOCKET_PROFILE = "bc.tls.socket.profile";
+	/**
+	 * Config property key for a random source shared by all sockets instead
+	 * of one made by the prototype per socket, see
+	 * {@link bc.tls.util.SecureRandomPool}
+	 * <p>
+	 * Accepts: {@link java.security.SecureRandom}
+	 */
+	public static final String KEY_SECURE_RANDOM = "bc.tls.socket.secureRandom";
 	/**
 	 * Config property key for an optional random provider
 	 * <p>
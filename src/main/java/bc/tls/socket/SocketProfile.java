@@ -0,0 +1,242 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Immutable set of TCP options for the raw sockets a factory connects.
+ * Options left unset keep the platform's defaults.
+ *
+ * <pre>
+ * SocketProfile interactive = new SocketProfile.Builder().setTcpNoDelay(true).setReadTimeout(5000).build();
+ * </pre>
+ *
+ * @author super-horst
+ *
+ */
+public final class SocketProfile {
+
+	private final Boolean tcpNoDelay;
+	private final Integer sendBufferSize;
+	private final Integer receiveBufferSize;
+	private final Boolean keepAlive;
+	private final Integer linger;
+	private final Integer trafficClass;
+	private final Integer readTimeout;
+
+	private SocketProfile(Builder builder) {
+		this.tcpNoDelay = builder.tcpNoDelay;
+		this.sendBufferSize = builder.sendBufferSize;
+		this.receiveBufferSize = builder.receiveBufferSize;
+		this.keepAlive = builder.keepAlive;
+		this.linger = builder.linger;
+		this.trafficClass = builder.trafficClass;
+		this.readTimeout = builder.readTimeout;
+	}
+
+	/**
+	 * Apply the profile, before connecting for the buffer sizes to take part
+	 * in window scaling
+	 *
+	 * @param socket
+	 *            the raw socket
+	 * @throws SocketException
+	 *             if an option could not be set
+	 */
+	public void apply(Socket socket) throws SocketException {
+		if (this.tcpNoDelay != null) {
+			socket.setTcpNoDelay(this.tcpNoDelay);
+		}
+		if (this.sendBufferSize != null) {
+			socket.setSendBufferSize(this.sendBufferSize);
+		}
+		if (this.receiveBufferSize != null) {
+			socket.setReceiveBufferSize(this.receiveBufferSize);
+		}
+		if (this.keepAlive != null) {
+			socket.setKeepAlive(this.keepAlive);
+		}
+		if (this.linger != null) {
+			socket.setSoLinger(this.linger >= 0, Math.max(this.linger, 0));
+		}
+		if (this.trafficClass != null) {
+			socket.setTrafficClass(this.trafficClass);
+		}
+		if (this.readTimeout != null) {
+			socket.setSoTimeout(this.readTimeout);
+		}
+	}
+
+	/**
+	 * @return TCP_NODELAY or {@code null}
+	 */
+	public Boolean getTcpNoDelay() {
+		return this.tcpNoDelay;
+	}
+
+	/**
+	 * @return SO_SNDBUF in bytes or {@code null}
+	 */
+	public Integer getSendBufferSize() {
+		return this.sendBufferSize;
+	}
+
+	/**
+	 * @return SO_RCVBUF in bytes or {@code null}
+	 */
+	public Integer getReceiveBufferSize() {
+		return this.receiveBufferSize;
+	}
+
+	/**
+	 * @return SO_KEEPALIVE or {@code null}
+	 */
+	public Boolean getKeepAlive() {
+		return this.keepAlive;
+	}
+
+	/**
+	 * @return SO_LINGER in seconds, negative if disabled, or {@code null}
+	 */
+	public Integer getLinger() {
+		return this.linger;
+	}
+
+	/**
+	 * @return IP traffic class or {@code null}
+	 */
+	public Integer getTrafficClass() {
+		return this.trafficClass;
+	}
+
+	/**
+	 * @return SO_TIMEOUT in milliseconds or {@code null}
+	 */
+	public Integer getReadTimeout() {
+		return this.readTimeout;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"SocketProfile[tcpNoDelay=%s, sendBuffer=%s, receiveBuffer=%s, keepAlive=%s, linger=%s, "
+						+ "trafficClass=%s, readTimeout=%s]",
+				this.tcpNoDelay, this.sendBufferSize, this.receiveBufferSize, this.keepAlive, this.linger,
+				this.trafficClass, this.readTimeout);
+	}
+
+	public static final class Builder {
+
+		private Boolean tcpNoDelay;
+		private Integer sendBufferSize;
+		private Integer receiveBufferSize;
+		private Boolean keepAlive;
+		private Integer linger;
+		private Integer trafficClass;
+		private Integer readTimeout;
+
+		public Builder() {
+		}
+
+		/**
+		 * @param base
+		 *            profile to start from
+		 */
+		public Builder(SocketProfile base) {
+			this.tcpNoDelay = base.tcpNoDelay;
+			this.sendBufferSize = base.sendBufferSize;
+			this.receiveBufferSize = base.receiveBufferSize;
+			this.keepAlive = base.keepAlive;
+			this.linger = base.linger;
+			this.trafficClass = base.trafficClass;
+			this.readTimeout = base.readTimeout;
+		}
+
+		public Builder setTcpNoDelay(boolean on) {
+			this.tcpNoDelay = on;
+			return this;
+		}
+
+		public Builder setSendBufferSize(int size) {
+			if (size <= 0) {
+				throw new IllegalArgumentException("Invalid send buffer size: " + size);
+			}
+			this.sendBufferSize = size;
+			return this;
+		}
+
+		public Builder setReceiveBufferSize(int size) {
+			if (size <= 0) {
+				throw new IllegalArgumentException("Invalid receive buffer size: " + size);
+			}
+			this.receiveBufferSize = size;
+			return this;
+		}
+
+		public Builder setKeepAlive(boolean on) {
+			this.keepAlive = on;
+			return this;
+		}
+
+		/**
+		 * @param seconds
+		 *            time to linger on close, negative disables lingering
+		 */
+		public Builder setLinger(int seconds) {
+			this.linger = seconds < 0 ? -1 : seconds;
+			return this;
+		}
+
+		/**
+		 * @param trafficClass
+		 *            the IP traffic class (TOS / DSCP byte)
+		 */
+		public Builder setTrafficClass(int trafficClass) {
+			if (trafficClass < 0 || trafficClass > 255) {
+				throw new IllegalArgumentException("Invalid traffic class: " + trafficClass);
+			}
+			this.trafficClass = trafficClass;
+			return this;
+		}
+
+		/**
+		 * A read timing out between records throws a
+		 * {@link java.net.SocketTimeoutException} and leaves the tls socket
+		 * usable. A timeout while the handshake runs or a record is partially
+		 * received fails the connection.
+		 *
+		 * @param millis
+		 *            read timeout, {@code 0} blocks indefinitely
+		 */
+		public Builder setReadTimeout(int millis) {
+			if (millis < 0) {
+				throw new IllegalArgumentException("Invalid read timeout: " + millis);
+			}
+			this.readTimeout = millis;
+			return this;
+		}
+
+		public SocketProfile build() {
+			return new SocketProfile(this);
+		}
+	}
+}
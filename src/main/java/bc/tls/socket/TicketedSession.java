@@ -0,0 +1,74 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import org.bouncycastle.crypto.tls.SessionParameters;
+import org.bouncycastle.crypto.tls.TlsSession;
+import org.bouncycastle.util.Arrays;
+
+/**
+ * Client session resumable from an RFC 5077 session ticket. The session id
+ * is chosen by the client and echoed by a server accepting the ticket.
+ *
+ * @author super-horst
+ *
+ */
+final class TicketedSession implements TlsSession {
+
+	private final byte[] sessionID;
+	private final byte[] ticket;
+	private SessionParameters sessionParameters;
+
+	TicketedSession(byte[] sessionID, byte[] ticket, SessionParameters sessionParameters) {
+		this.sessionID = Arrays.clone(sessionID);
+		this.ticket = Arrays.clone(ticket);
+		this.sessionParameters = sessionParameters;
+	}
+
+	/**
+	 * @return the ticket to send in the session ticket extension
+	 */
+	byte[] getTicket() {
+		return Arrays.clone(this.ticket);
+	}
+
+	@Override
+	public synchronized SessionParameters exportSessionParameters() {
+		return this.sessionParameters == null ? null : this.sessionParameters.copy();
+	}
+
+	@Override
+	public synchronized byte[] getSessionID() {
+		return Arrays.clone(this.sessionID);
+	}
+
+	@Override
+	public synchronized void invalidate() {
+		if (this.sessionParameters != null) {
+			this.sessionParameters.clear();
+			this.sessionParameters = null;
+		}
+	}
+
+	@Override
+	public synchronized boolean isResumable() {
+		return this.sessionParameters != null;
+	}
+}
@@ -0,0 +1,543 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSession;
+
+import org.bouncycastle.crypto.tls.TlsServerProtocol;
+
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+import bc.tls.logging.LogLevel;
+
+/**
+ * Connection accepted by a {@link BcTlsReactorServer}, driving the tls
+ * protocol in non-blocking mode on its event loop.
+ * <p>
+ * {@link #send(ByteBuffer)} and {@link #close()} may be called from any
+ * thread, the work is handed over to the event loop. Data the peer does not
+ * take yet is queued, once more than the high-water mark is queued the
+ * connection is reported as not writable to the
+ * {@link TlsConnectionHandler}, until half of it has been sent.
+ *
+ * @author super-horst
+ *
+ */
+public final class TlsConnection {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("TlsConnection");
+
+	private final ReactorLoop loop;
+	private final SocketChannel channel;
+	private final InetSocketAddress remoteAddress;
+	private final TlsServerProtocol protocol;
+	private final BcTlsServer peer;
+	private final TlsConnectionHandler handler;
+	private final Executor handshakeExecutor;
+
+	/**
+	 * Encrypted data the channel did not take yet, loop thread only
+	 */
+	private final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * Bytes passed to {@link #send(ByteBuffer)} and not yet encrypted plus
+	 * the pending output
+	 */
+	private final AtomicLong queuedBytes = new AtomicLong();
+
+	private long handshakeTimeout;
+	private long idleTimeout;
+	private long highWaterMark;
+
+	private SelectionKey key;
+	private long acceptedAt;
+	private long lastActivity;
+	private boolean established;
+	private boolean offloaded;
+	private boolean closeRequested;
+	private boolean closing;
+
+	private volatile boolean closed;
+	private volatile boolean writable = true;
+	private volatile SSLSession session;
+	private volatile Object attachment;
+
+	TlsConnection(ReactorLoop loop, SocketChannel channel, InetSocketAddress remoteAddress,
+			TlsServerProtocol protocol, BcTlsServer peer, TlsConnectionHandler handler, Executor handshakeExecutor) {
+		this.loop = loop;
+		this.channel = channel;
+		this.remoteAddress = remoteAddress;
+		this.protocol = protocol;
+		this.peer = peer;
+		this.handler = handler;
+		this.handshakeExecutor = handshakeExecutor;
+	}
+
+	/**
+	 * Set before the connection is registered
+	 * 
+	 * @param handshakeTimeout
+	 *            milliseconds to complete the handshake in, {@code 0} for no
+	 *            limit
+	 * @param idleTimeout
+	 *            milliseconds without any data before the connection is
+	 *            closed, {@code 0} for no limit
+	 * @param highWaterMark
+	 *            queued bytes before the connection is reported as not
+	 *            writable, {@code 0} for no limit
+	 */
+	void setLimits(int handshakeTimeout, int idleTimeout, int highWaterMark) {
+		this.handshakeTimeout = TimeUnit.MILLISECONDS.toNanos(handshakeTimeout);
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		this.highWaterMark = highWaterMark;
+	}
+
+	/**
+	 * Encrypt and send the remaining bytes of the buffer. Only after the
+	 * handshake has completed.
+	 * 
+	 * @param data
+	 *            the data, copied before returning
+	 * @throws ClosedChannelException
+	 *             if the connection is closed
+	 * @throws IllegalStateException
+	 *             if the handshake has not completed yet
+	 */
+	public void send(ByteBuffer data) throws ClosedChannelException {
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+		if (this.session == null) {
+			throw new IllegalStateException("Handshake has not completed yet");
+		}
+		final byte[] copy = new byte[data.remaining()];
+		data.get(copy);
+		this.queuedBytes.addAndGet(copy.length);
+		this.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				write(copy);
+			}
+		});
+	}
+
+	/**
+	 * Send a {@code close_notify} alert and close the connection once all
+	 * queued data has been sent
+	 */
+	public void close() {
+		this.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+	}
+
+	/**
+	 * @return whether the connection is open
+	 */
+	public boolean isOpen() {
+		return !this.closed;
+	}
+
+	/**
+	 * @return {@code false} while more than the high-water mark is queued,
+	 *         until half of it has been sent
+	 * @see TlsConnectionHandler#writabilityChanged(TlsConnection, boolean)
+	 */
+	public boolean isWritable() {
+		return this.writable;
+	}
+
+	/**
+	 * @return bytes queued for sending, before or after encryption
+	 */
+	public long getQueuedBytes() {
+		return this.queuedBytes.get();
+	}
+
+	/**
+	 * @return the session or {@code null} before the handshake has completed
+	 */
+	public SSLSession getSession() {
+		return this.session;
+	}
+
+	/**
+	 * @return the peer's address
+	 */
+	public InetSocketAddress getRemoteAddress() {
+		return this.remoteAddress;
+	}
+
+	/**
+	 * @param attachment
+	 *            application state of this connection, may be {@code null}
+	 */
+	public void attach(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * @return the application state of this connection or {@code null}
+	 */
+	public Object attachment() {
+		return this.attachment;
+	}
+
+	/**
+	 * Start watching the channel, loop thread only
+	 */
+	void register() {
+		this.acceptedAt = System.nanoTime();
+		this.lastActivity = this.acceptedAt;
+		this.loop.added();
+		try {
+			this.key = this.loop.register(this.channel, SelectionKey.OP_READ, this);
+			this.protocol.accept(this.peer);
+		} catch (IOException e) {
+			finish(e);
+		}
+	}
+
+	/**
+	 * The channel has data, loop thread only
+	 */
+	void readable() {
+		ByteBuffer buffer = this.loop.readBuffer();
+		buffer.clear();
+		int read;
+		try {
+			read = this.channel.read(buffer);
+		} catch (IOException e) {
+			finish(e);
+			return;
+		}
+		if (read < 0) {
+			finish(this.protocol.isClosed() ? null : new EOFException("Connection closed without close_notify"));
+			return;
+		}
+		if (read == 0) {
+			return;
+		}
+		this.lastActivity = System.nanoTime();
+
+		// offerInput(...) only takes whole arrays
+		final byte[] input = Arrays.copyOf(buffer.array(), read);
+		if (!this.established && this.handshakeExecutor != null) {
+			offload(input);
+		} else {
+			processed(offer(input));
+		}
+	}
+
+	/**
+	 * The channel takes data again, loop thread only
+	 */
+	void writable() {
+		try {
+			while (!this.pendingOutput.isEmpty()) {
+				ByteBuffer pending = this.pendingOutput.peek();
+				int written = this.channel.write(pending);
+				if (written > 0) {
+					this.queuedBytes.addAndGet(-written);
+					this.lastActivity = System.nanoTime();
+				}
+				if (pending.hasRemaining()) {
+					break;
+				}
+				this.pendingOutput.poll();
+			}
+		} catch (IOException e) {
+			finish(e);
+			return;
+		}
+		if (this.closing && this.pendingOutput.isEmpty()) {
+			finish(null);
+		} else {
+			updateInterest();
+			updateWritability();
+		}
+	}
+
+	/**
+	 * Close the connection if its handshake or idle timeout has passed, loop
+	 * thread only
+	 */
+	void checkTimeouts(long now) {
+		if (this.closed) {
+			return;
+		}
+		if (!this.established) {
+			if (this.handshakeTimeout > 0 && now - this.acceptedAt >= this.handshakeTimeout) {
+				finish(new SocketTimeoutException("Handshake timed out"));
+			}
+		} else if (this.idleTimeout > 0 && now - this.lastActivity >= this.idleTimeout) {
+			finish(new SocketTimeoutException("Connection idle timed out"));
+		}
+	}
+
+	/**
+	 * Close the channel and report it, loop thread only
+	 */
+	void finish(IOException cause) {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		if (this.key != null) {
+			this.key.cancel();
+		}
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			LOG.error("Error closing channel", e);
+		}
+		this.pendingOutput.clear();
+		this.loop.removed();
+		if (cause != null && LOG.isLevelEnabled(LogLevel.DEBUG)) {
+			LOG.debug(String.format("Connection to %s failed: %s", this.remoteAddress, cause));
+		}
+		try {
+			this.handler.closed(this, cause);
+		} catch (RuntimeException e) {
+			LOG.error("Connection handler failed", e);
+		}
+	}
+
+	/**
+	 * Process the input on the handshake executor, the connection is not
+	 * read from meanwhile
+	 */
+	private void offload(final byte[] input) {
+		this.offloaded = true;
+		updateInterest();
+		try {
+			this.handshakeExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					final IOException failure = offer(input);
+					TlsConnection.this.loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							TlsConnection.this.offloaded = false;
+							processed(failure);
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.offloaded = false;
+			processed(offer(input));
+		}
+	}
+
+	private IOException offer(byte[] input) {
+		try {
+			this.protocol.offerInput(input);
+			return null;
+		} catch (IOException e) {
+			return e;
+		} catch (RuntimeException e) {
+			return new IOException(e);
+		}
+	}
+
+	/**
+	 * Act on the protocol's state after input has been processed
+	 */
+	private void processed(IOException failure) {
+		if (this.closed) {
+			return;
+		}
+		try {
+			// also sends the alert of a failure
+			flushProtocol();
+		} catch (IOException e) {
+			finish(failure == null ? e : failure);
+			return;
+		}
+		if (failure != null) {
+			finish(failure);
+			return;
+		}
+
+		if (!this.established && this.peer.isHandshakeComplete()) {
+			this.established = true;
+			this.session = new BcTlsSession(this.peer, this.remoteAddress.getHostString(),
+					this.remoteAddress.getPort());
+			if (LOG.isLevelEnabled(LogLevel.DEBUG)) {
+				LOG.debug(String.format("Handshake successful, connected to %s", this.remoteAddress));
+			}
+			try {
+				this.handler.connected(this);
+			} catch (RuntimeException e) {
+				LOG.error("Connection handler failed", e);
+				finish(new IOException(e));
+				return;
+			}
+		}
+
+		if (!deliver()) {
+			return;
+		}
+
+		if (this.closeRequested) {
+			shutdown();
+		} else if (this.protocol.isClosed()) {
+			// peer sent close_notify, which was answered already
+			this.closing = true;
+			writable();
+		} else {
+			updateInterest();
+		}
+	}
+
+	/**
+	 * @return {@code false} if the connection got closed
+	 */
+	private boolean deliver() {
+		byte[] buffer = this.loop.applicationBuffer();
+		int available;
+		while (!this.closed && (available = this.protocol.getAvailableInputBytes()) > 0) {
+			int read = this.protocol.readInput(buffer, 0, Math.min(buffer.length, available));
+			try {
+				this.handler.received(this, ByteBuffer.wrap(buffer, 0, read));
+			} catch (RuntimeException e) {
+				LOG.error("Connection handler failed", e);
+				finish(new IOException(e));
+			}
+		}
+		return !this.closed;
+	}
+
+	private void write(byte[] data) {
+		// the encrypted data left over is queued again by flushProtocol()
+		this.queuedBytes.addAndGet(-data.length);
+		if (this.closed || this.closing || data.length == 0) {
+			return;
+		}
+		try {
+			this.protocol.offerOutput(data, 0, data.length);
+			flushProtocol();
+		} catch (IOException e) {
+			finish(e);
+			return;
+		}
+		updateInterest();
+		updateWritability();
+	}
+
+	private void shutdown() {
+		if (this.closed || this.closing) {
+			return;
+		}
+		if (this.offloaded) {
+			// the protocol is busy on the handshake executor
+			this.closeRequested = true;
+			return;
+		}
+		this.closing = true;
+		try {
+			this.protocol.close();
+			flushProtocol();
+		} catch (IOException e) {
+			finish(e);
+			return;
+		}
+		writable();
+	}
+
+	/**
+	 * Move the protocol's output to the channel, queueing what it does not
+	 * take
+	 */
+	private void flushProtocol() throws IOException {
+		byte[] buffer = this.loop.packetBuffer();
+		int available;
+		while ((available = this.protocol.getAvailableOutputBytes()) > 0) {
+			int read = this.protocol.readOutput(buffer, 0, Math.min(buffer.length, available));
+			if (this.pendingOutput.isEmpty()) {
+				ByteBuffer direct = ByteBuffer.wrap(buffer, 0, read);
+				if (this.channel.write(direct) > 0) {
+					this.lastActivity = System.nanoTime();
+				}
+				if (direct.hasRemaining()) {
+					this.pendingOutput.add(ByteBuffer.wrap(Arrays.copyOfRange(buffer, direct.position(), read)));
+					this.queuedBytes.addAndGet(direct.remaining());
+				}
+			} else {
+				this.pendingOutput.add(ByteBuffer.wrap(Arrays.copyOf(buffer, read)));
+				this.queuedBytes.addAndGet(read);
+			}
+		}
+	}
+
+	private void updateInterest() {
+		if (this.closed || !this.key.isValid()) {
+			return;
+		}
+		int ops = this.offloaded || this.closing ? 0 : SelectionKey.OP_READ;
+		if (!this.pendingOutput.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		this.key.interestOps(ops);
+	}
+
+	/**
+	 * Report crossing the high-water mark to the handler
+	 */
+	private void updateWritability() {
+		if (this.highWaterMark <= 0 || this.closed) {
+			return;
+		}
+		long queued = this.queuedBytes.get();
+		if (this.writable && queued > this.highWaterMark) {
+			this.writable = false;
+		} else if (!this.writable && queued <= this.highWaterMark / 2) {
+			this.writable = true;
+		} else {
+			return;
+		}
+		try {
+			this.handler.writabilityChanged(this, this.writable);
+		} catch (RuntimeException e) {
+			LOG.error("Connection handler failed", e);
+			finish(new IOException(e));
+		}
+	}
+}
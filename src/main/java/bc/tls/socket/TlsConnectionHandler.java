@@ -0,0 +1,82 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Callbacks of a {@link BcTlsReactorServer}. All callbacks of a connection
+ * are made on its event loop thread and must not block.
+ * <p>
+ * Connections closed by a handshake or idle timeout are reported with a
+ * {@link java.net.SocketTimeoutException}.
+ *
+ * @author super-horst
+ *
+ */
+public interface TlsConnectionHandler {
+
+	/**
+	 * The handshake of a connection has completed, data may be sent from now
+	 * on
+	 * 
+	 * @param connection
+	 *            the connection
+	 */
+	void connected(TlsConnection connection);
+
+	/**
+	 * @param connection
+	 *            the connection
+	 * @param data
+	 *            decrypted application data, only valid until the callback
+	 *            returns
+	 */
+	void received(TlsConnection connection, ByteBuffer data);
+
+	/**
+	 * A connection has been closed. Called once for every accepted
+	 * connection, including those that failed their handshake.
+	 * 
+	 * @param connection
+	 *            the connection
+	 * @param cause
+	 *            the failure that closed the connection, {@code null} if it
+	 *            was closed orderly
+	 */
+	void closed(TlsConnection connection, IOException cause);
+
+	/**
+	 * More than the high-water mark has been queued for sending, or half of
+	 * it has been sent since. Data passed to
+	 * {@link TlsConnection#send(ByteBuffer)} is queued regardless, the
+	 * handler should stop producing until the connection is writable again.
+	 * Ignored by default.
+	 * 
+	 * @param connection
+	 *            the connection
+	 * @param writable
+	 *            {@link TlsConnection#isWritable()}
+	 */
+	default void writabilityChanged(TlsConnection connection, boolean writable) {
+		// ignored
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stream combining small application writes into records of up to a
+ * fixed size. Buffered data is written as one record when the buffer is
+ * full, on {@link #flush()} or, if a delay is given, with the first write
+ * after that delay has passed since the first buffered byte.
+ * <p>
+ * The delay is checked by the writing thread only. No timer writes on behalf
+ * of the stream, so a stalled peer blocks no other connection.
+ *
+ * @author super-horst
+ *
+ */
+class WriteCombiningOutputStream extends OutputStream {
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private final long maxDelayNanos;
+
+	private int count = 0;
+	private boolean closed = false;
+	private long bufferedSince;
+
+	/**
+	 * @param out
+	 *            the record layer's output stream
+	 * @param recordSize
+	 *            maximum number of bytes to combine into one record
+	 * @param maxDelay
+	 *            maximum time to hold back buffered data from further
+	 *            writes, {@code 0} to wait for an explicit flush
+	 * @param unit
+	 *            unit of the delay
+	 */
+	WriteCombiningOutputStream(OutputStream out, int recordSize, long maxDelay, TimeUnit unit) {
+		if (recordSize <= 0) {
+			throw new IllegalArgumentException("Record size must be positive: " + recordSize);
+		}
+		this.out = out;
+		this.buffer = new byte[Math.min(recordSize, BcTlsSession.MAX_FRAGMENT_LENGTH)];
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		ensureOpen();
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		markBuffered();
+		buffer[count++] = (byte) b;
+		flushIfDue();
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || off > b.length - len) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len >= buffer.length) {
+			// already a full record, keep ordering and pass through
+			flushBuffer();
+			out.write(b, off, len);
+			return;
+		}
+		if (len > buffer.length - count) {
+			flushBuffer();
+		}
+		markBuffered();
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+		if (count == buffer.length) {
+			flushBuffer();
+		} else {
+			flushIfDue();
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		ensureOpen();
+		flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flushBuffer();
+		} finally {
+			closed = true;
+			out.close();
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			int n = count;
+			count = 0;
+			out.write(buffer, 0, n);
+		}
+	}
+
+	private void markBuffered() {
+		if (count == 0) {
+			bufferedSince = System.nanoTime();
+		}
+	}
+
+	private void flushIfDue() throws IOException {
+		if (maxDelayNanos > 0 && count > 0 && System.nanoTime() - bufferedSince >= maxDelayNanos) {
+			flushBuffer();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
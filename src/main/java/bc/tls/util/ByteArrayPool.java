@@ -0,0 +1,97 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe pool of equally sized byte arrays. Arrays are allocated on
+ * demand, at most {@code maxPooled} released arrays are kept for reuse.
+ * 
+ * @author super-horst
+ *
+ */
+public class ByteArrayPool {
+
+	private final int arraySize;
+	private final int maxPooled;
+
+	private final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * @param arraySize
+	 *            size of every array handed out
+	 * @param maxPooled
+	 *            maximum number of idle arrays to keep
+	 */
+	public ByteArrayPool(int arraySize, int maxPooled) {
+		if (arraySize <= 0 || maxPooled < 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid pool dimensions: size %d, max pooled %d", arraySize, maxPooled));
+		}
+		this.arraySize = arraySize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a pooled array or a new one if the pool is empty
+	 */
+	public byte[] acquire() {
+		byte[] array = this.pool.poll();
+		if (array == null) {
+			return new byte[this.arraySize];
+		}
+		this.pooled.decrementAndGet();
+		return array;
+	}
+
+	/**
+	 * Hand an array back for reuse. The caller must not touch it afterwards.
+	 * 
+	 * @param array
+	 *            an array acquired from this pool
+	 */
+	public void release(byte[] array) {
+		if (array.length != this.arraySize) {
+			throw new IllegalArgumentException("Array was not acquired from this pool");
+		}
+		if (this.pooled.incrementAndGet() <= this.maxPooled) {
+			this.pool.offer(array);
+		} else {
+			this.pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return size of the arrays in this pool
+	 */
+	public int getArraySize() {
+		return this.arraySize;
+	}
+
+	/**
+	 * @return number of idle arrays currently pooled
+	 */
+	public int getPooledCount() {
+		return this.pooled.get();
+	}
+}
@@ -0,0 +1,303 @@
+/**
+ * BouncyCastle TLS implementation
+ * Copyright (C) 2016  super-horst
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation; either version 3 of the 
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ *
+ */
+package bc.tls.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+/**
+ * Shared randomness for many connections. Spreads callers across a fixed
+ * number of independently seeded DRBG instances by thread and replaces each
+ * instance with a freshly seeded one after the reseed interval, so that
+ * sockets neither seed a generator of their own nor contend on a single one.
+ * <p>
+ * By default the stripes are SP 800-90A Hash DRBGs over SHA-256, seeded from
+ * the platform's non-blocking random source. Any JCA algorithm may be used
+ * instead.
+ *
+ * @author super-horst
+ *
+ */
+public class SecureRandomPool extends SecureRandom {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default interval in milliseconds after which a stripe is reseeded
+	 */
+	public static final long DEFAULT_RESEED_INTERVAL = 60000;
+
+	private static final int SEED_LENGTH = 32;
+
+	private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+	private static volatile SecureRandomPool defaultPool;
+
+	/**
+	 * Entropy from the platform's non-blocking source
+	 */
+	private static final EntropySourceProvider ENTROPY = new EntropySourceProvider() {
+		@Override
+		public EntropySource get(final int bitsRequired) {
+			return new EntropySource() {
+				@Override
+				public boolean isPredictionResistant() {
+					return false;
+				}
+
+				@Override
+				public byte[] getEntropy() {
+					byte[] entropy = new byte[(bitsRequired + 7) / 8];
+					SEED_SOURCE.nextBytes(entropy);
+					return entropy;
+				}
+
+				@Override
+				public int entropySize() {
+					return bitsRequired;
+				}
+			};
+		}
+	};
+
+	private final PoolSpi spi;
+
+	/**
+	 * Hash DRBG stripes, one per available processor
+	 */
+	public SecureRandomPool() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_RESEED_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hash DRBG stripes
+	 *
+	 * @param stripes
+	 *            number of independent generators, rounded up to a power of
+	 *            two
+	 * @param reseedInterval
+	 *            time after which a generator is reseeded
+	 * @param unit
+	 *            unit of the interval
+	 */
+	public SecureRandomPool(int stripes, long reseedInterval, TimeUnit unit) {
+		this(new PoolSpi(null, null, stripes, unit.toMillis(reseedInterval)));
+	}
+
+	/**
+	 * JCA stripes
+	 *
+	 * @param algorithm
+	 *            the random algorithm, e.g. {@code DRBG} or {@code SHA1PRNG},
+	 *            {@code null} for the Hash DRBG
+	 * @param provider
+	 *            the provider, {@code null} for the preferred one
+	 * @param stripes
+	 *            number of independent generators, rounded up to a power of
+	 *            two
+	 * @param reseedInterval
+	 *            time after which a generator is reseeded
+	 * @param unit
+	 *            unit of the interval
+	 * @throws NoSuchAlgorithmException
+	 *             if the algorithm is not available
+	 */
+	public SecureRandomPool(String algorithm, Provider provider, int stripes, long reseedInterval, TimeUnit unit)
+			throws NoSuchAlgorithmException {
+		this(PoolSpi.checked(algorithm, provider, stripes, unit.toMillis(reseedInterval)));
+	}
+
+	private SecureRandomPool(PoolSpi spi) {
+		super(spi, null);
+		this.spi = spi;
+	}
+
+	/**
+	 * @return a pool shared by all users of the default configuration
+	 */
+	public static SecureRandomPool getDefault() {
+		SecureRandomPool pool = defaultPool;
+		if (pool == null) {
+			synchronized (SecureRandomPool.class) {
+				pool = defaultPool;
+				if (pool == null) {
+					pool = new SecureRandomPool();
+					defaultPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	@Override
+	public void nextBytes(byte[] bytes) {
+		// bypasses the synchronisation of the wrapper, the stripes are
+		// thread safe
+		this.spi.engineNextBytes(bytes);
+	}
+
+	@Override
+	public byte[] generateSeed(int numBytes) {
+		return this.spi.engineGenerateSeed(numBytes);
+	}
+
+	@Override
+	public String getAlgorithm() {
+		return this.spi.algorithm == null ? "HashDRBG-SHA256" : this.spi.algorithm;
+	}
+
+	/**
+	 * @return number of stripes
+	 */
+	public int getStripeCount() {
+		return this.spi.stripes.length();
+	}
+
+	/**
+	 * @return number of generators seeded so far, including the initial ones
+	 */
+	public long getSeedCount() {
+		return this.spi.seeded.get();
+	}
+
+	private static final class PoolSpi extends SecureRandomSpi {
+
+		private static final long serialVersionUID = 1L;
+
+		final String algorithm;
+		private final Provider provider;
+		private final long reseedMillis;
+		final AtomicReferenceArray<Stripe> stripes;
+		private final int mask;
+		final AtomicLong seeded = new AtomicLong();
+
+		PoolSpi(String algorithm, Provider provider, int stripes, long reseedMillis) {
+			if (stripes <= 0 || reseedMillis <= 0) {
+				throw new IllegalArgumentException(
+						String.format("Invalid pool dimensions: stripes %d, reseed %d", stripes, reseedMillis));
+			}
+			this.algorithm = algorithm;
+			this.provider = provider;
+			this.reseedMillis = reseedMillis;
+
+			int size = Integer.highestOneBit(stripes);
+			if (size < stripes) {
+				size <<= 1;
+			}
+			this.stripes = new AtomicReferenceArray<Stripe>(size);
+			this.mask = size - 1;
+		}
+
+		static PoolSpi checked(String algorithm, Provider provider, int stripes, long reseedMillis)
+				throws NoSuchAlgorithmException {
+			PoolSpi spi = new PoolSpi(algorithm, provider, stripes, reseedMillis);
+			if (algorithm != null) {
+				// fail now rather than on the first handshake
+				spi.stripes.set(0, new Stripe(spi.create(), System.currentTimeMillis() + reseedMillis));
+			}
+			return spi;
+		}
+
+		@Override
+		protected void engineSetSeed(byte[] seed) {
+			stripe().random.setSeed(seed);
+		}
+
+		@Override
+		protected void engineNextBytes(byte[] bytes) {
+			stripe().random.nextBytes(bytes);
+		}
+
+		@Override
+		protected byte[] engineGenerateSeed(int numBytes) {
+			byte[] seed = new byte[numBytes];
+			SEED_SOURCE.nextBytes(seed);
+			return seed;
+		}
+
+		private Stripe stripe() {
+			int index = (int) (Thread.currentThread().getId() & this.mask);
+			long now = System.currentTimeMillis();
+			Stripe stripe = this.stripes.get(index);
+			if (stripe == null) {
+				synchronized (this) {
+					stripe = this.stripes.get(index);
+					if (stripe == null) {
+						stripe = new Stripe(createChecked(), now + this.reseedMillis);
+						this.stripes.set(index, stripe);
+					}
+				}
+			}
+
+			long reseedAt = stripe.reseedAt.get();
+			if (now >= reseedAt && stripe.reseedAt.compareAndSet(reseedAt, now + this.reseedMillis)) {
+				// callers racing the reseed keep using the old generator
+				stripe.random = createChecked();
+			}
+			return stripe;
+		}
+
+		private SecureRandom createChecked() {
+			try {
+				return create();
+			} catch (NoSuchAlgorithmException e) {
+				// checked on construction
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private SecureRandom create() throws NoSuchAlgorithmException {
+			this.seeded.incrementAndGet();
+			if (this.algorithm == null) {
+				byte[] nonce = new byte[SEED_LENGTH / 2];
+				SEED_SOURCE.nextBytes(nonce);
+				return new SP800SecureRandomBuilder(ENTROPY).buildHash(new SHA256Digest(), nonce, false);
+			}
+
+			SecureRandom random = this.provider == null ? SecureRandom.getInstance(this.algorithm)
+					: SecureRandom.getInstance(this.algorithm, this.provider);
+			byte[] seed = new byte[SEED_LENGTH];
+			SEED_SOURCE.nextBytes(seed);
+			random.setSeed(seed);
+			return random;
+		}
+	}
+
+	private static final class Stripe {
+
+		volatile SecureRandom random;
+		final AtomicLong reseedAt;
+
+		Stripe(SecureRandom random, long reseedAt) {
+			this.random = random;
+			this.reseedAt = new AtomicLong(reseedAt);
+		}
+	}
+}
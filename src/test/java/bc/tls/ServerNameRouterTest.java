@@ -0,0 +1,160 @@
+package bc.tls;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.socket.BcTlsServerSocket;
+import bc.tls.socket.BcTlsSocket;
+import bc.tls.socket.BcTlsSocketFactory;
+
+public class ServerNameRouterTest {
+
+	/**
+	 * Counts the handshakes it has been selected for
+	 */
+	private static class TenantPrototype extends TestSecurityPrototype {
+
+		private final AtomicInteger handshakes = new AtomicInteger();
+
+		@Override
+		public void initialise(int cipherSuite) throws IOException {
+			super.initialise(cipherSuite);
+			this.handshakes.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void exactTest() {
+		TenantPrototype a = new TenantPrototype();
+		TenantPrototype b = new TenantPrototype();
+		Map<String, BcSecurityPrototype> routes = new HashMap<String, BcSecurityPrototype>();
+		routes.put("a.example", a);
+		routes.put("B.example.", b);
+		ServerNameRouter router = new ServerNameRouter(routes);
+
+		Assert.assertEquals(2, router.size());
+		Assert.assertSame(a, router.select("a.example"));
+		Assert.assertSame(a, router.select("A.Example"));
+		Assert.assertSame(b, router.select("b.example"));
+		Assert.assertNull(router.select("c.example"));
+		Assert.assertNull(router.select("example"));
+		Assert.assertNull(router.select(""));
+		Assert.assertNull(router.select(null));
+	}
+
+	@Test
+	public void wildcardTest() {
+		TenantPrototype wildcard = new TenantPrototype();
+		TenantPrototype exact = new TenantPrototype();
+		TenantPrototype nested = new TenantPrototype();
+		Map<String, BcSecurityPrototype> routes = new HashMap<String, BcSecurityPrototype>();
+		routes.put("*.example.com", wildcard);
+		routes.put("www.example.com", exact);
+		routes.put("*.eu.example.com", nested);
+		ServerNameRouter router = new ServerNameRouter(routes);
+
+		Assert.assertSame(wildcard, router.select("shop.example.com"));
+		Assert.assertSame(exact, router.select("www.example.com"));
+		Assert.assertSame(nested, router.select("shop.eu.example.com"));
+		// a wildcard stands for exactly one label
+		Assert.assertNull(router.select("example.com"));
+		Assert.assertNull(router.select("a.shop.example.com"));
+		Assert.assertNull(router.select(".example.com"));
+		Assert.assertNull(router.select("shop.example.org"));
+	}
+
+	@Test
+	public void manyTenantsTest() {
+		Map<String, BcSecurityPrototype> routes = new HashMap<String, BcSecurityPrototype>();
+		TenantPrototype[] tenants = new TenantPrototype[5000];
+		for (int i = 0; i < tenants.length; i++) {
+			tenants[i] = new TenantPrototype();
+			routes.put(i % 2 == 0 ? "host" + i + ".example.com" : "*.tenant" + i + ".example.com", tenants[i]);
+		}
+		ServerNameRouter router = new ServerNameRouter(routes);
+
+		Assert.assertEquals(tenants.length, router.size());
+		for (int i = 0; i < tenants.length; i++) {
+			String name = i % 2 == 0 ? "host" + i + ".example.com" : "api.tenant" + i + ".example.com";
+			Assert.assertSame(tenants[i], router.select(name));
+		}
+	}
+
+	@Test
+	public void updateTest() {
+		TenantPrototype before = new TenantPrototype();
+		TenantPrototype after = new TenantPrototype();
+		ServerNameRouter router = new ServerNameRouter(
+				Collections.<String, BcSecurityPrototype> singletonMap("a.example", before));
+		Assert.assertSame(before, router.select("a.example"));
+
+		router.update(Collections.<String, BcSecurityPrototype> singletonMap("*.example", after));
+		Assert.assertSame(after, router.select("a.example"));
+		Assert.assertEquals(1, router.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidWildcardTest() {
+		new ServerNameRouter(Collections.<String, BcSecurityPrototype> singletonMap("a.*.example",
+				new TenantPrototype()));
+	}
+
+	@Test(timeout = 10000)
+	public void handshakeTest() throws IOException {
+		TenantPrototype fallback = new TenantPrototype();
+		TenantPrototype tenant = new TenantPrototype();
+		final BcTlsServerSocket serverSocket = new BcTlsServerSocket(0, fallback);
+		serverSocket.setServerNameRouter(new ServerNameRouter(
+				Collections.<String, BcSecurityPrototype> singletonMap("*.tenant.example", tenant)));
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 2; i++) {
+						try (Socket s = serverSocket.accept()) {
+							s.getOutputStream().write(s.getInputStream().read());
+							s.getOutputStream().flush();
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		byte[] loopback = new byte[] { 127, 0, 0, 1 };
+		BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+		try {
+			roundTrip(factory.createSocket(InetAddress.getByAddress("api.tenant.example", loopback),
+					serverSocket.getLocalPort()));
+			Assert.assertEquals(1, tenant.handshakes.get());
+			Assert.assertEquals(0, fallback.handshakes.get());
+
+			roundTrip(factory.createSocket(InetAddress.getByAddress("other.example", loopback),
+					serverSocket.getLocalPort()));
+			Assert.assertEquals(1, tenant.handshakes.get());
+			Assert.assertEquals(1, fallback.handshakes.get());
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	private static void roundTrip(BcTlsSocket socket) throws IOException {
+		try (BcTlsSocket s = socket) {
+			s.getOutputStream().write(7);
+			s.getOutputStream().flush();
+			Assert.assertEquals(7, s.getInputStream().read());
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package bc.tls;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.bouncycastle.crypto.CryptoException;
+import org.bouncycastle.crypto.encodings.PKCS1Encoding;
+import org.bouncycastle.crypto.engines.RSABlindedEngine;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithRandom;
+import org.bouncycastle.crypto.tls.Certificate;
+import org.bouncycastle.crypto.tls.CertificateRequest;
+import org.bouncycastle.crypto.tls.HashAlgorithm;
+import org.bouncycastle.crypto.tls.SignatureAlgorithm;
+import org.bouncycastle.crypto.tls.SignatureAndHashAlgorithm;
+import org.bouncycastle.crypto.tls.TlsAuthentication;
+import org.bouncycastle.crypto.tls.TlsCredentials;
+import org.bouncycastle.crypto.tls.TlsSignerCredentials;
+import org.bouncycastle.crypto.util.PrivateKeyFactory;
+import org.bouncycastle.openssl.PEMParser;
+
+import bc.tls.socket.BcTlsAuthentication;
+
+/**
+ * Test prototype serving a single RSA certificate from the test resources
+ * with ECDHE_RSA suites. Client side trust is naive.
+ */
+public class TestSecurityPrototype implements BcSecurityPrototype {
+
+	private static final String RESOURCES = "src/test/resources/simpleChains/certs/";
+
+	public static final String[] SUITES = CipherSuite.convert(new CipherSuite[] {
+			CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,
+			CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256 });
+
+	private static Certificate certificate;
+	private static AsymmetricKeyParameter privateKey;
+
+	private final String[] suites;
+
+	public TestSecurityPrototype() {
+		this(SUITES);
+	}
+
+	public TestSecurityPrototype(String[] suites) {
+		this.suites = suites.clone();
+	}
+
+	private static synchronized void loadCredentials() throws IOException {
+		if (certificate != null) {
+			return;
+		}
+		try (PEMParser certParser = new PEMParser(new FileReader(new File(RESOURCES + "certSub1A1.pem")));
+				PEMParser keyParser = new PEMParser(new FileReader(new File(RESOURCES + "certSub1A1.key")))) {
+			org.bouncycastle.asn1.x509.Certificate cert = org.bouncycastle.asn1.x509.Certificate
+					.getInstance(((org.bouncycastle.cert.X509CertificateHolder) certParser.readObject()).getEncoded());
+			certificate = new Certificate(new org.bouncycastle.asn1.x509.Certificate[] { cert });
+			privateKey = PrivateKeyFactory.createKey((PrivateKeyInfo) keyParser.readObject());
+		}
+	}
+
+	@Override
+	public String[] getCipherSuites() {
+		return this.suites.clone();
+	}
+
+	@Override
+	public SecureRandom makeRandom() {
+		return new SecureRandom();
+	}
+
+	@Override
+	public void initialise(int cipherSuite) throws IOException {
+		loadCredentials();
+	}
+
+	@Override
+	public TlsAuthentication makeAuthentication() {
+		return new BcTlsAuthentication();
+	}
+
+	@Override
+	public TlsSignerCredentials makeSignerCredentials() {
+		return new TlsSignerCredentials() {
+
+			@Override
+			public Certificate getCertificate() {
+				return certificate;
+			}
+
+			@Override
+			public SignatureAndHashAlgorithm getSignatureAndHashAlgorithm() {
+				return new SignatureAndHashAlgorithm(HashAlgorithm.sha256, SignatureAlgorithm.rsa);
+			}
+
+			@Override
+			public byte[] generateCertificateSignature(byte[] hash) throws IOException {
+				byte[] digestInfo = new DigestInfo(
+						new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256, DERNull.INSTANCE), hash)
+								.getEncoded(ASN1Encoding.DER);
+				PKCS1Encoding rsa = new PKCS1Encoding(new RSABlindedEngine());
+				rsa.init(true, new ParametersWithRandom(privateKey, new SecureRandom()));
+				try {
+					return rsa.processBlock(digestInfo, 0, digestInfo.length);
+				} catch (Exception e) {
+					throw new IOException(new CryptoException("Unable to sign", e));
+				}
+			}
+		};
+	}
+
+	@Override
+	public TlsCredentials makeCredentials() {
+		return makeSignerCredentials();
+	}
+
+	@Override
+	public CertificateRequest makeCertificateRequest() {
+		return null;
+	}
+}
@@ -0,0 +1,89 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+
+/**
+ * Run with {@code mvn test -Pbenchmark}
+ */
+public class AcceptBacklogBenchmark {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("AcceptBacklogBenchmark");
+
+	/**
+	 * Opens a burst of connections to a server that does not accept yet and
+	 * counts the ones completing the TCP handshake, the rest had their SYN
+	 * dropped for a full accept queue.
+	 */
+	private static int burst(int backlog, int connections) throws Exception {
+		BcTlsServerSocketFactory factory = new BcTlsServerSocketFactory(new TestSecurityPrototype());
+		final InetAddress loopback = InetAddress.getLoopbackAddress();
+		ExecutorService executor = Executors.newFixedThreadPool(connections);
+		List<Socket> sockets = new ArrayList<Socket>();
+		try (BcTlsServerSocket server = factory.createServerSocket(0, backlog, loopback)) {
+			final int port = server.getLocalPort();
+			List<Future<Socket>> attempts = new ArrayList<Future<Socket>>();
+			for (int i = 0; i < connections; i++) {
+				attempts.add(executor.submit(new Callable<Socket>() {
+					@Override
+					public Socket call() {
+						Socket s = new Socket();
+						try {
+							s.connect(new InetSocketAddress(loopback, port), 500);
+							return s;
+						} catch (IOException e) {
+							try {
+								s.close();
+							} catch (IOException ignored) {
+								// nothing to do
+							}
+							return null;
+						}
+					}
+				}));
+			}
+			int connected = 0;
+			for (Future<Socket> attempt : attempts) {
+				Socket s = attempt.get(10, TimeUnit.SECONDS);
+				if (s != null) {
+					sockets.add(s);
+					connected++;
+				}
+			}
+			return connected;
+		} finally {
+			for (Socket s : sockets) {
+				s.close();
+			}
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * The outcome depends on the platform, the kernel caps the backlog at
+	 * {@code somaxconn} for instance, so it is reported only
+	 */
+	@Test(timeout = 60000)
+	public void burstAcceptBenchmark() throws Exception {
+		int connections = 200;
+		int small = burst(4, connections);
+		int large = burst(1024, connections);
+		LOG.info(String.format("Connections established out of %d: backlog 4 %d, backlog 1024 %d", connections,
+				small, large));
+	}
+}
@@ -0,0 +1,189 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bc.tls.CipherSuite;
+import bc.tls.TestSecurityPrototype;
+
+public class AsyncHandshakeTest {
+
+	private static final String POOL_THREAD = "handshake-pool";
+
+	private ExecutorService executor;
+
+	@Before
+	public void prepare() {
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, POOL_THREAD);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@After
+	public void cleanup() {
+		this.executor.shutdownNow();
+	}
+
+	@Test(timeout = 10000)
+	public void clientHandshakeTest() throws Exception {
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				final AtomicReference<String> listenerThread = new AtomicReference<String>();
+				final CountDownLatch notified = new CountDownLatch(1);
+				socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+					@Override
+					public void handshakeCompleted(HandshakeCompletedEvent event) {
+						listenerThread.set(Thread.currentThread().getName());
+						notified.countDown();
+					}
+				});
+
+				CompletableFuture<SSLSession> future = socket.startHandshakeAsync(this.executor);
+				SSLSession session = future.get(5, TimeUnit.SECONDS);
+
+				Assert.assertEquals(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256.name(), session.getCipherSuite());
+				Assert.assertSame(session, socket.getSession());
+				Assert.assertTrue(notified.await(5, TimeUnit.SECONDS));
+				Assert.assertEquals(POOL_THREAD, listenerThread.get());
+
+				// a second handshake request is a no-op
+				socket.startHandshake();
+				Assert.assertSame(session, socket.getSession());
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void failedHandshakeTest() throws Exception {
+		// plain tcp server never answering the client hello
+		try (java.net.ServerSocket silent = new java.net.ServerSocket(0)) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			BcTlsSocket socket = factory.createSocket("localhost", silent.getLocalPort());
+			CompletableFuture<SSLSession> future = socket.startHandshakeAsync(this.executor);
+
+			Socket accepted = silent.accept();
+			accepted.close();
+
+			try {
+				future.get(5, TimeUnit.SECONDS);
+				Assert.fail("Handshake must not succeed");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof IOException);
+			}
+			socket.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void deferredServerHandshakeTest() throws Exception {
+		final BcTlsServerSocket serverSocket = new BcTlsServerSocket(0, new TestSecurityPrototype());
+		serverSocket.setHandshakeExecutor(this.executor);
+
+		final CountDownLatch serverNotified = new CountDownLatch(1);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// the first client never sends a client hello
+					Socket stalled = serverSocket.accept();
+					Assert.assertFalse(stalled.isConnected());
+
+					final Socket socket = serverSocket.accept();
+					((BcTlsSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+						@Override
+						public void handshakeCompleted(HandshakeCompletedEvent event) {
+							serverNotified.countDown();
+						}
+					});
+					InputStream in = socket.getInputStream();
+					OutputStream out = socket.getOutputStream();
+					out.write(in.read());
+					out.flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		try (Socket stalled = new Socket("localhost", serverSocket.getLocalPort())) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", serverSocket.getLocalPort())) {
+				socket.getOutputStream().write(42);
+				socket.getOutputStream().flush();
+				Assert.assertEquals(42, socket.getInputStream().read());
+			}
+			Assert.assertTrue(serverNotified.await(5, TimeUnit.SECONDS));
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	@Test(expected = TimeoutException.class, timeout = 10000)
+	public void pendingHandshakeTest() throws Exception {
+		try (java.net.ServerSocket silent = new java.net.ServerSocket(0)) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", silent.getLocalPort())) {
+				socket.startHandshakeAsync(this.executor).get(200, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void rejectedHandshakeTest() throws Exception {
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				Executor rejecting = new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						throw new RejectedExecutionException("saturated");
+					}
+				};
+				try {
+					socket.startHandshakeAsync(rejecting);
+					Assert.fail("Handshake accepted");
+				} catch (IOException e) {
+					Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+				}
+				Assert.assertTrue(socket.isClosed());
+				try {
+					socket.startHandshake();
+					Assert.fail("Handshake performed");
+				} catch (SSLHandshakeException e) {
+					// the failure was recorded
+				}
+			}
+		}
+	}
+}
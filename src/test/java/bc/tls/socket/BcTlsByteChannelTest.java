@@ -0,0 +1,102 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class BcTlsByteChannelTest {
+
+	private EchoServer server;
+	private BcTlsSocket socket;
+
+	@Before
+	public void prepare() throws IOException {
+		this.server = new EchoServer();
+		BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+		this.socket = factory.createSocket("localhost", this.server.getPort());
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		this.socket.close();
+		this.server.close();
+	}
+
+	private static void readFully(BcTlsByteChannel channel, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			if (channel.read(dst) < 0) {
+				Assert.fail("Unexpected end of stream");
+			}
+		}
+	}
+
+	@Test
+	public void heapBufferTest() throws IOException {
+		BcTlsByteChannel channel = this.socket.getByteChannel();
+		Assert.assertSame(channel, this.socket.getByteChannel());
+
+		byte[] message = "heap buffered".getBytes(StandardCharsets.UTF_8);
+		Assert.assertEquals(message.length, channel.write(ByteBuffer.wrap(message)));
+
+		ByteBuffer dst = ByteBuffer.allocate(message.length);
+		readFully(channel, dst);
+		Assert.assertArrayEquals(message, dst.array());
+	}
+
+	@Test
+	public void directBufferTest() throws IOException {
+		BcTlsByteChannel channel = this.socket.getByteChannel();
+
+		byte[] message = new byte[40000];
+		for (int i = 0; i < message.length; i++) {
+			message[i] = (byte) i;
+		}
+		ByteBuffer src = ByteBuffer.allocateDirect(message.length);
+		src.put(message).flip();
+		Assert.assertEquals(message.length, channel.write(src));
+		Assert.assertFalse(src.hasRemaining());
+
+		ByteBuffer dst = ByteBuffer.allocateDirect(message.length);
+		readFully(channel, dst);
+		dst.flip();
+		byte[] received = new byte[message.length];
+		dst.get(received);
+		Assert.assertArrayEquals(message, received);
+	}
+
+	@Test
+	public void gatheringScatteringTest() throws IOException {
+		BcTlsByteChannel channel = this.socket.getByteChannel();
+
+		ByteBuffer[] srcs = new ByteBuffer[] {
+				ByteBuffer.wrap("header|".getBytes(StandardCharsets.UTF_8)),
+				ByteBuffer.wrap("body|".getBytes(StandardCharsets.UTF_8)),
+				ByteBuffer.wrap("trailer".getBytes(StandardCharsets.UTF_8)) };
+		Assert.assertEquals(19, channel.write(srcs));
+
+		ByteBuffer first = ByteBuffer.allocate(7);
+		ByteBuffer second = ByteBuffer.allocate(12);
+		long total = 0;
+		while (total < 19) {
+			total += channel.read(new ByteBuffer[] { first, second });
+		}
+		Assert.assertEquals("header|", new String(first.array(), StandardCharsets.UTF_8));
+		Assert.assertEquals("body|trailer", new String(second.array(), StandardCharsets.UTF_8));
+	}
+
+	@Test(expected = ClosedChannelException.class)
+	public void closedChannelTest() throws IOException {
+		BcTlsByteChannel channel = this.socket.getByteChannel();
+		channel.close();
+		Assert.assertFalse(channel.isOpen());
+		channel.read(ByteBuffer.allocate(1));
+	}
+}
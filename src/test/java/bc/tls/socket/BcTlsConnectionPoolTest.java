@@ -0,0 +1,258 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class BcTlsConnectionPoolTest {
+
+	private BcTlsSocketFactory factory;
+
+	private ExecutorService executor;
+
+	@Before
+	public void prepare() {
+		this.factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+		this.executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void cleanup() {
+		this.executor.shutdownNow();
+	}
+
+	private static void echo(BcTlsSocket socket, int value) throws IOException {
+		socket.getOutputStream().write(value);
+		socket.getOutputStream().flush();
+		Assert.assertEquals(value, socket.getInputStream().read());
+	}
+
+	@Test(timeout = 20000)
+	public void reuseTest() throws Exception {
+		try (EchoServer server = new EchoServer();
+				BcTlsConnectionPool pool = new BcTlsConnectionPool(this.factory)) {
+			pool.setValidateAfter(0, TimeUnit.MILLISECONDS);
+			BcTlsSocket first = pool.acquire("localhost", server.getPort());
+			Assert.assertTrue(first.isConnected());
+			echo(first, 1);
+			pool.release(first);
+			Assert.assertEquals(1, pool.getIdleCount());
+
+			BcTlsSocket second = pool.acquire("localhost", server.getPort());
+			Assert.assertSame(first, second);
+			echo(second, 2);
+			pool.release(second);
+
+			// another prototype does not share connections
+			BcTlsSocket other = pool.acquire("localhost", server.getPort(), new TestSecurityPrototype());
+			Assert.assertNotSame(first, other);
+			pool.release(other);
+
+			Assert.assertEquals(2, pool.getCreatedCount());
+			Assert.assertEquals(1, pool.getReusedCount());
+			Assert.assertEquals(0, pool.getLeasedCount());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void lifoTest() throws Exception {
+		try (EchoServer server = new EchoServer();
+				BcTlsConnectionPool pool = new BcTlsConnectionPool(this.factory, 2, 8, 1, TimeUnit.MINUTES)) {
+			BcTlsSocket first = pool.acquire("localhost", server.getPort());
+			BcTlsSocket second = pool.acquire("localhost", server.getPort());
+			BcTlsSocket third = pool.acquire("localhost", server.getPort());
+			pool.release(first);
+			pool.release(second);
+			// over the idle limit of the key
+			pool.release(third);
+			Assert.assertTrue(third.isClosed());
+			Assert.assertEquals(2, pool.getIdleCount());
+
+			Assert.assertSame(second, pool.acquire("localhost", server.getPort()));
+			Assert.assertSame(first, pool.acquire("localhost", server.getPort()));
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void maxTotalTest() throws Exception {
+		this.factory.setDefaultTimeout(200L, TimeUnit.MILLISECONDS);
+		try (EchoServer server = new EchoServer();
+				BcTlsConnectionPool pool = new BcTlsConnectionPool(this.factory, 4, 1, 1, TimeUnit.MINUTES)) {
+			BcTlsSocket socket = pool.acquire("localhost", server.getPort());
+			try {
+				pool.acquire("localhost", server.getPort());
+				Assert.fail("Pool not exhausted");
+			} catch (IOException e) {
+				// expected
+			}
+
+			// idle sockets of other peers make room
+			pool.release(socket);
+			BcTlsSocket other = pool.acquire("127.0.0.1", server.getPort());
+			Assert.assertTrue(socket.isClosed());
+			Assert.assertEquals(1, pool.getEvictionCount());
+			pool.invalidate(other);
+			Assert.assertTrue(other.isClosed());
+			Assert.assertEquals(0, pool.getLeasedCount());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void idleEvictionTest() throws Exception {
+		try (EchoServer server = new EchoServer();
+				BcTlsConnectionPool pool = new BcTlsConnectionPool(this.factory, 4, 8, 50, TimeUnit.MILLISECONDS)) {
+			BcTlsSocket socket = pool.acquire("localhost", server.getPort());
+			pool.release(socket);
+			for (int i = 0; i < 100 && !socket.isClosed(); i++) {
+				Thread.sleep(20);
+			}
+			Assert.assertEquals(0, pool.getIdleCount());
+			Assert.assertEquals(1, pool.getEvictionCount());
+			Assert.assertTrue(socket.isClosed());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void staleTest() throws Exception {
+		final CountDownLatch released = new CountDownLatch(1);
+		try (final BcTlsServerSocket serverSocket = new BcTlsServerSocket(0, new TestSecurityPrototype());
+				BcTlsConnectionPool pool = new BcTlsConnectionPool(this.factory)) {
+			Future<Void> closed = this.executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try (Socket socket = serverSocket.accept()) {
+						socket.getOutputStream().write(socket.getInputStream().read());
+						socket.getOutputStream().flush();
+						released.await();
+					}
+					return null;
+				}
+			});
+
+			BcTlsSocket socket = pool.acquire("localhost", serverSocket.getLocalPort());
+			echo(socket, 7);
+			pool.release(socket);
+			// the peer closes the idle connection
+			released.countDown();
+			closed.get(5, TimeUnit.SECONDS);
+			Thread.sleep(100);
+
+			this.executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try (Socket socket = serverSocket.accept()) {
+						socket.getOutputStream().write(socket.getInputStream().read());
+						socket.getOutputStream().flush();
+					}
+					return null;
+				}
+			});
+			BcTlsSocket fresh = pool.acquire("localhost", serverSocket.getLocalPort());
+			Assert.assertNotSame(socket, fresh);
+			Assert.assertTrue(socket.isClosed());
+			Assert.assertEquals(1, pool.getStaleCount());
+			echo(fresh, 8);
+		}
+	}
+
+	private static void awaitIdle(BcTlsConnectionPool pool, int count) throws InterruptedException {
+		for (int i = 0; i < 250 && pool.getIdleCount() != count; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(count, pool.getIdleCount());
+	}
+
+	@Test(timeout = 20000)
+	public void prewarmTest() throws Exception {
+		try (EchoServer server = new EchoServer();
+				BcTlsConnectionPool pool = new BcTlsConnectionPool(this.factory)) {
+			pool.prewarm("localhost", server.getPort(), 2);
+			awaitIdle(pool, 2);
+			Assert.assertEquals(2, pool.getWarmedCount());
+
+			// handed out without handshake, then replaced in the background
+			BcTlsSocket socket = pool.acquire("localhost", server.getPort());
+			Assert.assertEquals(1, pool.getReusedCount());
+			echo(socket, 3);
+			awaitIdle(pool, 2);
+			Assert.assertEquals(3, pool.getCreatedCount());
+
+			pool.release(socket);
+			Assert.assertEquals(3, pool.getIdleCount());
+
+			// no longer replaced
+			pool.prewarm("localhost", server.getPort(), 0);
+			pool.acquire("localhost", server.getPort());
+			pool.acquire("localhost", server.getPort());
+			Thread.sleep(100);
+			Assert.assertEquals(1, pool.getIdleCount());
+			Assert.assertEquals(3, pool.getCreatedCount());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void prewarmBackoffTest() throws Exception {
+		int port;
+		try (ServerSocket unused = new ServerSocket(0)) {
+			port = unused.getLocalPort();
+		}
+		try (BcTlsConnectionPool pool = new BcTlsConnectionPool(this.factory)) {
+			pool.prewarm("localhost", port, 1);
+			Thread.sleep(500);
+			// 50 + 100 + 200 ms at least until the fourth retry
+			long failures = pool.getWarmFailureCount();
+			Assert.assertTrue(failures >= 2);
+			Assert.assertTrue(failures <= 5);
+			Assert.assertEquals(0, pool.getIdleCount());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void prewarmStalledEndpointTest() throws Exception {
+		// accepts but never answers the handshake
+		try (ServerSocket stalled = new ServerSocket(0);
+				EchoServer server = new EchoServer();
+				BcTlsConnectionPool pool = new BcTlsConnectionPool(this.factory)) {
+			pool.setPrewarmTimeout(300, TimeUnit.MILLISECONDS);
+			pool.prewarm("localhost", stalled.getLocalPort(), 1);
+			pool.prewarm("localhost", server.getPort(), 2);
+			awaitIdle(pool, 2);
+			for (int i = 0; i < 100 && pool.getWarmFailureCount() == 0; i++) {
+				Thread.sleep(20);
+			}
+			Assert.assertTrue(pool.getWarmFailureCount() > 0);
+			Assert.assertEquals(2, pool.getIdleCount());
+		}
+	}
+
+	@Test
+	public void backoffTest() {
+		for (int failures = 1; failures < 40; failures++) {
+			long max = Math.min(BcTlsConnectionPool.PREWARM_BACKOFF_MIN << Math.min(failures - 1, 20),
+					BcTlsConnectionPool.PREWARM_BACKOFF_MAX);
+			long delay = BcTlsConnectionPool.backoff(failures);
+			Assert.assertTrue(delay >= max / 2);
+			Assert.assertTrue(delay <= max);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void foreignSocketTest() throws Exception {
+		try (BcTlsConnectionPool pool = new BcTlsConnectionPool(this.factory)) {
+			pool.release(new BcTlsSocket(new Socket(), true, new TestSecurityPrototype()));
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package bc.tls.socket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bc.tls.CipherSuite;
+import bc.tls.TestSecurityPrototype;
+
+public class BcTlsEngineTest {
+
+	private BcTlsEngine client;
+	private BcTlsEngine server;
+
+	private ByteBuffer clientToServer;
+	private ByteBuffer serverToClient;
+
+	@Before
+	public void prepare() {
+		this.client = new BcTlsEngine(new TestSecurityPrototype(), "localhost", 443);
+		this.client.setUseClientMode(true);
+		this.server = new BcTlsEngine(new TestSecurityPrototype());
+		this.server.setUseClientMode(false);
+
+		int packetSize = this.client.getSession().getPacketBufferSize();
+		this.clientToServer = ByteBuffer.allocate(4 * packetSize);
+		this.serverToClient = ByteBuffer.allocate(4 * packetSize);
+	}
+
+	/**
+	 * Drive both engines until neither of them has handshake work left
+	 */
+	private void handshake() throws SSLException {
+		ByteBuffer empty = ByteBuffer.allocate(0);
+		ByteBuffer appIn = ByteBuffer.allocate(this.client.getSession().getApplicationBufferSize());
+
+		this.client.beginHandshake();
+		this.server.beginHandshake();
+
+		boolean clientFinished = false;
+		boolean serverFinished = false;
+		for (int i = 0; i < 100 && !(clientFinished && serverFinished); i++) {
+			clientFinished |= step(this.client, empty, appIn, this.clientToServer, this.serverToClient);
+			serverFinished |= step(this.server, empty, appIn, this.serverToClient, this.clientToServer);
+		}
+
+		Assert.assertTrue("Client handshake did not finish", clientFinished);
+		Assert.assertTrue("Server handshake did not finish", serverFinished);
+		Assert.assertEquals(HandshakeStatus.NOT_HANDSHAKING, this.client.getHandshakeStatus());
+		Assert.assertEquals(HandshakeStatus.NOT_HANDSHAKING, this.server.getHandshakeStatus());
+	}
+
+	private static boolean step(SSLEngine engine, ByteBuffer empty, ByteBuffer appIn, ByteBuffer out,
+			ByteBuffer in) throws SSLException {
+		boolean finished = false;
+		while (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+			finished |= engine.wrap(empty, out).getHandshakeStatus() == HandshakeStatus.FINISHED;
+		}
+		in.flip();
+		while (engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP) {
+			SSLEngineResult result = engine.unwrap(in, appIn);
+			finished |= result.getHandshakeStatus() == HandshakeStatus.FINISHED;
+			if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+				break;
+			}
+		}
+		in.compact();
+		return finished;
+	}
+
+	private static ByteBuffer wrap(SSLEngine engine, String message) throws SSLException {
+		ByteBuffer net = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		SSLEngineResult result = engine.wrap(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), net);
+		Assert.assertEquals(Status.OK, result.getStatus());
+		net.flip();
+		return net;
+	}
+
+	@Test
+	public void handshakeTest() throws SSLException {
+		handshake();
+
+		Assert.assertEquals(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256.name(),
+				this.client.getSession().getCipherSuite());
+		Assert.assertEquals("localhost", this.client.getSession().getPeerHost());
+	}
+
+	@Test
+	public void applicationDataTest() throws SSLException {
+		handshake();
+
+		ByteBuffer net = wrap(this.client, "ping");
+		ByteBuffer app = ByteBuffer.allocate(this.server.getSession().getApplicationBufferSize());
+		SSLEngineResult result = this.server.unwrap(net, app);
+		Assert.assertEquals(Status.OK, result.getStatus());
+		Assert.assertEquals(net.limit(), result.bytesConsumed());
+		app.flip();
+		Assert.assertEquals("ping", StandardCharsets.UTF_8.decode(app).toString());
+
+		net = wrap(this.server, "pong");
+		app.clear();
+		this.client.unwrap(net, app);
+		app.flip();
+		Assert.assertEquals("pong", StandardCharsets.UTF_8.decode(app).toString());
+	}
+
+	@Test
+	public void bufferUnderflowTest() throws SSLException {
+		handshake();
+
+		ByteBuffer net = wrap(this.client, "fragmented");
+		ByteBuffer app = ByteBuffer.allocate(this.server.getSession().getApplicationBufferSize());
+
+		ByteBuffer partial = ByteBuffer.allocate(net.remaining());
+		for (int i = 0; i < 3; i++) {
+			partial.put(net.get());
+		}
+		partial.flip();
+		Assert.assertEquals(Status.BUFFER_UNDERFLOW, this.server.unwrap(partial, app).getStatus());
+		partial.compact();
+		partial.put(net.get());
+		partial.put(net.get());
+		partial.put(net.get());
+		partial.flip();
+		Assert.assertEquals(Status.BUFFER_UNDERFLOW, this.server.unwrap(partial, app).getStatus());
+		Assert.assertEquals(0, app.position());
+
+		partial.compact();
+		partial.put(net);
+		partial.flip();
+		SSLEngineResult result = this.server.unwrap(partial, app);
+		Assert.assertEquals(Status.OK, result.getStatus());
+		app.flip();
+		Assert.assertEquals("fragmented", StandardCharsets.UTF_8.decode(app).toString());
+	}
+
+	@Test
+	public void bufferOverflowTest() throws SSLException {
+		handshake();
+
+		SSLEngineResult result = this.client.wrap(ByteBuffer.wrap(new byte[100]), ByteBuffer.allocate(50));
+		Assert.assertEquals(Status.BUFFER_OVERFLOW, result.getStatus());
+		Assert.assertEquals(0, result.bytesConsumed());
+
+		ByteBuffer net = wrap(this.client, "too long for the buffer");
+		ByteBuffer app = ByteBuffer.allocate(4);
+		result = this.server.unwrap(net, app);
+		Assert.assertEquals(Status.BUFFER_OVERFLOW, result.getStatus());
+		Assert.assertEquals(0, result.bytesConsumed());
+	}
+
+	@Test
+	public void closeTest() throws SSLException {
+		handshake();
+
+		this.client.closeOutbound();
+		Assert.assertEquals(HandshakeStatus.NEED_WRAP, this.client.getHandshakeStatus());
+		ByteBuffer net = ByteBuffer.allocate(this.client.getSession().getPacketBufferSize());
+		SSLEngineResult result = this.client.wrap(ByteBuffer.allocate(0), net);
+		Assert.assertEquals(Status.CLOSED, result.getStatus());
+		Assert.assertTrue(this.client.isOutboundDone());
+
+		net.flip();
+		ByteBuffer app = ByteBuffer.allocate(this.server.getSession().getApplicationBufferSize());
+		result = this.server.unwrap(net, app);
+		Assert.assertEquals(Status.CLOSED, result.getStatus());
+		Assert.assertTrue(this.server.isInboundDone());
+	}
+}
@@ -0,0 +1,319 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class BcTlsReactorServerTest {
+
+	/**
+	 * Echoes everything it receives
+	 */
+	private static class EchoHandler implements TlsConnectionHandler {
+
+		final AtomicInteger connected = new AtomicInteger();
+		final AtomicInteger closed = new AtomicInteger();
+		final AtomicReference<IOException> lastCause = new AtomicReference<IOException>();
+		final AtomicReference<String> connectedThread = new AtomicReference<String>();
+		final CountDownLatch firstClosed = new CountDownLatch(1);
+
+		@Override
+		public void connected(TlsConnection connection) {
+			this.connected.incrementAndGet();
+			this.connectedThread.set(Thread.currentThread().getName());
+		}
+
+		@Override
+		public void received(TlsConnection connection, ByteBuffer data) {
+			try {
+				connection.send(data);
+			} catch (ClosedChannelException e) {
+				// peer went away
+			}
+		}
+
+		@Override
+		public void closed(TlsConnection connection, IOException cause) {
+			this.lastCause.set(cause);
+			this.closed.incrementAndGet();
+			this.firstClosed.countDown();
+		}
+	}
+
+	private static BcTlsReactorServer start(EchoHandler handler, int loops) throws IOException {
+		BcTlsReactorServer server = new BcTlsReactorServer(new TestSecurityPrototype(), handler, loops);
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		return server;
+	}
+
+	private static void echo(BcTlsSocket socket, String message) throws IOException {
+		byte[] sent = message.getBytes(StandardCharsets.UTF_8);
+		OutputStream out = socket.getOutputStream();
+		out.write(sent);
+		out.flush();
+		InputStream in = socket.getInputStream();
+		byte[] received = new byte[sent.length];
+		int total = 0;
+		while (total < received.length) {
+			int read = in.read(received, total, received.length - total);
+			Assert.assertTrue("Unexpected end of stream", read >= 0);
+			total += read;
+		}
+		Assert.assertEquals(message, new String(received, StandardCharsets.UTF_8));
+	}
+
+	private static void awaitCount(AtomicInteger counter, int count) throws InterruptedException {
+		for (int i = 0; i < 250 && counter.get() < count; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(count, counter.get());
+	}
+
+	@Test(timeout = 30000)
+	public void echoTest() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		try (BcTlsReactorServer server = start(handler, 2)) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			List<BcTlsSocket> sockets = new ArrayList<BcTlsSocket>();
+			try {
+				for (int i = 0; i < 8; i++) {
+					BcTlsSocket socket = factory.createSocket("localhost", server.getLocalPort());
+					sockets.add(socket);
+					echo(socket, "hello " + i);
+				}
+				Assert.assertEquals(8, handler.connected.get());
+				Assert.assertTrue(handler.connectedThread.get().startsWith("bc-tls-reactor-"));
+				Assert.assertEquals(8, server.getConnectionCount());
+
+				// larger than a record
+				StringBuilder large = new StringBuilder();
+				while (large.length() < 50000) {
+					large.append("0123456789");
+				}
+				echo(sockets.get(0), large.toString());
+			} finally {
+				for (BcTlsSocket socket : sockets) {
+					socket.close();
+				}
+			}
+			awaitCount(handler.closed, 8);
+			Assert.assertNull(handler.lastCause.get());
+			Assert.assertEquals(0, server.getConnectionCount());
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void offloadTest() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		final AtomicInteger offloaded = new AtomicInteger();
+		final ExecutorService workers = Executors.newFixedThreadPool(2);
+		try (BcTlsReactorServer server = new BcTlsReactorServer(new TestSecurityPrototype(), handler, 1)) {
+			server.setHandshakeExecutor(new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					offloaded.incrementAndGet();
+					workers.execute(command);
+				}
+			});
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getLocalPort())) {
+				echo(socket, "offloaded");
+			}
+			Assert.assertTrue(offloaded.get() > 0);
+			// the application is still called back on the event loop
+			Assert.assertEquals("bc-tls-reactor-0", handler.connectedThread.get());
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void serverCloseTest() throws Exception {
+		final AtomicReference<TlsConnection> accepted = new AtomicReference<TlsConnection>();
+		EchoHandler handler = new EchoHandler() {
+			@Override
+			public void connected(TlsConnection connection) {
+				super.connected(connection);
+				accepted.set(connection);
+			}
+		};
+		try (BcTlsReactorServer server = start(handler, 1)) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getLocalPort())) {
+				echo(socket, "bye");
+				accepted.get().close();
+				Assert.assertEquals(-1, socket.getInputStream().read());
+			}
+			Assert.assertTrue(handler.firstClosed.await(5, TimeUnit.SECONDS));
+			Assert.assertNull(handler.lastCause.get());
+			Assert.assertFalse(accepted.get().isOpen());
+			try {
+				accepted.get().send(ByteBuffer.allocate(1));
+				Assert.fail("Sent on a closed connection");
+			} catch (ClosedChannelException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void handshakeFailureTest() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		try (BcTlsReactorServer server = start(handler, 1)) {
+			try (Socket plain = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+				// record of an unknown content type
+				plain.getOutputStream().write(new byte[] { (byte) 0x99, 3, 1, 0, 1, 0 });
+				plain.getOutputStream().flush();
+				Assert.assertTrue(handler.firstClosed.await(5, TimeUnit.SECONDS));
+			}
+			Assert.assertNotNull(handler.lastCause.get());
+			Assert.assertEquals(0, handler.connected.get());
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void idleConnectionTest() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		BcTlsServerSocketFactory serverFactory = new BcTlsServerSocketFactory(new TestSecurityPrototype());
+		serverFactory.setConfigProperty(SocketFactoryManager.KEY_REACTOR_EVENT_LOOPS, 2);
+		BcTlsReactorServer server = serverFactory.createReactorServer(handler);
+		Assert.assertEquals(2, server.getEventLoopCount());
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+
+		BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+		List<BcTlsSocket> sockets = new ArrayList<BcTlsSocket>();
+		try {
+			for (int i = 0; i < 40; i++) {
+				BcTlsSocket socket = factory.createSocket("localhost", server.getLocalPort());
+				socket.startHandshake();
+				sockets.add(socket);
+			}
+			awaitCount(handler.connected, 40);
+			Assert.assertEquals(40, server.getConnectionCount());
+		} finally {
+			server.close();
+			for (BcTlsSocket socket : sockets) {
+				socket.close();
+			}
+		}
+		// closed by the server
+		awaitCount(handler.closed, 40);
+		Assert.assertEquals(0, server.getConnectionCount());
+	}
+
+	@Test(timeout = 30000)
+	public void handshakeTimeoutTest() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		BcTlsServerSocketFactory serverFactory = new BcTlsServerSocketFactory(new TestSecurityPrototype());
+		serverFactory.setConfigProperty(SocketFactoryManager.KEY_REACTOR_HANDSHAKE_TIMEOUT, 200);
+		try (BcTlsReactorServer server = serverFactory.createReactorServer(handler)) {
+			Assert.assertEquals(200, server.getHandshakeTimeout());
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+			try {
+				server.setHandshakeTimeout(0);
+				Assert.fail("Timeout changed after binding");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			try (Socket plain = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+				// never says hello
+				Assert.assertTrue(handler.firstClosed.await(5, TimeUnit.SECONDS));
+				Assert.assertEquals(-1, plain.getInputStream().read());
+			}
+			Assert.assertTrue(handler.lastCause.get() instanceof SocketTimeoutException);
+			Assert.assertEquals(0, handler.connected.get());
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void idleTimeoutTest() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		try (BcTlsReactorServer server = new BcTlsReactorServer(new TestSecurityPrototype(), handler, 1)) {
+			server.setIdleTimeout(300);
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getLocalPort())) {
+				// activity keeps the connection open
+				for (int i = 0; i < 4; i++) {
+					echo(socket, "ping " + i);
+					Thread.sleep(150);
+				}
+				Assert.assertEquals(0, handler.closed.get());
+				Assert.assertTrue(handler.firstClosed.await(5, TimeUnit.SECONDS));
+			}
+			Assert.assertTrue(handler.lastCause.get() instanceof SocketTimeoutException);
+			Assert.assertEquals(0, server.getConnectionCount());
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void highWaterMarkTest() throws Exception {
+		final int total = 2 * 1024 * 1024;
+		final List<Boolean> changes = new CopyOnWriteArrayList<Boolean>();
+		final AtomicReference<TlsConnection> accepted = new AtomicReference<TlsConnection>();
+		EchoHandler handler = new EchoHandler() {
+			@Override
+			public void connected(TlsConnection connection) {
+				super.connected(connection);
+				accepted.set(connection);
+				try {
+					for (int sent = 0; sent < total; sent += 16384) {
+						connection.send(ByteBuffer.allocate(16384));
+					}
+				} catch (ClosedChannelException e) {
+					// peer went away
+				}
+			}
+
+			@Override
+			public void writabilityChanged(TlsConnection connection, boolean writable) {
+				Assert.assertEquals(writable, connection.isWritable());
+				changes.add(writable);
+			}
+		};
+		try (BcTlsReactorServer server = new BcTlsReactorServer(new TestSecurityPrototype(), handler, 1)) {
+			server.setHighWaterMark(64 * 1024);
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getLocalPort())) {
+				socket.startHandshake();
+				InputStream in = socket.getInputStream();
+				byte[] buffer = new byte[16384];
+				int received = 0;
+				while (received < total) {
+					int read = in.read(buffer);
+					Assert.assertTrue("Unexpected end of stream", read >= 0);
+					received += read;
+				}
+			}
+			Assert.assertEquals(Boolean.FALSE, changes.get(0));
+			Assert.assertEquals(Boolean.TRUE, changes.get(changes.size() - 1));
+			Assert.assertTrue(accepted.get().isWritable());
+			Assert.assertEquals(0, accepted.get().getQueuedBytes());
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class BcTlsServerSocketFactoryTest {
+
+	private static int freePort() throws IOException {
+		try (ServerSocket unused = new ServerSocket(0)) {
+			return unused.getLocalPort();
+		}
+	}
+
+	@Test
+	public void bindTest() throws Exception {
+		BcTlsServerSocketFactory factory = new BcTlsServerSocketFactory(new TestSecurityPrototype());
+		factory.setConfigProperty(SocketFactoryManager.KEY_SERVER_REUSE_ADDRESS, Boolean.TRUE);
+		factory.setConfigProperty(SocketFactoryManager.KEY_SERVER_RECEIVE_BUFFER_SIZE, 256 * 1024);
+		int port = freePort();
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		try (BcTlsServerSocket server = factory.createServerSocket(port, 128, loopback)) {
+			Assert.assertEquals(port, server.getLocalPort());
+			Assert.assertEquals(loopback, server.getInetAddress());
+			Assert.assertTrue(server.getReuseAddress());
+			Assert.assertTrue(server.getReceiveBufferSize() >= 128 * 1024);
+		}
+
+		// port already taken
+		try (ServerSocket taken = new ServerSocket(0, 50, loopback)) {
+			try {
+				factory.createServerSocket(taken.getLocalPort(), 50, loopback);
+				Assert.fail("Bound twice");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void acceptTest() throws Exception {
+		BcTlsServerSocketFactory serverFactory = new BcTlsServerSocketFactory(new TestSecurityPrototype());
+		serverFactory.setConfigProperty(SocketFactoryManager.KEY_SERVER_BACKLOG, 16);
+		try (final BcTlsServerSocket server = serverFactory.createServerSocket(0)) {
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try (Socket s = server.accept()) {
+						s.getInputStream().read();
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getLocalPort())) {
+				socket.startHandshake();
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package bc.tls.socket;
+
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSession;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class BcTlsSessionContextTest {
+
+	private static BcTlsSession newSession() {
+		return new BcTlsSession(null, "localhost", 443);
+	}
+
+	@Test
+	public void putAndGetTest() {
+		BcTlsSessionContext context = new BcTlsSessionContext();
+		BcTlsSession session = newSession();
+		Assert.assertFalse(session.isValid());
+
+		context.putSession(session);
+		byte[] id = session.getId();
+		Assert.assertEquals(32, id.length);
+		Assert.assertTrue(session.isValid());
+		Assert.assertSame(context, session.getSessionContext());
+
+		Assert.assertSame(session, context.getSession(id));
+		Assert.assertNull(context.getSession(new byte[32]));
+		Assert.assertEquals(1, context.getHitCount());
+		Assert.assertEquals(1, context.getMissCount());
+
+		List<byte[]> ids = Collections.list(context.getIds());
+		Assert.assertEquals(1, ids.size());
+		Assert.assertArrayEquals(id, ids.get(0));
+
+		// adding again keeps the id
+		context.putSession(session);
+		Assert.assertArrayEquals(id, session.getId());
+		Assert.assertEquals(1, context.size());
+	}
+
+	@Test
+	public void sizeLimitTest() {
+		BcTlsSessionContext context = new BcTlsSessionContext(4, 0, 0);
+		BcTlsSession[] sessions = new BcTlsSession[10];
+		for (int i = 0; i < sessions.length; i++) {
+			sessions[i] = newSession();
+			context.putSession(sessions[i]);
+			Assert.assertTrue(context.size() <= 4);
+		}
+		Assert.assertEquals(4, context.size());
+		Assert.assertEquals(6, context.getEvictionCount());
+
+		context.setSessionCacheSize(2);
+		Assert.assertEquals(2, context.size());
+		Assert.assertEquals(8, context.getEvictionCount());
+		Assert.assertEquals(2, context.getSessionCacheSize());
+	}
+
+	@Test
+	public void leastRecentlyUsedTest() {
+		BcTlsSessionContext context = new BcTlsSessionContext();
+		BcTlsSession first = newSession();
+		BcTlsSession second = newSession();
+		BcTlsSession third = newSession();
+		context.putSession(first);
+		context.putSession(second);
+		context.putSession(third);
+		Assert.assertNotNull(context.getSession(first.getId()));
+
+		context.setSessionCacheSize(2);
+		Assert.assertNull(context.getSession(second.getId()));
+
+		context.putSession(newSession());
+		Assert.assertNull(context.getSession(third.getId()));
+		Assert.assertNotNull(context.getSession(first.getId()));
+		Assert.assertEquals(2, context.getEvictionCount());
+		Assert.assertTrue(first.getLastAccessedTime() >= first.getCreationTime());
+	}
+
+	@Test
+	public void memoryLimitTest() {
+		BcTlsSessionContext context = new BcTlsSessionContext(0, 0, 10 * BcTlsSessionContext.SESSION_OVERHEAD);
+		for (int i = 0; i < 100; i++) {
+			context.putSession(newSession());
+			Assert.assertTrue(context.getMemoryUsage() <= context.getMaxMemory());
+		}
+		Assert.assertTrue(context.size() > 0);
+		Assert.assertEquals(100 - context.size(), context.getEvictionCount());
+	}
+
+	@Test
+	public void timeoutTest() throws InterruptedException {
+		BcTlsSessionContext context = new BcTlsSessionContext();
+		context.setSessionTimeout(1);
+		BcTlsSession session = newSession();
+		context.putSession(session);
+		Assert.assertSame(session, context.getSession(session.getId()));
+
+		Thread.sleep(1100);
+		Assert.assertFalse(context.getIds().hasMoreElements());
+		Assert.assertNull(context.getSession(session.getId()));
+		Assert.assertEquals(1, context.getExpirationCount());
+		Assert.assertEquals(0, context.size());
+
+		// no limit
+		context.setSessionTimeout(0);
+		context.putSession(session);
+		Assert.assertSame(session, context.getSession(session.getId()));
+	}
+
+	@Test
+	public void invalidateTest() {
+		BcTlsSessionContext context = new BcTlsSessionContext();
+		BcTlsSession session = newSession();
+		context.putSession(session);
+		session.invalidate();
+		Assert.assertFalse(session.isValid());
+		Assert.assertEquals(0, context.size());
+		Assert.assertEquals(0, context.getMemoryUsage());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeSizeTest() {
+		new BcTlsSessionContext().setSessionCacheSize(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeTimeoutTest() {
+		new BcTlsSessionContext().setSessionTimeout(-1);
+	}
+
+	@Test(timeout = 10000)
+	public void serverSocketTest() throws Exception {
+		BcTlsSessionContext context = new BcTlsSessionContext();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (final BcTlsServerSocket serverSocket = new BcTlsServerSocket(0, new TestSecurityPrototype())) {
+			serverSocket.setSessionContext(context);
+			Future<SSLSession> accepted = executor.submit(new Callable<SSLSession>() {
+				@Override
+				public SSLSession call() throws Exception {
+					try (Socket socket = serverSocket.accept()) {
+						socket.getOutputStream().write(socket.getInputStream().read());
+						socket.getOutputStream().flush();
+						return ((BcTlsSocket) socket).getSession();
+					}
+				}
+			});
+
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", serverSocket.getLocalPort())) {
+				socket.getOutputStream().write(42);
+				socket.getOutputStream().flush();
+				Assert.assertEquals(42, socket.getInputStream().read());
+			}
+
+			SSLSession session = accepted.get(5, TimeUnit.SECONDS);
+			Assert.assertSame(context, session.getSessionContext());
+			Assert.assertEquals(1, context.size());
+
+			// the context holds a copy detached from the connection
+			SSLSession stored = context.getSession(session.getId());
+			Assert.assertNotSame(session, stored);
+			Assert.assertArrayEquals(session.getId(), stored.getId());
+			Assert.assertNotNull(stored.getCipherSuite());
+			Assert.assertEquals(session.getPeerHost(), stored.getPeerHost());
+			Assert.assertEquals(session.getPeerPort(), stored.getPeerPort());
+			Assert.assertEquals(session.getCreationTime(), stored.getCreationTime());
+
+			session.invalidate();
+			Assert.assertNull(context.getSession(stored.getId()));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
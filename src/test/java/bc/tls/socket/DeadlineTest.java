@@ -0,0 +1,133 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+import bc.tls.socket.DeadlineExceededException.Phase;
+
+public class DeadlineTest {
+
+	/**
+	 * Accepts connections but never answers
+	 */
+	private static class SilentServer implements AutoCloseable {
+
+		final ServerSocket server;
+		final List<Socket> accepted = new ArrayList<Socket>();
+
+		SilentServer() throws Exception {
+			this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							Socket s = SilentServer.this.server.accept();
+							synchronized (SilentServer.this.accepted) {
+								SilentServer.this.accepted.add(s);
+							}
+						}
+					} catch (Exception e) {
+						// closed
+					}
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		int getPort() {
+			return this.server.getLocalPort();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.server.close();
+			synchronized (this.accepted) {
+				for (Socket s : this.accepted) {
+					s.close();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void deadlineTest() throws Exception {
+		Deadline deadline = new Deadline(100);
+		deadline.enter(Phase.CONNECT);
+		Assert.assertFalse(deadline.isExpired());
+		Assert.assertTrue(deadline.bound(Phase.CONNECT, 0) <= 100);
+		Assert.assertEquals(5, deadline.bound(Phase.CONNECT, 5));
+
+		Thread.sleep(120);
+		Assert.assertTrue(deadline.isExpired());
+		try {
+			deadline.remaining(Phase.CONNECT);
+			Assert.fail("Time left");
+		} catch (DeadlineExceededException e) {
+			Assert.assertEquals(Phase.CONNECT, e.getPhase());
+			Assert.assertEquals(100, e.getBudget());
+			Assert.assertTrue(e.getPhaseTime(Phase.CONNECT) >= 100);
+			Assert.assertEquals(0, e.getPhaseTime(Phase.HANDSHAKE));
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void handshakeTest() throws Exception {
+		try (SilentServer server = new SilentServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			factory.setConfigProperty(SocketFactoryManager.KEY_CONNECT_DEADLINE, 500L);
+			long start = System.currentTimeMillis();
+			try (BcTlsSocket socket = factory.createSocket(InetAddress.getLoopbackAddress(), server.getPort())) {
+				socket.startHandshake();
+				Assert.fail("Handshake completed");
+			} catch (DeadlineExceededException e) {
+				Assert.assertEquals(Phase.HANDSHAKE, e.getPhase());
+				Assert.assertTrue(e.getPhaseTime(Phase.HANDSHAKE) > 0);
+			}
+			Assert.assertTrue(System.currentTimeMillis() - start < 3000);
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void proxyTest() throws Exception {
+		try (SilentServer proxy = new SilentServer(); EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			factory.setConfigProperty(SocketFactoryManager.KEY_PROXY, new Proxy(Proxy.Type.SOCKS,
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), proxy.getPort())));
+			factory.setConfigProperty(SocketFactoryManager.KEY_CONNECT_DEADLINE, 500L);
+			long start = System.currentTimeMillis();
+			try (BcTlsSocket socket = factory.createSocket(InetAddress.getLoopbackAddress(), server.getPort())) {
+				Assert.fail("Connected: " + socket);
+			} catch (DeadlineExceededException e) {
+				Assert.assertEquals(Phase.PROXY, e.getPhase());
+			}
+			Assert.assertTrue(System.currentTimeMillis() - start < 3000);
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void connectTest() throws Exception {
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			factory.setConfigProperty(SocketFactoryManager.KEY_CONNECT_DEADLINE, 10000L);
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				socket.setSoTimeout(4321);
+				socket.startHandshake();
+				Assert.assertEquals("localhost", socket.getPeerHost());
+				// the read timeout is restored after the handshake
+				Assert.assertEquals(4321, socket.getSoTimeout());
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package bc.tls.socket;
+
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class DnsCacheTest {
+
+	/**
+	 * Answers with a configurable address, optionally blocking until released
+	 */
+	private static class ScriptedCache extends DnsCache {
+
+		final AtomicInteger calls = new AtomicInteger();
+		volatile InetAddress answer;
+		volatile CountDownLatch gate;
+
+		ScriptedCache(String answer) throws UnknownHostException {
+			this.answer = InetAddress.getByName(answer);
+		}
+
+		@Override
+		InetAddress[] lookup(String host) throws UnknownHostException {
+			this.calls.incrementAndGet();
+			CountDownLatch latch = this.gate;
+			if (latch != null) {
+				try {
+					latch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new UnknownHostException(host);
+				}
+			}
+			InetAddress address = this.answer;
+			if (address == null) {
+				throw new UnknownHostException(host);
+			}
+			return new InetAddress[] { address };
+		}
+	}
+
+	private static void awaitCalls(ScriptedCache cache, int count) throws InterruptedException {
+		for (int i = 0; i < 250 && cache.calls.get() < count; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(count, cache.calls.get());
+	}
+
+	@Test
+	public void cacheTest() throws Exception {
+		ScriptedCache cache = new ScriptedCache("192.0.2.1");
+		InetAddress[] first = cache.resolve("Backend.example", 10000, 1000, 0);
+		InetAddress[] second = cache.resolve("backend.example", 10000, 1000, 0);
+		Assert.assertArrayEquals(first, second);
+		Assert.assertEquals(1, cache.calls.get());
+		Assert.assertEquals(1, cache.size());
+
+		// no caching
+		cache.resolve("backend.example", 0, 0, 0);
+		cache.resolve("backend.example", 0, 0, 0);
+		Assert.assertEquals(3, cache.calls.get());
+		Assert.assertEquals(3, cache.getLookupCount());
+	}
+
+	@Test
+	public void negativeTest() throws Exception {
+		ScriptedCache cache = new ScriptedCache("192.0.2.1");
+		cache.answer = null;
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.resolve("unknown.example", 10000, 100, 0);
+				Assert.fail("Resolved");
+			} catch (UnknownHostException e) {
+				// expected
+			}
+		}
+		Assert.assertEquals(1, cache.calls.get());
+
+		cache.answer = InetAddress.getByName("192.0.2.2");
+		Thread.sleep(150);
+		Assert.assertEquals(cache.answer, cache.resolve("unknown.example", 10000, 100, 0)[0]);
+		Assert.assertEquals(2, cache.calls.get());
+	}
+
+	@Test(timeout = 20000)
+	public void singleFlightTest() throws Exception {
+		final ScriptedCache cache = new ScriptedCache("192.0.2.1");
+		cache.gate = new CountDownLatch(1);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			List<Future<InetAddress[]>> results = new ArrayList<Future<InetAddress[]>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(new Callable<InetAddress[]>() {
+					@Override
+					public InetAddress[] call() throws Exception {
+						return cache.resolve("backend.example", 10000, 1000, 0);
+					}
+				}));
+			}
+			awaitCalls(cache, 1);
+			Thread.sleep(100);
+			cache.gate.countDown();
+			for (Future<InetAddress[]> result : results) {
+				Assert.assertEquals(cache.answer, result.get(5, TimeUnit.SECONDS)[0]);
+			}
+			Assert.assertEquals(1, cache.calls.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void refreshAheadTest() throws Exception {
+		ScriptedCache cache = new ScriptedCache("192.0.2.1");
+		InetAddress old = cache.answer;
+		cache.resolve("backend.example", 400, 100, 0);
+
+		// within the last quarter of the ttl
+		Thread.sleep(320);
+		cache.answer = InetAddress.getByName("192.0.2.2");
+		cache.gate = new CountDownLatch(1);
+		long start = System.currentTimeMillis();
+		Assert.assertEquals(old, cache.resolve("backend.example", 400, 100, 0)[0]);
+		Assert.assertTrue(System.currentTimeMillis() - start < 50);
+		awaitCalls(cache, 2);
+		Assert.assertEquals(1, cache.getRefreshCount());
+
+		cache.gate.countDown();
+		for (int i = 0; i < 250 && !cache.answer.equals(cache.resolve("backend.example", 400, 100, 0)[0]); i++) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(cache.answer, cache.resolve("backend.example", 400, 100, 0)[0]);
+	}
+
+	@Test
+	public void staleTest() throws Exception {
+		ScriptedCache cache = new ScriptedCache("192.0.2.1");
+		InetAddress old = cache.answer;
+		cache.resolve("backend.example", 100, 50, 0);
+
+		// resolver outage after expiry
+		cache.answer = null;
+		Thread.sleep(120);
+		Assert.assertEquals(old, cache.resolve("backend.example", 100, 50, 0)[0]);
+		Assert.assertEquals(2, cache.calls.get());
+
+		// given up eventually
+		Thread.sleep(200);
+		try {
+			cache.resolve("backend.example", 100, 50, 0);
+			Assert.fail("Resolved");
+		} catch (UnknownHostException e) {
+			// expected
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void timeoutTest() throws Exception {
+		ScriptedCache cache = new ScriptedCache("192.0.2.1");
+		cache.gate = new CountDownLatch(1);
+		long start = System.currentTimeMillis();
+		try {
+			cache.resolve("backend.example", 10000, 1000, 100);
+			Assert.fail("Resolved");
+		} catch (SocketTimeoutException e) {
+			Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+		}
+
+		// the lookup goes on and is cached
+		cache.gate.countDown();
+		for (int i = 0; i < 250 && cache.size() == 0; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(cache.answer, cache.resolve("backend.example", 10000, 1000, 100)[0]);
+		Assert.assertEquals(1, cache.calls.get());
+	}
+
+	@Test(timeout = 20000)
+	public void factoryTest() throws Exception {
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			for (int i = 0; i < 2; i++) {
+				try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+					socket.startHandshake();
+					Assert.assertEquals("localhost", socket.getPeerHost());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package bc.tls.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+
+import bc.tls.TestSecurityPrototype;
+
+/**
+ * Loopback tls server echoing everything it receives, one thread per
+ * connection.
+ */
+public class EchoServer implements Closeable {
+
+	private final BcTlsServerSocket serverSocket;
+	private final Thread acceptor;
+
+	public EchoServer() throws IOException {
+		this.serverSocket = new BcTlsServerSocket(0, new TestSecurityPrototype());
+		this.acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "echo-acceptor");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+	private void acceptLoop() {
+		while (!this.serverSocket.isClosed()) {
+			try {
+				final Socket socket = this.serverSocket.accept();
+				Thread handler = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						echo(socket);
+					}
+				}, "echo-handler");
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				if (!this.serverSocket.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static void echo(Socket socket) {
+		try (Socket s = socket) {
+			InputStream in = s.getInputStream();
+			OutputStream out = s.getOutputStream();
+			byte[] buffer = new byte[16384];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+				out.flush();
+			}
+		} catch (SocketException e) {
+			// peer went away
+		} catch (IOException e) {
+			// closed without close_notify
+		}
+	}
+
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.serverSocket.close();
+	}
+}
@@ -0,0 +1,154 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLSession;
+
+import org.bouncycastle.crypto.tls.TlsServerProtocol;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bc.tls.CipherSuite;
+import bc.tls.TestSecurityPrototype;
+
+public class FalseStartTest {
+
+	private ServerSocket serverSocket;
+	private ExecutorService executor;
+
+	/**
+	 * Completes with the first application data received by the server
+	 */
+	private CompletableFuture<String> received;
+
+	@Before
+	public void prepare() throws IOException {
+		this.serverSocket = new ServerSocket(0);
+		this.executor = Executors.newCachedThreadPool();
+		this.received = new CompletableFuture<String>();
+		this.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try (Socket s = serverSocket.accept()) {
+					serveWithheldFinished(s);
+				} catch (IOException e) {
+					received.completeExceptionally(e);
+				}
+			}
+		});
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		this.serverSocket.close();
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Non-blocking server which holds back its Finished message until it has
+	 * received application data, then answers "pong"
+	 */
+	private void serveWithheldFinished(Socket s) throws IOException {
+		InputStream in = s.getInputStream();
+		OutputStream out = s.getOutputStream();
+
+		TlsServerProtocol protocol = new TlsServerProtocol(new SecureRandom());
+		BcTlsServer server = new BcTlsServer(new TestSecurityPrototype(), "localhost");
+		protocol.accept(server);
+
+		byte[] withheld = null;
+		byte[] buf = new byte[BcTlsSession.MAX_RECORD_LENGTH];
+		while (protocol.getAvailableInputBytes() < 4) {
+			int n = in.read(buf);
+			if (n < 0) {
+				return;
+			}
+			protocol.offerInput(Arrays.copyOf(buf, n));
+
+			byte[] output = new byte[protocol.getAvailableOutputBytes()];
+			protocol.readOutput(output, 0, output.length);
+			if (server.isHandshakeComplete() && withheld == null) {
+				withheld = output;
+			} else {
+				out.write(output);
+				out.flush();
+			}
+		}
+
+		byte[] data = new byte[4];
+		protocol.readInput(data, 0, data.length);
+		this.received.complete(new String(data, StandardCharsets.UTF_8));
+
+		out.write(withheld);
+		protocol.offerOutput("pong".getBytes(StandardCharsets.UTF_8), 0, 4);
+		byte[] output = new byte[protocol.getAvailableOutputBytes()];
+		protocol.readOutput(output, 0, output.length);
+		out.write(output);
+		out.flush();
+		// wait for the client to go away
+		while (in.read(buf) >= 0) {
+		}
+	}
+
+	@Test
+	public void eligibleSuitesTest() {
+		Assert.assertTrue(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256.allowsFalseStart());
+		Assert.assertTrue(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384.allowsFalseStart());
+		Assert.assertFalse(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256.allowsFalseStart());
+		Assert.assertFalse(CipherSuite.TLS_RSA_WITH_AES_128_GCM_SHA256.allowsFalseStart());
+	}
+
+	@Test(timeout = 10000)
+	public void falseStartTest() throws Exception {
+		BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+		factory.setConfigProperty(SocketFactoryManager.KEY_FALSE_START, Boolean.TRUE);
+		try (BcTlsSocket socket = factory.createSocket("localhost", this.serverSocket.getLocalPort())) {
+			Assert.assertTrue(socket.isFalseStart());
+
+			OutputStream out = socket.getOutputStream();
+			out.write("ping".getBytes(StandardCharsets.UTF_8));
+			out.flush();
+
+			// server has not sent its finished yet
+			Assert.assertEquals("ping", this.received.get(5, TimeUnit.SECONDS));
+
+			byte[] answer = new byte[4];
+			int read = 0;
+			while (read < answer.length) {
+				read += socket.getInputStream().read(answer, read, answer.length - read);
+			}
+			Assert.assertEquals("pong", new String(answer, StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void disabledTest() throws Exception {
+		BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+		try (BcTlsSocket socket = factory.createSocket("localhost", this.serverSocket.getLocalPort())) {
+			Assert.assertFalse(socket.isFalseStart());
+
+			CompletableFuture<SSLSession> handshake = socket.startHandshakeAsync(this.executor);
+			try {
+				handshake.get(300, TimeUnit.MILLISECONDS);
+				Assert.fail("Handshake must wait for the server's finished");
+			} catch (TimeoutException e) {
+				// expected
+			}
+			Assert.assertFalse(this.received.isDone());
+		}
+	}
+}
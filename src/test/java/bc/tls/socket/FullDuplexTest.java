@@ -0,0 +1,268 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class FullDuplexTest {
+
+	private static final int MESSAGE_SIZE = 1024;
+
+	private ExecutorService executor;
+
+	@Before
+	public void prepare() {
+		this.executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void cleanup() {
+		this.executor.shutdownNow();
+	}
+
+	private static void readFully(InputStream in, byte[] buffer) throws IOException {
+		int read = 0;
+		while (read < buffer.length) {
+			int n = in.read(buffer, read, buffer.length - read);
+			if (n < 0) {
+				throw new IOException("Unexpected end of stream");
+			}
+			read += n;
+		}
+	}
+
+	/**
+	 * Several writers send messages filled with their own id while one reader
+	 * consumes the echo. Every message has to arrive in one piece.
+	 */
+	@Test(timeout = 60000)
+	public void concurrentStressTest() throws Exception {
+		final int writers = 4;
+		final int messages = 2000;
+
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (final BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				socket.startHandshake();
+
+				List<Future<Void>> writing = new ArrayList<Future<Void>>();
+				for (int w = 0; w < writers; w++) {
+					final byte id = (byte) w;
+					writing.add(this.executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							byte[] message = new byte[MESSAGE_SIZE];
+							Arrays.fill(message, id);
+							OutputStream out = socket.getOutputStream();
+							for (int i = 0; i < messages; i++) {
+								out.write(message);
+							}
+							return null;
+						}
+					}));
+				}
+
+				Future<int[]> reading = this.executor.submit(new Callable<int[]>() {
+					@Override
+					public int[] call() throws IOException {
+						int[] received = new int[writers];
+						byte[] message = new byte[MESSAGE_SIZE];
+						InputStream in = socket.getInputStream();
+						for (int i = 0; i < writers * messages; i++) {
+							readFully(in, message);
+							for (byte b : message) {
+								Assert.assertEquals("Interleaved message", message[0], b);
+							}
+							received[message[0]]++;
+						}
+						return received;
+					}
+				});
+
+				for (Future<Void> w : writing) {
+					w.get();
+				}
+				int[] received = reading.get();
+
+				for (int count : received) {
+					Assert.assertEquals(messages, count);
+				}
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void closeBlockedReaderTest() throws Exception {
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			final BcTlsSocket socket = factory.createSocket("localhost", server.getPort());
+			socket.startHandshake();
+
+			Future<Integer> reading = this.executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws IOException {
+					return socket.getInputStream().read();
+				}
+			});
+			Thread.sleep(100);
+			Assert.assertFalse(reading.isDone());
+
+			socket.close();
+			Assert.assertTrue(socket.isClosed());
+			try {
+				// either the echoed close or an aborted read
+				Assert.assertEquals(-1, reading.get(5, TimeUnit.SECONDS).intValue());
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void closeBlockedWriterTest() throws Exception {
+		final BcTlsServerSocket tlsServer = new BcTlsServerSocket(0, new TestSecurityPrototype());
+		try {
+			Future<Socket> accepted = this.executor.submit(new Callable<Socket>() {
+				@Override
+				public Socket call() throws IOException {
+					// handshake, then never read again
+					Socket s = tlsServer.accept();
+					s.getInputStream();
+					return s;
+				}
+			});
+
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			final BcTlsSocket socket = factory.createSocket("localhost", tlsServer.getLocalPort());
+			socket.startHandshake();
+
+			Future<Void> writing = this.executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					byte[] chunk = new byte[16384];
+					while (true) {
+						socket.getOutputStream().write(chunk);
+					}
+				}
+			});
+			// let the writer fill the socket buffers
+			Thread.sleep(500);
+			Assert.assertFalse(writing.isDone());
+
+			long start = System.nanoTime();
+			socket.close();
+			Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 2);
+			try {
+				writing.get(5, TimeUnit.SECONDS);
+				Assert.fail("Writer must be aborted");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof IOException);
+			}
+			accepted.get().close();
+		} finally {
+			tlsServer.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void closeBlockedWriterWithoutAutoCloseTest() throws Exception {
+		final BcTlsServerSocket tlsServer = new BcTlsServerSocket(0, new TestSecurityPrototype());
+		try {
+			Future<Socket> accepted = this.executor.submit(new Callable<Socket>() {
+				@Override
+				public Socket call() throws IOException {
+					Socket s = tlsServer.accept();
+					s.getInputStream();
+					return s;
+				}
+			});
+
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			Socket raw = new Socket("localhost", tlsServer.getLocalPort());
+			final BcTlsSocket socket = factory.createSocket(raw, "localhost", tlsServer.getLocalPort(), false);
+			socket.startHandshake();
+
+			Future<Void> writing = this.executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					byte[] chunk = new byte[16384];
+					while (true) {
+						socket.getOutputStream().write(chunk);
+					}
+				}
+			});
+			Thread.sleep(500);
+			Assert.assertFalse(writing.isDone());
+
+			socket.close();
+			try {
+				writing.get(5, TimeUnit.SECONDS);
+				Assert.fail("Writer must be aborted");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof IOException);
+			}
+			raw.close();
+			accepted.get().close();
+		} finally {
+			tlsServer.close();
+		}
+	}
+
+	/**
+	 * A close racing a short write waits for the write instead of dropping
+	 * close_notify.
+	 */
+	@Test(timeout = 10000)
+	public void closeWaitsForShortWriteTest() throws Exception {
+		final DuplexLocks locks = new DuplexLocks(new Socket());
+		final CountDownLatch writing = new CountDownLatch(1);
+		this.executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				return locks.write(new DuplexLocks.Section<Void>() {
+					@Override
+					public Void run() throws IOException {
+						writing.countDown();
+						try {
+							Thread.sleep(DuplexLocks.CLOSE_WAIT_MILLIS / 5);
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+						return null;
+					}
+				});
+			}
+		});
+		writing.await();
+
+		final AtomicBoolean closed = new AtomicBoolean();
+		locks.close(new DuplexLocks.Section<Void>() {
+			@Override
+			public Void run() {
+				closed.set(true);
+				return null;
+			}
+		});
+		Assert.assertTrue("close_notify skipped", closed.get());
+	}
+}
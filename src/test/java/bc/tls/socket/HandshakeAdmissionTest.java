@@ -0,0 +1,211 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class HandshakeAdmissionTest {
+
+	private static Callable<Boolean> admitter(final HandshakeAdmission admission, final InetAddress source) {
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				try {
+					admission.admit(source, System.nanoTime());
+					return Boolean.TRUE;
+				} catch (HandshakeRejectedException e) {
+					return Boolean.FALSE;
+				}
+			}
+		};
+	}
+
+	private static void awaitQueued(HandshakeAdmission admission, int count) throws InterruptedException {
+		for (int i = 0; i < 250 && admission.getQueued() < count; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(count, admission.getQueued());
+	}
+
+	@Test(timeout = 20000)
+	public void queueTest() throws Exception {
+		InetAddress source = InetAddress.getByName("192.0.2.1");
+		HandshakeAdmission admission = new HandshakeAdmission(1, 1, 300);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			admission.admit(source, System.nanoTime());
+			Assert.assertEquals(1, admission.getInFlight());
+
+			Future<Boolean> waiting = executor.submit(admitter(admission, source));
+			awaitQueued(admission, 1);
+			// queue is full
+			Assert.assertFalse(admitter(admission, source).call());
+			// no slot within the queueing time
+			Assert.assertFalse(waiting.get(5, TimeUnit.SECONDS));
+			Assert.assertEquals(0, admission.getQueued());
+			Assert.assertEquals(2, admission.getShedCount());
+
+			// handed over to a waiting connection
+			waiting = executor.submit(admitter(admission, source));
+			awaitQueued(admission, 1);
+			admission.release();
+			Assert.assertTrue(waiting.get(5, TimeUnit.SECONDS));
+			Assert.assertEquals(2, admission.getAdmittedCount());
+			admission.release();
+			Assert.assertEquals(0, admission.getInFlight());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void queueTimeTest() throws Exception {
+		HandshakeAdmission admission = new HandshakeAdmission(1, 10, 100);
+		admission.admit(null, System.nanoTime());
+		// waited too long before the handshake was even attempted
+		try {
+			admission.admit(null, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(200));
+			Assert.fail("Admitted");
+		} catch (HandshakeRejectedException e) {
+			// expected
+		}
+		admission.release();
+	}
+
+	@Test
+	public void sourceTest() throws Exception {
+		InetAddress greedy = InetAddress.getByName("192.0.2.1");
+		InetAddress other = InetAddress.getByName("192.0.2.2");
+		HandshakeAdmission admission = new HandshakeAdmission(4, 0, 0, 0.001, 2);
+		for (int i = 0; i < 2; i++) {
+			admission.admit(greedy, System.nanoTime());
+			admission.release();
+		}
+		try {
+			admission.admit(greedy, System.nanoTime());
+			Assert.fail("Admitted");
+		} catch (HandshakeRejectedException e) {
+			// expected
+		}
+		admission.admit(other, System.nanoTime());
+		admission.release();
+		Assert.assertEquals(3, admission.getAdmittedCount());
+		Assert.assertEquals(1, admission.getShedCount());
+	}
+
+	@Test
+	public void sourceEvictionTest() throws Exception {
+		InetAddress greedy = InetAddress.getByName("192.0.2.1");
+		HandshakeAdmission admission = new HandshakeAdmission(4, 0, 0, 0.001, 2);
+		for (int i = 0; i < 2; i++) {
+			admission.admit(greedy, System.nanoTime());
+			admission.release();
+		}
+		// more clients than tracked, each leaving a bucket in use
+		for (int i = 0; i < HandshakeAdmission.MAX_SOURCES + 100; i++) {
+			InetAddress other = InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8),
+					(byte) i });
+			admission.admit(other, System.nanoTime());
+			admission.release();
+		}
+		Assert.assertEquals(HandshakeAdmission.MAX_SOURCES, admission.getSourceCount());
+		try {
+			admission.admit(greedy, System.nanoTime());
+			Assert.fail("Limit of the greedy client was dropped");
+		} catch (HandshakeRejectedException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void ipv6PrefixTest() throws Exception {
+		InetAddress first = InetAddress.getByName("2001:db8:0:1::1");
+		InetAddress sibling = InetAddress.getByName("2001:db8:0:1:ffff::2");
+		InetAddress other = InetAddress.getByName("2001:db8:0:2::1");
+		Assert.assertEquals(HandshakeAdmission.sourceKey(first), HandshakeAdmission.sourceKey(sibling));
+		Assert.assertNotEquals(HandshakeAdmission.sourceKey(first), HandshakeAdmission.sourceKey(other));
+
+		HandshakeAdmission admission = new HandshakeAdmission(4, 0, 0, 0.001, 2);
+		admission.admit(first, System.nanoTime());
+		admission.release();
+		admission.admit(sibling, System.nanoTime());
+		admission.release();
+		try {
+			admission.admit(sibling, System.nanoTime());
+			Assert.fail("Admitted");
+		} catch (HandshakeRejectedException e) {
+			// expected
+		}
+		admission.admit(other, System.nanoTime());
+		admission.release();
+		Assert.assertEquals(2, admission.getSourceCount());
+	}
+
+	@Test
+	public void validationTest() {
+		try {
+			new HandshakeAdmission(0, 1, 100);
+			Assert.fail("Accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new HandshakeAdmission(1, 1, 100, 10, 0);
+			Assert.fail("Accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void serverTest() throws Exception {
+		HandshakeAdmission admission = new HandshakeAdmission(4, 0, 0, 0.001, 1);
+		BcTlsServerSocketFactory serverFactory = new BcTlsServerSocketFactory(new TestSecurityPrototype());
+		serverFactory.setConfigProperty(SocketFactoryManager.KEY_HANDSHAKE_ADMISSION, admission);
+		final BcTlsServerSocket server = serverFactory.createServerSocket(0);
+		Assert.assertSame(admission, server.getHandshakeAdmission());
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket s = server.accept();
+						s.close();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		try {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getLocalPort())) {
+				socket.startHandshake();
+			}
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getLocalPort())) {
+				socket.startHandshake();
+				Assert.fail("Handshake completed");
+			} catch (IOException e) {
+				// shed by the server
+			}
+			Assert.assertEquals(1, admission.getAdmittedCount());
+			Assert.assertEquals(1, admission.getShedCount());
+			Assert.assertEquals(0, admission.getInFlight());
+		} finally {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class HappyEyeballsConnectorTest {
+
+	/**
+	 * Blackholes and refuses addresses instead of connecting to them
+	 */
+	private static class ScriptedConnector extends HappyEyeballsConnector {
+
+		final Set<InetAddress> blackholed = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+		final Set<InetAddress> refused = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+		final Set<Socket> aborted = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+		ScriptedConnector(long attemptDelayMillis) {
+			super(attemptDelayMillis, null);
+		}
+
+		@Override
+		void connect(Socket socket, InetSocketAddress address, InetSocketAddress localAddress, int timeoutMillis)
+				throws IOException {
+			if (this.refused.contains(address.getAddress())) {
+				throw new ConnectException("Connection refused");
+			}
+			if (this.blackholed.contains(address.getAddress())) {
+				// outlast the connector's timeout, it has to abort the attempt
+				long deadline = System.currentTimeMillis() + timeoutMillis + 5000;
+				while (!socket.isClosed() && System.currentTimeMillis() < deadline) {
+					try {
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				if (socket.isClosed()) {
+					this.aborted.add(socket);
+					throw new SocketException("Socket closed");
+				}
+				throw new SocketTimeoutException("connect timed out");
+			}
+			super.connect(socket, new InetSocketAddress(InetAddress.getLoopbackAddress(), address.getPort()),
+					localAddress, timeoutMillis);
+		}
+	}
+
+	private static InetAddress address(String literal) throws IOException {
+		return InetAddress.getByName(literal);
+	}
+
+	private static void awaitAborted(ScriptedConnector connector, int count) throws InterruptedException {
+		for (int i = 0; i < 250 && connector.aborted.size() < count; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(count, connector.aborted.size());
+	}
+
+	@Test
+	public void interleaveTest() throws IOException {
+		InetAddress v6a = address("2001:db8::1");
+		InetAddress v6b = address("2001:db8::2");
+		InetAddress v6c = address("2001:db8::3");
+		InetAddress v4a = address("192.0.2.1");
+		InetAddress v4b = address("192.0.2.2");
+
+		List<InetAddress> order = HappyEyeballsConnector.interleave(new InetAddress[] { v6a, v6b, v6c, v4a, v4b });
+		Assert.assertEquals(Arrays.asList(v6a, v4a, v6b, v4b, v6c), order);
+
+		// the resolver's preferred family goes first
+		order = HappyEyeballsConnector.interleave(new InetAddress[] { v4a, v6a, v6b });
+		Assert.assertEquals(Arrays.asList(v4a, v6a, v6b), order);
+	}
+
+	@Test(timeout = 20000)
+	public void blackholeTest() throws Exception {
+		InetAddress v6 = address("2001:db8::1");
+		InetAddress v4 = address("192.0.2.1");
+		ScriptedConnector connector = new ScriptedConnector(100);
+		connector.blackholed.add(v6);
+
+		try (ServerSocket server = new ServerSocket(0)) {
+			long start = System.currentTimeMillis();
+			try (Socket socket = connector.connect(new InetAddress[] { v6, v4 }, server.getLocalPort(), null, 10000)) {
+				Assert.assertTrue(socket.isConnected());
+				Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+			}
+			// the pending attempt was aborted
+			awaitAborted(connector, 1);
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void refusedTest() throws Exception {
+		InetAddress v6 = address("2001:db8::1");
+		InetAddress v4 = address("192.0.2.1");
+		// a failure starts the next attempt without waiting for the delay
+		ScriptedConnector connector = new ScriptedConnector(10000);
+		connector.refused.add(v6);
+
+		try (ServerSocket server = new ServerSocket(0)) {
+			long start = System.currentTimeMillis();
+			try (Socket socket = connector.connect(new InetAddress[] { v6, v4 }, server.getLocalPort(), null, 20000)) {
+				Assert.assertTrue(socket.isConnected());
+				Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+			}
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void noTimeoutTest() throws Exception {
+		InetAddress v6 = address("2001:db8::1");
+		InetAddress v4 = address("192.0.2.1");
+		ScriptedConnector connector = new ScriptedConnector(100);
+		connector.blackholed.add(v6);
+
+		// no timeout like Socket#connect(SocketAddress, int)
+		try (ServerSocket server = new ServerSocket(0)) {
+			try (Socket socket = connector.connect(new InetAddress[] { v6, v4 }, server.getLocalPort(), null, 0)) {
+				Assert.assertTrue(socket.isConnected());
+			}
+			awaitAborted(connector, 1);
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void allFailedTest() throws Exception {
+		InetAddress v6 = address("2001:db8::1");
+		InetAddress v4 = address("192.0.2.1");
+		ScriptedConnector connector = new ScriptedConnector(100);
+		connector.refused.add(v6);
+		connector.refused.add(v4);
+
+		try {
+			connector.connect(new InetAddress[] { v6, v4 }, 443, null, 5000);
+			Assert.fail("Connected");
+		} catch (ConnectException e) {
+			Assert.assertEquals(1, e.getSuppressed().length);
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void timeoutTest() throws Exception {
+		InetAddress v6 = address("2001:db8::1");
+		InetAddress v4 = address("192.0.2.1");
+		ScriptedConnector connector = new ScriptedConnector(50);
+		connector.blackholed.add(v6);
+		connector.blackholed.add(v4);
+
+		try {
+			connector.connect(new InetAddress[] { v6, v4 }, 443, null, 300);
+			Assert.fail("Connected");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+		awaitAborted(connector, 2);
+	}
+
+	@Test(timeout = 20000)
+	public void factoryTest() throws Exception {
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			factory.setConfigProperty(SocketFactoryManager.KEY_HAPPY_EYEBALLS, Boolean.TRUE);
+			factory.setConfigProperty(SocketFactoryManager.KEY_PROXY, Proxy.NO_PROXY);
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				socket.startHandshake();
+				socket.getOutputStream().write(5);
+				socket.getOutputStream().flush();
+				Assert.assertEquals(5, socket.getInputStream().read());
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package bc.tls.socket;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+
+/**
+ * Loopback echo server on the JDK's tls implementation, which resumes
+ * sessions by id. Serves the same certificate as {@link EchoServer}.
+ */
+public class JsseEchoServer implements Closeable {
+
+	private static final String RESOURCES = "src/test/resources/simpleChains/certs/";
+
+	static {
+		// the bc client does not support the extended master secret extension
+		System.setProperty("jdk.tls.useExtendedMasterSecret", "false");
+	}
+
+	private final SSLServerSocket serverSocket;
+	private final AtomicInteger handshakes = new AtomicInteger();
+	private final AtomicInteger resumptions = new AtomicInteger();
+
+	public JsseEchoServer() throws IOException, GeneralSecurityException {
+		Certificate certificate;
+		try (InputStream in = new FileInputStream(new File(RESOURCES + "certSub1A1.pem"))) {
+			certificate = CertificateFactory.getInstance("X.509").generateCertificate(in);
+		}
+		PrivateKey key;
+		try (PEMParser parser = new PEMParser(new FileReader(new File(RESOURCES + "certSub1A1.key")))) {
+			key = new JcaPEMKeyConverter().getPrivateKey((PrivateKeyInfo) parser.readObject());
+		}
+		KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		keyStore.load(null, null);
+		keyStore.setKeyEntry("server", key, new char[0], new Certificate[] { certificate });
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, new char[0]);
+
+		SSLContext context = SSLContext.getInstance("TLSv1.2");
+		context.init(kmf.getKeyManagers(), null, null);
+		this.serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+		this.serverSocket.setEnabledProtocols(new String[] { "TLSv1.2" });
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "jsse-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void acceptLoop() {
+		while (!this.serverSocket.isClosed()) {
+			try {
+				final SSLSocket socket = (SSLSocket) this.serverSocket.accept();
+				Thread handler = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						echo(socket);
+					}
+				}, "jsse-handler");
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				if (!this.serverSocket.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void echo(SSLSocket socket) {
+		try (Socket s = socket) {
+			long before = System.currentTimeMillis();
+			socket.startHandshake();
+			this.handshakes.incrementAndGet();
+			if (socket.getSession().getCreationTime() < before) {
+				this.resumptions.incrementAndGet();
+			}
+			InputStream in = s.getInputStream();
+			OutputStream out = s.getOutputStream();
+			byte[] buffer = new byte[16384];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+				out.flush();
+			}
+		} catch (IOException e) {
+			// peer went away
+		}
+	}
+
+	/**
+	 * @return number of completed handshakes
+	 */
+	public int getHandshakes() {
+		return this.handshakes.get();
+	}
+
+	/**
+	 * @return number of handshakes resuming an earlier session
+	 */
+	public int getResumptions() {
+		return this.resumptions.get();
+	}
+
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.serverSocket.close();
+	}
+}
@@ -0,0 +1,134 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class ProxyDecisionCacheTest {
+
+	private static class CountingSelector extends ProxySelector {
+
+		final AtomicInteger selects = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		private final List<Proxy> proxies;
+
+		CountingSelector(Proxy... proxies) {
+			this.proxies = Arrays.asList(proxies);
+		}
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			Assert.assertEquals("socket", uri.getScheme());
+			this.selects.incrementAndGet();
+			return this.proxies;
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			this.failures.incrementAndGet();
+		}
+	}
+
+	private static int closedPort() throws IOException {
+		try (ServerSocket unused = new ServerSocket(0)) {
+			return unused.getLocalPort();
+		}
+	}
+
+	@Test
+	public void cacheTest() throws InterruptedException {
+		ProxyDecisionCache cache = new ProxyDecisionCache();
+		CountingSelector selector = new CountingSelector(Proxy.NO_PROXY);
+
+		List<Proxy> first = cache.select(selector, "Backend.example", 443, 1000);
+		Assert.assertSame(first, cache.select(selector, "backend.example", 443, 1000));
+		Assert.assertEquals(1, selector.selects.get());
+		Assert.assertEquals(Arrays.asList(Proxy.NO_PROXY), first);
+
+		cache.select(selector, "backend.example", 8443, 1000);
+		Assert.assertEquals(2, selector.selects.get());
+
+		// another selector was installed
+		CountingSelector other = new CountingSelector(Proxy.NO_PROXY);
+		cache.select(other, "backend.example", 443, 1000);
+		Assert.assertEquals(1, other.selects.get());
+
+		// no caching
+		cache.select(selector, "backend.example", 443, 0);
+		cache.select(selector, "backend.example", 443, 0);
+		Assert.assertEquals(4, selector.selects.get());
+
+		cache.select(selector, "backend.example", 443, 50);
+		Thread.sleep(100);
+		cache.select(selector, "backend.example", 443, 50);
+		Assert.assertEquals(6, selector.selects.get());
+	}
+
+	@Test
+	public void connectFailedTest() {
+		ProxyDecisionCache cache = new ProxyDecisionCache();
+		Proxy proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("localhost", 1080));
+		CountingSelector selector = new CountingSelector(proxy, Proxy.NO_PROXY);
+
+		Assert.assertEquals(2, cache.select(selector, "backend.example", 443, 1000).size());
+		cache.connectFailed(selector, "backend.example", 443, proxy, new IOException());
+		Assert.assertEquals(1, selector.failures.get());
+		Assert.assertEquals(0, cache.size());
+		cache.select(selector, "backend.example", 443, 1000);
+		Assert.assertEquals(2, selector.selects.get());
+	}
+
+	@Test(timeout = 20000)
+	public void factoryTest() throws Exception {
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			CountingSelector selector = new CountingSelector(Proxy.NO_PROXY);
+			factory.setConfigProperty(SocketFactoryManager.KEY_PROXY_SELECTOR, selector);
+			for (int i = 0; i < 3; i++) {
+				try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+					socket.startHandshake();
+				}
+			}
+			Assert.assertEquals(1, selector.selects.get());
+
+			// fixed direct connections never ask
+			factory.setConfigProperty(SocketFactoryManager.KEY_PROXY, Proxy.NO_PROXY);
+			factory.setConfigProperty(SocketFactoryManager.KEY_PROXY_CACHE_TTL, 0L);
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				socket.startHandshake();
+			}
+			Assert.assertEquals(1, selector.selects.get());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void proxyFailoverTest() throws Exception {
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			Proxy unreachable = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("localhost", closedPort()));
+			CountingSelector selector = new CountingSelector(unreachable, Proxy.NO_PROXY);
+			factory.setConfigProperty(SocketFactoryManager.KEY_PROXY_SELECTOR, selector);
+
+			for (int i = 0; i < 2; i++) {
+				try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+					socket.startHandshake();
+				}
+			}
+			// the failure dropped the cached decision
+			Assert.assertEquals(2, selector.failures.get());
+			Assert.assertEquals(2, selector.selects.get());
+		}
+	}
+}
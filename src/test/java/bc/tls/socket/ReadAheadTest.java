@@ -0,0 +1,124 @@
+package bc.tls.socket;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+import bc.tls.util.ByteArrayPool;
+
+/**
+ * Counts raw socket reads per MB of echoed application data, with and
+ * without reading ahead.
+ */
+public class ReadAheadTest {
+
+	private static final int MB = 1 << 20;
+	private static final int CHUNK = 64 * 1024;
+
+	private EchoServer server;
+	private BcTlsSocketFactory factory;
+
+	private final AtomicInteger rawReads = new AtomicInteger();
+
+	@Before
+	public void prepare() throws IOException {
+		this.server = new EchoServer();
+		this.factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		this.server.close();
+	}
+
+	private BcTlsSocket createCountingSocket() throws IOException {
+		Socket raw = new Socket("localhost", this.server.getPort()) {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return new FilterInputStream(super.getInputStream()) {
+					@Override
+					public int read() throws IOException {
+						rawReads.incrementAndGet();
+						return in.read();
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						rawReads.incrementAndGet();
+						return in.read(b, off, len);
+					}
+				};
+			}
+		};
+		BcTlsSocket socket = this.factory.createSocket(raw, "localhost", this.server.getPort(), true);
+		socket.startHandshake();
+		return socket;
+	}
+
+	/**
+	 * @return raw reads needed to receive one MB of echoed data
+	 */
+	private int readsPerMB(BcTlsSocket socket) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		InputStream in = socket.getInputStream();
+		byte[] chunk = new byte[CHUNK];
+
+		int before = this.rawReads.get();
+		for (int sent = 0; sent < MB; sent += CHUNK) {
+			out.write(chunk);
+			out.flush();
+			int received = 0;
+			while (received < CHUNK) {
+				int n = in.read(chunk, received, CHUNK - received);
+				Assert.assertTrue("Unexpected end of stream", n >= 0);
+				received += n;
+			}
+		}
+		return this.rawReads.get() - before;
+	}
+
+	@Test
+	public void readsPerMBTest() throws IOException {
+		int unbuffered;
+		try (BcTlsSocket socket = createCountingSocket()) {
+			unbuffered = readsPerMB(socket);
+		}
+
+		this.factory.setConfigProperty(SocketFactoryManager.KEY_READ_AHEAD_SIZE, CHUNK);
+		int buffered;
+		try (BcTlsSocket socket = createCountingSocket()) {
+			buffered = readsPerMB(socket);
+		}
+
+		// header and body are separate reads without read-ahead
+		Assert.assertTrue(unbuffered >= 2 * (MB / BcTlsSession.MAX_FRAGMENT_LENGTH));
+		Assert.assertTrue(buffered < unbuffered);
+	}
+
+	@Test
+	public void pooledBufferTest() throws IOException {
+		ByteArrayPool pool = new ByteArrayPool(CHUNK, 4);
+		this.factory.setConfigProperty(SocketFactoryManager.KEY_READ_AHEAD_POOL, pool);
+
+		try (BcTlsSocket socket = createCountingSocket()) {
+			Assert.assertEquals(0, pool.getPooledCount());
+			readsPerMB(socket);
+		}
+		Assert.assertEquals(1, pool.getPooledCount());
+
+		try (BcTlsSocket socket = createCountingSocket()) {
+			// the released buffer is reused
+			Assert.assertEquals(0, pool.getPooledCount());
+		}
+		Assert.assertEquals(1, pool.getPooledCount());
+	}
+}
@@ -0,0 +1,90 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.tls.TlsClientProtocol;
+import org.bouncycastle.crypto.tls.TlsServerProtocol;
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class ServerNameTest {
+
+	private static final byte[] LOOPBACK = new byte[] { 127, 0, 0, 1 };
+
+	/**
+	 * Hands the client hello of the given host to a server
+	 */
+	private static String serverName(String host) throws IOException {
+		TestSecurityPrototype prototype = new TestSecurityPrototype();
+		TlsClientProtocol client = new TlsClientProtocol(new SecureRandom());
+		client.connect(new BcTlsClient(prototype, host));
+		byte[] hello = new byte[client.getAvailableOutputBytes()];
+		client.readOutput(hello, 0, hello.length);
+
+		BcTlsServer server = new BcTlsServer(prototype, null);
+		TlsServerProtocol protocol = new TlsServerProtocol(new SecureRandom());
+		protocol.accept(server);
+		protocol.offerInput(hello);
+		return server.getRequestedServerName();
+	}
+
+	@Test
+	public void extensionTest() throws IOException {
+		Assert.assertEquals("backend.example", serverName("backend.example"));
+		Assert.assertEquals("backend.example", serverName("backend.example."));
+		Assert.assertNull(serverName("127.0.0.1"));
+		Assert.assertNull(serverName("::1"));
+		Assert.assertNull(serverName(null));
+	}
+
+	@Test(timeout = 10000)
+	public void noLookupTest() throws IOException {
+		int lookups = ReverseLookup.getLookupCount();
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			InetAddress address = InetAddress.getByAddress("backend.example", LOOPBACK);
+			try (BcTlsSocket socket = factory.createSocket(address, server.getPort())) {
+				Assert.assertEquals("backend.example", socket.getPeerHost());
+				socket.getOutputStream().write(1);
+				socket.getOutputStream().flush();
+				Assert.assertEquals(1, socket.getInputStream().read());
+				Assert.assertEquals("backend.example", socket.getSession().getPeerHost());
+			}
+		}
+		// neither client nor server side looked up a name
+		Assert.assertEquals(lookups, ReverseLookup.getLookupCount());
+	}
+
+	@Test(timeout = 10000)
+	public void fallbackTest() throws IOException {
+		try (EchoServer server = new EchoServer()) {
+			InetAddress address = InetAddress.getByAddress(LOOPBACK);
+
+			String first = handshakeUnnamed(address, server.getPort());
+			int lookups = ReverseLookup.getLookupCount();
+			String second = handshakeUnnamed(address, server.getPort());
+
+			Assert.assertNotNull(first);
+			Assert.assertEquals(first, second);
+			// cached
+			Assert.assertEquals(lookups, ReverseLookup.getLookupCount());
+		}
+	}
+
+	private static String handshakeUnnamed(InetAddress address, int port) throws IOException {
+		BcTlsSocket socket = new BcTlsSocket(new Socket(address, port), true, new TestSecurityPrototype());
+		try {
+			socket.setUseClientMode(true);
+			Assert.assertNull(socket.getPeerHost());
+			socket.startHandshake();
+			return socket.getPeerHost();
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.tls.CipherSuite;
+import org.bouncycastle.crypto.tls.CompressionMethod;
+import org.bouncycastle.crypto.tls.SessionParameters;
+import org.bouncycastle.crypto.tls.TlsSession;
+import org.bouncycastle.crypto.tls.TlsUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bc.tls.BcSecurityPrototype;
+import bc.tls.TestSecurityPrototype;
+
+public class SessionCacheSnapshotTest {
+
+	private final BcSecurityPrototype prototype = new TestSecurityPrototype();
+
+	private final byte[] key = new byte[32];
+
+	private Path file;
+
+	@Before
+	public void prepare() throws IOException {
+		new SecureRandom().nextBytes(this.key);
+		this.file = Files.createTempFile("sessions", ".snapshot");
+		Files.delete(this.file);
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		Files.deleteIfExists(this.file);
+	}
+
+	private static TlsSession session(boolean ticket) {
+		byte[] masterSecret = new byte[48];
+		new SecureRandom().nextBytes(masterSecret);
+		byte[] id = new byte[32];
+		new SecureRandom().nextBytes(id);
+		SessionParameters parameters = new SessionParameters.Builder()
+				.setCipherSuite(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256)
+				.setCompressionAlgorithm(CompressionMethod._null).setMasterSecret(masterSecret).build();
+		if (ticket) {
+			return new TicketedSession(id, new byte[] { 1, 2, 3 }, parameters);
+		}
+		return TlsUtils.importSession(id, parameters);
+	}
+
+	@Test
+	public void roundTripTest() throws IOException {
+		ClientSessionCache cache = new ClientSessionCache();
+		TlsSession plain = session(false);
+		TlsSession ticketed = session(true);
+		cache.put("backend.example", 443, this.prototype, plain);
+		cache.put(null, -1, this.prototype, ticketed);
+		cache.put("other.example", 443, new TestSecurityPrototype(), session(false));
+
+		SessionCacheSnapshot snapshot = new SessionCacheSnapshot(this.file, this.key);
+		Assert.assertEquals(2, snapshot.save(cache, this.prototype));
+
+		ClientSessionCache restored = new ClientSessionCache();
+		Assert.assertEquals(2, snapshot.restore(restored, this.prototype));
+		Assert.assertEquals(2, restored.size());
+
+		TlsSession session = restored.get("backend.example", 443, this.prototype);
+		Assert.assertArrayEquals(plain.getSessionID(), session.getSessionID());
+		Assert.assertArrayEquals(plain.exportSessionParameters().getMasterSecret(),
+				session.exportSessionParameters().getMasterSecret());
+
+		session = restored.get(null, -1, this.prototype);
+		Assert.assertTrue(session instanceof TicketedSession);
+		Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, ((TicketedSession) session).getTicket());
+
+		// cached sessions take precedence
+		Assert.assertEquals(0, snapshot.restore(restored, this.prototype));
+	}
+
+	@Test
+	public void missingFileTest() throws IOException {
+		Assert.assertEquals(0, new SessionCacheSnapshot(this.file, this.key).restore(new ClientSessionCache(),
+				this.prototype));
+	}
+
+	@Test
+	public void tamperedTest() throws IOException {
+		ClientSessionCache cache = new ClientSessionCache();
+		cache.put("backend.example", 443, this.prototype, session(false));
+		SessionCacheSnapshot snapshot = new SessionCacheSnapshot(this.file, this.key);
+		snapshot.save(cache, this.prototype);
+
+		byte[] content = Files.readAllBytes(this.file);
+		for (int i = 0; i < content.length; i += 11) {
+			byte[] forged = content.clone();
+			forged[i] ^= 1;
+			Files.write(this.file, forged);
+			try {
+				snapshot.restore(new ClientSessionCache(), this.prototype);
+				Assert.fail("Modified snapshot restored");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void wrongKeyTest() throws IOException {
+		ClientSessionCache cache = new ClientSessionCache();
+		cache.put("backend.example", 443, this.prototype, session(false));
+		new SessionCacheSnapshot(this.file, this.key).save(cache, this.prototype);
+		new SessionCacheSnapshot(this.file, new byte[16]).restore(new ClientSessionCache(), this.prototype);
+	}
+
+	@Test
+	public void expiryTest() throws IOException, InterruptedException {
+		ClientSessionCache cache = new ClientSessionCache(16, 1, TimeUnit.HOURS);
+		cache.put("backend.example", 443, this.prototype, session(false));
+		SessionCacheSnapshot snapshot = new SessionCacheSnapshot(this.file, this.key);
+		snapshot.save(cache, this.prototype);
+
+		Thread.sleep(100);
+		// the original creation time is kept
+		ClientSessionCache shortLived = new ClientSessionCache(16, 50, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(0, snapshot.restore(shortLived, this.prototype));
+		Assert.assertEquals(0, shortLived.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidKeyTest() {
+		new SessionCacheSnapshot(this.file, new byte[10]);
+	}
+
+	@Test(timeout = 20000)
+	public void warmRestartTest() throws Exception {
+		try (JsseEchoServer server = new JsseEchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(this.prototype);
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				socket.getOutputStream().write(1);
+				socket.getOutputStream().flush();
+				Assert.assertEquals(1, socket.getInputStream().read());
+			}
+			Thread.sleep(10);
+			SessionCacheSnapshot snapshot = new SessionCacheSnapshot(this.file, this.key);
+			Assert.assertEquals(1, snapshot.save(factory.getSessionCache(), this.prototype));
+
+			BcTlsSocketFactory restarted = new BcTlsSocketFactory(this.prototype);
+			Assert.assertEquals(1, snapshot.restore(restarted.getSessionCache(), this.prototype));
+			try (BcTlsSocket socket = restarted.createSocket("localhost", server.getPort())) {
+				socket.getOutputStream().write(2);
+				socket.getOutputStream().flush();
+				Assert.assertEquals(2, socket.getInputStream().read());
+			}
+			Assert.assertEquals(1, server.getResumptions());
+		}
+	}
+}
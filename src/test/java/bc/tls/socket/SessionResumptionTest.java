@@ -0,0 +1,174 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.tls.SessionParameters;
+import org.bouncycastle.crypto.tls.TlsSession;
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.BcSecurityPrototype;
+import bc.tls.TestSecurityPrototype;
+
+public class SessionResumptionTest {
+
+	private static TlsSession session(final byte[] id) {
+		return new TlsSession() {
+			private boolean resumable = true;
+
+			@Override
+			public SessionParameters exportSessionParameters() {
+				return null;
+			}
+
+			@Override
+			public byte[] getSessionID() {
+				return id;
+			}
+
+			@Override
+			public void invalidate() {
+				this.resumable = false;
+			}
+
+			@Override
+			public boolean isResumable() {
+				return this.resumable;
+			}
+		};
+	}
+
+	private static byte[] roundTrip(BcTlsSocket socket) throws IOException {
+		try (BcTlsSocket s = socket) {
+			s.getOutputStream().write(3);
+			s.getOutputStream().flush();
+			Assert.assertEquals(3, s.getInputStream().read());
+			Assert.assertTrue(s.getSession().isValid());
+			return s.getSession().getId();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void resumeTest() throws Exception {
+		try (JsseEchoServer server = new JsseEchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+
+			byte[] first = roundTrip(factory.createSocket("localhost", server.getPort()));
+			Assert.assertEquals(1, factory.getSessionCache().size());
+			Thread.sleep(10);
+			byte[] second = roundTrip(factory.createSocket("localhost", server.getPort()));
+			byte[] third = roundTrip(factory.createSocket("localhost", server.getPort()));
+
+			Assert.assertTrue(first.length > 0);
+			Assert.assertArrayEquals(first, second);
+			Assert.assertArrayEquals(first, third);
+			Assert.assertEquals(2, factory.getSessionCache().getHitCount());
+			Assert.assertEquals(1, factory.getSessionCache().getMissCount());
+			Assert.assertEquals(3, server.getHandshakes());
+			Assert.assertEquals(2, server.getResumptions());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void peerCertificatesTest() throws Exception {
+		try (JsseEchoServer server = new JsseEchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			byte[][] ids = new byte[3][];
+			Certificate[][] chains = new Certificate[3][];
+			for (int i = 0; i < 3; i++) {
+				BcTlsSocket socket = factory.createSocket("localhost", server.getPort());
+				ids[i] = roundTrip(socket);
+				chains[i] = socket.getSession().getPeerCertificates();
+			}
+			Assert.assertEquals(2, server.getResumptions());
+			for (int i = 1; i < 3; i++) {
+				// resumed, no certificate message
+				Assert.assertArrayEquals(ids[0], ids[i]);
+				Assert.assertTrue(chains[0].length > 0);
+				Assert.assertArrayEquals(chains[0], chains[i]);
+			}
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void disabledTest() throws Exception {
+		try (JsseEchoServer server = new JsseEchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			factory.setConfigProperty(SocketFactoryManager.KEY_SESSION_CACHE, Boolean.FALSE);
+
+			byte[] first = roundTrip(factory.createSocket("localhost", server.getPort()));
+			Thread.sleep(10);
+			byte[] second = roundTrip(factory.createSocket("localhost", server.getPort()));
+
+			Assert.assertFalse(Arrays.equals(first, second));
+			Assert.assertEquals(0, factory.getSessionCache().size());
+			Assert.assertEquals(0, server.getResumptions());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void invalidatedTest() throws Exception {
+		try (JsseEchoServer server = new JsseEchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				socket.startHandshake();
+				socket.getSession().invalidate();
+				Assert.assertFalse(socket.getSession().isValid());
+			}
+			Thread.sleep(10);
+			roundTrip(factory.createSocket("localhost", server.getPort()));
+			Assert.assertEquals(0, server.getResumptions());
+		}
+	}
+
+	@Test
+	public void keyTest() {
+		BcSecurityPrototype a = new TestSecurityPrototype();
+		BcSecurityPrototype b = new TestSecurityPrototype();
+		ClientSessionCache cache = new ClientSessionCache();
+		TlsSession session = session(new byte[] { 1 });
+		cache.put("Backend.example", 443, a, session);
+
+		Assert.assertSame(session, cache.get("backend.example", 443, a));
+		Assert.assertNull(cache.get("backend.example", 8443, a));
+		Assert.assertNull(cache.get("backend.example", 443, b));
+		Assert.assertNull(cache.get("other.example", 443, a));
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(3, cache.getMissCount());
+
+		// not resumable without an id
+		cache.put("empty.example", 443, a, session(new byte[0]));
+		Assert.assertNull(cache.get("empty.example", 443, a));
+	}
+
+	@Test
+	public void boundTest() throws InterruptedException {
+		BcSecurityPrototype prototype = new TestSecurityPrototype();
+		ClientSessionCache cache = new ClientSessionCache(2, 1, TimeUnit.HOURS);
+		cache.put("a", 1, prototype, session(new byte[] { 1 }));
+		cache.put("b", 1, prototype, session(new byte[] { 2 }));
+		Assert.assertNotNull(cache.get("a", 1, prototype));
+		cache.put("c", 1, prototype, session(new byte[] { 3 }));
+
+		Assert.assertEquals(2, cache.size());
+		// least recently used
+		Assert.assertNull(cache.get("b", 1, prototype));
+		Assert.assertNotNull(cache.get("a", 1, prototype));
+		Assert.assertNotNull(cache.get("c", 1, prototype));
+
+		TlsSession invalid = session(new byte[] { 4 });
+		cache.put("d", 1, prototype, invalid);
+		invalid.invalidate();
+		Assert.assertNull(cache.get("d", 1, prototype));
+
+		ClientSessionCache expiring = new ClientSessionCache(2, 20, TimeUnit.MILLISECONDS);
+		expiring.put("a", 1, prototype, session(new byte[] { 1 }));
+		Thread.sleep(50);
+		Assert.assertNull(expiring.get("a", 1, prototype));
+		Assert.assertEquals(0, expiring.size());
+	}
+}
@@ -0,0 +1,73 @@
+package bc.tls.socket;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.tls.TlsClientProtocol;
+import org.bouncycastle.crypto.tls.TlsProtocol;
+import org.bouncycastle.crypto.tls.TlsServerProtocol;
+import org.bouncycastle.crypto.tls.TlsSession;
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.BcSecurityPrototype;
+import bc.tls.TestSecurityPrototype;
+
+public class SessionTicketTest {
+
+	private final BcSecurityPrototype prototype = new TestSecurityPrototype();
+
+	/**
+	 * Full handshake between the given client and a server, records are
+	 * passed in memory
+	 */
+	private BcTlsServer handshake(BcTlsClient client) throws IOException {
+		TlsClientProtocol clientProtocol = new TlsClientProtocol(new SecureRandom());
+		TlsServerProtocol serverProtocol = new TlsServerProtocol(new SecureRandom());
+		BcTlsServer server = new BcTlsServer(this.prototype, null, null);
+		clientProtocol.connect(client);
+		serverProtocol.accept(server);
+		for (int i = 0; i < 10 && !(client.isHandshakeComplete() && server.isHandshakeComplete()); i++) {
+			transfer(clientProtocol, serverProtocol);
+			transfer(serverProtocol, clientProtocol);
+		}
+		Assert.assertTrue(client.isHandshakeComplete());
+		Assert.assertTrue(server.isHandshakeComplete());
+		return server;
+	}
+
+	private static void transfer(TlsProtocol from, TlsProtocol to) throws IOException {
+		byte[] data = new byte[from.getAvailableOutputBytes()];
+		from.readOutput(data, 0, data.length);
+		if (data.length > 0) {
+			to.offerInput(data);
+		}
+	}
+
+	@Test
+	public void noTicketsTest() throws IOException {
+		ClientSessionCache cache = new ClientSessionCache();
+		handshake(new BcTlsClient(this.prototype, "backend.example", 443, cache));
+		// the server sent no session id either
+		Assert.assertNull(cache.get("backend.example", 443, this.prototype));
+	}
+
+	@Test(timeout = 20000)
+	public void resumeTest() throws Exception {
+		try (JsseEchoServer server = new JsseEchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			for (int i = 0; i < 3; i++) {
+				try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+					socket.getOutputStream().write(i);
+					socket.getOutputStream().flush();
+					Assert.assertEquals(i, socket.getInputStream().read());
+				}
+				Thread.sleep(10);
+			}
+			TlsSession session = factory.getSessionCache().get("localhost", server.getPort(),
+					factory.getDefaultSecurityPrototype());
+			Assert.assertTrue(session instanceof TicketedSession);
+			Assert.assertEquals(2, server.getResumptions());
+		}
+	}
+}
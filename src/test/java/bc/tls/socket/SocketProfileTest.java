@@ -0,0 +1,123 @@
+package bc.tls.socket;
+
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class SocketProfileTest {
+
+	@Test
+	public void applyTest() throws Exception {
+		SocketProfile profile = new SocketProfile.Builder().setTcpNoDelay(true).setKeepAlive(true).setLinger(3)
+				.setReadTimeout(1500).setReceiveBufferSize(65536).build();
+		try (Socket socket = new Socket()) {
+			int sendBuffer = socket.getSendBufferSize();
+			profile.apply(socket);
+			Assert.assertTrue(socket.getTcpNoDelay());
+			Assert.assertTrue(socket.getKeepAlive());
+			Assert.assertEquals(3, socket.getSoLinger());
+			Assert.assertEquals(1500, socket.getSoTimeout());
+			// unset options are left alone
+			Assert.assertEquals(sendBuffer, socket.getSendBufferSize());
+		}
+
+		SocketProfile derived = new SocketProfile.Builder(profile).setLinger(-5).build();
+		Assert.assertEquals(Integer.valueOf(-1), derived.getLinger());
+		Assert.assertEquals(Integer.valueOf(1500), derived.getReadTimeout());
+		Assert.assertEquals(Integer.valueOf(3), profile.getLinger());
+		try (Socket socket = new Socket()) {
+			derived.apply(socket);
+			Assert.assertEquals(-1, socket.getSoLinger());
+		}
+	}
+
+	@Test
+	public void validationTest() {
+		SocketProfile.Builder builder = new SocketProfile.Builder();
+		try {
+			builder.setTrafficClass(256);
+			Assert.fail("Traffic class accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			builder.setSendBufferSize(0);
+			Assert.fail("Buffer size accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			builder.setReadTimeout(-1);
+			Assert.fail("Read timeout accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		Assert.assertNull(builder.build().getTcpNoDelay());
+	}
+
+	@Test(timeout = 20000)
+	public void factoryTest() throws Exception {
+		SocketProfile bulk = new SocketProfile.Builder().setTcpNoDelay(false).setReadTimeout(30000).build();
+		SocketProfile interactive = new SocketProfile.Builder().setTcpNoDelay(true).setReadTimeout(2000).build();
+		SocketProfile call = new SocketProfile.Builder().setReadTimeout(500).build();
+
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			factory.setConfigProperty(SocketFactoryManager.KEY_SOCKET_PROFILE, bulk);
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				socket.startHandshake();
+				Assert.assertFalse(socket.getTcpNoDelay());
+				Assert.assertEquals(30000, socket.getSoTimeout());
+			}
+
+			factory.setSocketProfile("LOCALHOST", server.getPort(), interactive);
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				socket.startHandshake();
+				Assert.assertTrue(socket.getTcpNoDelay());
+				Assert.assertEquals(2000, socket.getSoTimeout());
+			}
+			// other endpoints keep the default
+			try (BcTlsSocket socket = factory.createSocket("127.0.0.1", server.getPort())) {
+				Assert.assertEquals(30000, socket.getSoTimeout());
+			}
+
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort(), null, call)) {
+				socket.startHandshake();
+				Assert.assertEquals(500, socket.getSoTimeout());
+			}
+
+			factory.setSocketProfile("localhost", server.getPort(), null);
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort())) {
+				Assert.assertEquals(30000, socket.getSoTimeout());
+			}
+		}
+	}
+
+	/**
+	 * A read timing out between records leaves the connection usable
+	 */
+	@Test(timeout = 20000)
+	public void readTimeoutTest() throws Exception {
+		SocketProfile profile = new SocketProfile.Builder().setReadTimeout(200).build();
+
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+			try (BcTlsSocket socket = factory.createSocket("localhost", server.getPort(), null, profile)) {
+				socket.startHandshake();
+				try {
+					socket.getInputStream().read();
+					Assert.fail("Read must time out");
+				} catch (SocketTimeoutException e) {
+					// expected
+				}
+
+				socket.getOutputStream().write(42);
+				Assert.assertEquals(42, socket.getInputStream().read());
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package bc.tls.socket;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+
+public class WriteCombiningTest {
+
+	private static final int WRITES = 100;
+	private static final int WRITE_SIZE = 20;
+
+	private EchoServer server;
+	private BcTlsSocketFactory factory;
+
+	private final AtomicInteger rawWrites = new AtomicInteger();
+
+	@Before
+	public void prepare() throws IOException {
+		this.server = new EchoServer();
+		this.factory = new BcTlsSocketFactory(new TestSecurityPrototype());
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		this.server.close();
+	}
+
+	/**
+	 * @return a tls socket on top of a raw socket counting its writes, which
+	 *         equals the number of records written
+	 */
+	private BcTlsSocket createCountingSocket() throws IOException {
+		Socket raw = new Socket("localhost", this.server.getPort()) {
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				return new FilterOutputStream(super.getOutputStream()) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						rawWrites.incrementAndGet();
+						out.write(b, off, len);
+					}
+				};
+			}
+		};
+		BcTlsSocket socket = this.factory.createSocket(raw, "localhost", this.server.getPort(), true);
+		socket.startHandshake();
+		return socket;
+	}
+
+	private int writeSmallChunks(BcTlsSocket socket) throws IOException {
+		int before = this.rawWrites.get();
+		OutputStream out = socket.getOutputStream();
+		for (int i = 0; i < WRITES; i++) {
+			out.write(new byte[WRITE_SIZE]);
+		}
+		out.flush();
+		int records = this.rawWrites.get() - before;
+
+		readFully(socket.getInputStream(), WRITES * WRITE_SIZE);
+		return records;
+	}
+
+	private static void readFully(InputStream in, int length) throws IOException {
+		byte[] buffer = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(buffer, read, length - read);
+			Assert.assertTrue("Unexpected end of stream", n >= 0);
+			read += n;
+		}
+	}
+
+	@Test
+	public void uncombinedTest() throws IOException {
+		try (BcTlsSocket socket = createCountingSocket()) {
+			Assert.assertEquals(WRITES, writeSmallChunks(socket));
+		}
+	}
+
+	@Test
+	public void combinedTest() throws IOException {
+		this.factory.setConfigProperty(SocketFactoryManager.KEY_WRITE_COMBINING_SIZE, 16384);
+		try (BcTlsSocket socket = createCountingSocket()) {
+			Assert.assertEquals(1, writeSmallChunks(socket));
+		}
+	}
+
+	@Test
+	public void recordSizeTest() throws IOException {
+		this.factory.setConfigProperty(SocketFactoryManager.KEY_WRITE_COMBINING_SIZE, 10 * WRITE_SIZE);
+		try (BcTlsSocket socket = createCountingSocket()) {
+			Assert.assertEquals(WRITES / 10, writeSmallChunks(socket));
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void delayedFlushTest() throws IOException, InterruptedException {
+		this.factory.setConfigProperty(SocketFactoryManager.KEY_WRITE_COMBINING_SIZE, 16384);
+		this.factory.setConfigProperty(SocketFactoryManager.KEY_WRITE_COMBINING_DELAY, 20L);
+		try (BcTlsSocket socket = createCountingSocket()) {
+			int before = this.rawWrites.get();
+			socket.getOutputStream().write(new byte[WRITE_SIZE]);
+			Thread.sleep(50);
+			// nothing is written behind the writer's back
+			Assert.assertEquals(before, this.rawWrites.get());
+
+			// no flush, the write after the delay pushes the record out
+			socket.getOutputStream().write(new byte[WRITE_SIZE]);
+			Assert.assertEquals(before + 1, this.rawWrites.get());
+			readFully(socket.getInputStream(), 2 * WRITE_SIZE);
+		}
+	}
+}
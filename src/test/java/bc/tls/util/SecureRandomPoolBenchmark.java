@@ -0,0 +1,48 @@
+package bc.tls.util;
+
+import org.junit.Test;
+
+import bc.tls.TestSecurityPrototype;
+import bc.tls.logging.LogConsumer;
+import bc.tls.logging.LogConsumerFactory;
+import bc.tls.socket.BcTlsSocket;
+import bc.tls.socket.BcTlsSocketFactory;
+import bc.tls.socket.EchoServer;
+import bc.tls.socket.SocketFactoryManager;
+
+/**
+ * Run with {@code mvn test -Pbenchmark}
+ */
+public class SecureRandomPoolBenchmark {
+
+	private static final LogConsumer LOG = LogConsumerFactory.getTaggedConsumer("SecureRandomPoolBenchmark");
+
+	private static double handshakeRate(BcTlsSocketFactory factory, int port, int handshakes) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < handshakes; i++) {
+			try (BcTlsSocket socket = factory.createSocket("localhost", port)) {
+				socket.startHandshake();
+			}
+		}
+		return handshakes / ((System.nanoTime() - start) / 1e9);
+	}
+
+	@Test(timeout = 60000)
+	public void handshakeBenchmark() throws Exception {
+		int handshakes = 50;
+		try (EchoServer server = new EchoServer()) {
+			BcTlsSocketFactory perSocket = new BcTlsSocketFactory(new TestSecurityPrototype());
+			BcTlsSocketFactory pooled = new BcTlsSocketFactory(new TestSecurityPrototype());
+			pooled.setConfigProperty(SocketFactoryManager.KEY_SECURE_RANDOM, SecureRandomPool.getDefault());
+
+			// warm up
+			handshakeRate(perSocket, server.getPort(), 10);
+			handshakeRate(pooled, server.getPort(), 10);
+
+			double perSocketRate = handshakeRate(perSocket, server.getPort(), handshakes);
+			double pooledRate = handshakeRate(pooled, server.getPort(), handshakes);
+			LOG.info(String.format("Handshakes per second: per-socket random %.1f, pooled random %.1f",
+					perSocketRate, pooledRate));
+		}
+	}
+}
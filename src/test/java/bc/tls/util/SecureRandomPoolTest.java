@@ -0,0 +1,88 @@
+package bc.tls.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SecureRandomPoolTest {
+
+	@Test
+	public void stripesTest() {
+		SecureRandomPool pool = new SecureRandomPool(3, 1, TimeUnit.MINUTES);
+		Assert.assertEquals(4, pool.getStripeCount());
+		Assert.assertEquals(0, pool.getSeedCount());
+
+		byte[] first = new byte[32];
+		byte[] second = new byte[32];
+		pool.nextBytes(first);
+		pool.nextBytes(second);
+		Assert.assertFalse(Arrays.equals(first, second));
+		Assert.assertFalse(Arrays.equals(new byte[32], first));
+		// seeded once for this thread's stripe
+		Assert.assertEquals(1, pool.getSeedCount());
+		Assert.assertEquals(16, pool.generateSeed(16).length);
+	}
+
+	@Test
+	public void reseedTest() throws InterruptedException {
+		SecureRandomPool pool = new SecureRandomPool(1, 50, TimeUnit.MILLISECONDS);
+		pool.nextInt();
+		pool.nextInt();
+		Assert.assertEquals(1, pool.getSeedCount());
+
+		Thread.sleep(100);
+		pool.nextInt();
+		Assert.assertEquals(2, pool.getSeedCount());
+	}
+
+	@Test
+	public void jcaTest() throws NoSuchAlgorithmException {
+		SecureRandomPool pool = new SecureRandomPool("SHA1PRNG", null, 2, 1, TimeUnit.MINUTES);
+		Assert.assertEquals("SHA1PRNG", pool.getAlgorithm());
+		Assert.assertEquals(1, pool.getSeedCount());
+		pool.nextBytes(new byte[16]);
+
+		try {
+			new SecureRandomPool("NoSuchPRNG", null, 2, 1, TimeUnit.MINUTES);
+			Assert.fail("Unknown algorithm accepted");
+		} catch (NoSuchAlgorithmException e) {
+			// expected
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void concurrentTest() throws Exception {
+		final SecureRandomPool pool = new SecureRandomPool(4, 1, TimeUnit.MINUTES);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						byte[] bytes = new byte[32];
+						for (int j = 0; j < 1000; j++) {
+							pool.nextBytes(bytes);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+			Assert.assertTrue(pool.getSeedCount() <= pool.getStripeCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}